@@ -23,6 +23,7 @@ import java.io.IOException;
 public class AccessSecrets {
   private static final String projectId = "764525537710";
   private static final String secretId = "client-id";
+  private static final String metricsTokenSecretId = "metrics-token";
   private static final String versionId = "1";
 
   /**
@@ -34,10 +35,27 @@ public class AccessSecrets {
    *     accessed.
    */
   public static String getClientId() throws IOException, ApiException {
+    return getSecret(secretId);
+  }
+
+  /**
+   * Returns the bearer token that the scrapers of the metrics have to send, if it was included in
+   * the Secret Manager.
+   *
+   * @return The token if the operations are successfull.
+   * @throws IOException If the SecretManagerServiceClient object couldn't been created.
+   * @throws ApiException If the secret version associated with the token couldn't have been
+   *     accessed.
+   */
+  public static String getMetricsToken() throws IOException, ApiException {
+    return getSecret(metricsTokenSecretId);
+  }
+
+  private static String getSecret(String id) throws IOException, ApiException {
     SecretManagerServiceClient client = SecretManagerServiceClient.create();
     String response =
         client
-            .accessSecretVersion(SecretVersionName.of(projectId, secretId, versionId))
+            .accessSecretVersion(SecretVersionName.of(projectId, id, versionId))
             .getPayload()
             .getData()
             .toStringUtf8();
@@ -31,29 +31,64 @@ import javax.ws.rs.BadRequestException;
 
 /** A helper class used to retrieve specific data such as the id_token from a request. */
 public class AuthStatus {
-  private static String CLIENT_ID;
-  private static GoogleIdTokenVerifier verifier;
+  private static final int MAX_CACHED_TOKENS = 10000;
+  // Name of the request attribute used to remember the result of the verification.
+  private static final String ID_TOKEN_ATTRIBUTE = AuthStatus.class.getName() + ".idToken";
+  private static final VerifiedTokenCache verifiedTokens =
+      new VerifiedTokenCache(MAX_CACHED_TOKENS);
+  private static final MetricsRegistry metrics = MetricsRegistry.getMetricsRegistry();
 
-  static {
-    try {
-      CLIENT_ID = AccessSecrets.getClientId();
-      verifier =
-          new GoogleIdTokenVerifier.Builder(
-                  new NetHttpTransport(), JacksonFactory.getDefaultInstance())
-              .setAudience(Collections.singletonList(CLIENT_ID))
-              .build();
-    } catch (IOException e) {
-      throw new RuntimeException(e.getMessage());
+  /**
+   * Holds the verifier, which is only created (reading the client id from the secrets) the first
+   * time a token has to be verified, so that the requests whose token was already verified don't
+   * depend on it.
+   */
+  private static final class Verifier {
+    private static String CLIENT_ID;
+    private static GoogleIdTokenVerifier verifier;
+
+    static {
+      try {
+        CLIENT_ID = AccessSecrets.getClientId();
+        verifier =
+            new GoogleIdTokenVerifier.Builder(
+                    new NetHttpTransport(), JacksonFactory.getDefaultInstance())
+                .setAudience(Collections.singletonList(CLIENT_ID))
+                .build();
+      } catch (IOException e) {
+        throw new RuntimeException(e.getMessage());
+      }
     }
   }
 
   /**
-   * Gets the id_token from the associated cookie if it is included in the request.
+   * Gets the id_token from the associated cookie if it is included in the request. The token is
+   * verified at most once per request, and not at all if it was already verified by an earlier
+   * request and didn't expire since.
    *
    * @param request The request from which we will extract the cookie.
    * @return An Optional object that contains the id_token if it was found in the request.
    */
+  @SuppressWarnings("unchecked")
   private static Optional<GoogleIdToken> getIdToken(HttpServletRequest request) throws IOException {
+    Object memoizedIdToken = request.getAttribute(ID_TOKEN_ATTRIBUTE);
+    if (memoizedIdToken != null) {
+      return (Optional<GoogleIdToken>) memoizedIdToken;
+    }
+
+    Optional<GoogleIdToken> idToken = verifyIdToken(request);
+    request.setAttribute(ID_TOKEN_ATTRIBUTE, idToken);
+    return idToken;
+  }
+
+  /**
+   * Verifies the id_token from the associated cookie if it is included in the request.
+   *
+   * @param request The request from which we will extract the cookie.
+   * @return An Optional object that contains the id_token if it was found in the request.
+   */
+  private static Optional<GoogleIdToken> verifyIdToken(HttpServletRequest request)
+      throws IOException {
     Cookie[] cookies = request.getCookies();
 
     if (cookies != null) {
@@ -62,7 +97,18 @@ public class AuthStatus {
           try {
             String idTokenString =
                 java.net.URLDecoder.decode(cookie.getValue(), StandardCharsets.UTF_8.name());
-            return Optional.ofNullable(verifier.verify(idTokenString));
+            Optional<GoogleIdToken> cachedIdToken = verifiedTokens.get(idTokenString);
+            if (cachedIdToken.isPresent()) {
+              metrics.countCacheLookups("verified_tokens", 1, 0);
+              return cachedIdToken;
+            }
+            metrics.countCacheLookups("verified_tokens", 0, 1);
+
+            GoogleIdToken idToken = Verifier.verifier.verify(idTokenString);
+            if (idToken != null) {
+              verifiedTokens.put(idTokenString, idToken);
+            }
+            return Optional.ofNullable(idToken);
           } catch (GeneralSecurityException e) {
             throw new BadRequestException("Invalid id_token");
           } catch (UnsupportedEncodingException e) {
@@ -0,0 +1,73 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.lecturechat.data.constants.EventEntity;
+import com.google.lecturechat.data.constants.GroupEntity;
+import com.google.lecturechat.data.constants.MessageEntity;
+import com.google.lecturechat.data.constants.UserEntity;
+
+/**
+ * The backfills that bring the entities written by earlier versions of the app up to date. Each
+ * backfill scans all the entities of one kind, one chunk at a time (see
+ * DatastoreAccess.runNextBackfillChunk), and can be run again safely.
+ */
+public enum Backfill {
+  // Stores the names of the groups created before group names were stored.
+  GROUP_NAMES("group-names", GroupEntity.KIND.getLabel()),
+  // Stores the group id in the events created before events kept track of their group.
+  EVENT_GROUPS("event-groups", GroupEntity.KIND.getLabel()),
+  // Stores the attendances of the events joined before attendances were stored.
+  ATTENDANCES("attendances", UserEntity.KIND.getLabel()),
+  // Moves the students stored in the lists of the groups to memberships.
+  GROUP_MEMBERSHIPS("group-memberships", GroupEntity.KIND.getLabel()),
+  // Moves the attendees stored in the lists of the events to memberships.
+  EVENT_MEMBERSHIPS("event-memberships", EventEntity.KIND.getLabel()),
+  // Stores the expiry slot of the messages sent before messages had one.
+  MESSAGE_EXPIRY_SLOTS("message-expiry-slots", MessageEntity.KIND.getLabel());
+
+  private final String name;
+  private final String scannedKind;
+
+  private Backfill(String name, String scannedKind) {
+    this.name = name;
+    this.scannedKind = scannedKind;
+  }
+
+  /** The name of the backfill, used in the URLs of its tasks and as the key of its progress. */
+  public String getName() {
+    return name;
+  }
+
+  /** The kind of the entities scanned by the backfill. */
+  String getScannedKind() {
+    return scannedKind;
+  }
+
+  /**
+   * Gets the backfill with the given name.
+   *
+   * @param name The name of the backfill.
+   * @return The backfill.
+   * @throws IllegalArgumentException If there is no backfill with this name.
+   */
+  public static Backfill fromName(String name) {
+    for (Backfill backfill : values()) {
+      if (backfill.name.equals(name)) {
+        return backfill;
+      }
+    }
+    throw new IllegalArgumentException("There is no backfill named " + name + ".");
+  }
+}
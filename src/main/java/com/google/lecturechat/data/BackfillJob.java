@@ -0,0 +1,117 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.lecturechat.data.constants.BackfillJobEntity;
+import java.util.Optional;
+
+/**
+ * A helper class for passing the progress of a backfill, which scans the entities of a kind one
+ * chunk at a time.
+ */
+public final class BackfillJob {
+
+  private final Backfill backfill;
+
+  // The web-safe cursor of the next chunk, or null if no chunk was scanned yet.
+  private final String cursor;
+
+  private final long scannedEntities;
+  // The number of things the backfill stored or moved (e.g. group names, members).
+  private final long updatedEntities;
+  private final long chunks;
+  private final long startedAt;
+  private final long updatedAt;
+  private final boolean done;
+
+  public BackfillJob(
+      Backfill backfill,
+      String cursor,
+      long scannedEntities,
+      long updatedEntities,
+      long chunks,
+      long startedAt,
+      long updatedAt,
+      boolean done) {
+    this.backfill = backfill;
+    this.cursor = cursor;
+    this.scannedEntities = scannedEntities;
+    this.updatedEntities = updatedEntities;
+    this.chunks = chunks;
+    this.startedAt = startedAt;
+    this.updatedAt = updatedAt;
+    this.done = done;
+  }
+
+  public Backfill getBackfill() {
+    return backfill;
+  }
+
+  public Optional<String> getCursor() {
+    return Optional.ofNullable(cursor);
+  }
+
+  public long getScannedEntities() {
+    return scannedEntities;
+  }
+
+  public long getUpdatedEntities() {
+    return updatedEntities;
+  }
+
+  public long getChunks() {
+    return chunks;
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  public long getUpdatedAt() {
+    return updatedAt;
+  }
+
+  /** True if all the entities of the kind were scanned. */
+  public boolean isDone() {
+    return done;
+  }
+
+  public static BackfillJob createBackfillJobFromEntity(Entity jobEntity) {
+    if (jobEntity.getKind().equals(BackfillJobEntity.KIND.getLabel())) {
+      Text cursor = (Text) jobEntity.getProperty(BackfillJobEntity.CURSOR_PROPERTY.getLabel());
+      long scannedEntities =
+          (long) jobEntity.getProperty(BackfillJobEntity.SCANNED_PROPERTY.getLabel());
+      long updatedEntities =
+          (long) jobEntity.getProperty(BackfillJobEntity.UPDATED_ENTITIES_PROPERTY.getLabel());
+      long chunks = (long) jobEntity.getProperty(BackfillJobEntity.CHUNKS_PROPERTY.getLabel());
+      long startedAt = (long) jobEntity.getProperty(BackfillJobEntity.STARTED_PROPERTY.getLabel());
+      long updatedAt = (long) jobEntity.getProperty(BackfillJobEntity.UPDATED_PROPERTY.getLabel());
+      boolean done = (boolean) jobEntity.getProperty(BackfillJobEntity.DONE_PROPERTY.getLabel());
+      return new BackfillJob(
+          Backfill.fromName(jobEntity.getKey().getName()),
+          (cursor != null) ? cursor.getValue() : null,
+          scannedEntities,
+          updatedEntities,
+          chunks,
+          startedAt,
+          updatedAt,
+          done);
+    } else {
+      throw new IllegalArgumentException(
+          "Attempted to create backfill job from entity that is not a backfill job.");
+    }
+  }
+}
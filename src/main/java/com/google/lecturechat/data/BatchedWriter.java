@@ -0,0 +1,219 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit of the entities written by concurrent requests. Every request that writes an entity
+ * queues it and waits until it is written. The first request to arrive leads the next batch: if
+ * other entities are already queued, it waits up to a short linger time (or until the batch is
+ * full), then writes all the queued entities with a single call and wakes the requests whose
+ * entities were written. The entities queued in the meantime are written in the next batch, led by
+ * the first of them. A leader that is alone writes its entity right away, so a single writer never
+ * waits for the linger time. No background thread is needed, so every request is only acknowledged
+ * once its entity is stored.
+ *
+ * <p>Once the requests of a batch are woken, the leader runs the follow-up of the batch, whose
+ * failures are only logged: the entities are already stored. The follow-up delays the response of
+ * the leader, so it should only hand the batch over (e.g. to a task queue).
+ */
+final class BatchedWriter {
+
+  private static final Logger logger = Logger.getLogger(BatchedWriter.class.getName());
+
+  private final int maxBatchSize;
+  private final long lingerMillis;
+  private final int maxQueuedEntities;
+  private final Consumer<List<Entity>> writer;
+  private final Consumer<List<Entity>> afterWrite;
+
+  private final Object lock = new Object();
+  private final List<PendingWrite> queue = new ArrayList<>();
+  private boolean hasLeader = false;
+
+  /**
+   * Creates a batcher.
+   *
+   * @param maxBatchSize The maximum number of entities written in one call.
+   * @param lingerMillis How long the leader of a batch waits for other entities to be queued.
+   * @param maxQueuedEntities The maximum number of entities waiting for a batch; writes are
+   *     rejected while the queue is full.
+   * @param writer The function that writes a batch of entities.
+   */
+  BatchedWriter(
+      int maxBatchSize,
+      long lingerMillis,
+      int maxQueuedEntities,
+      Consumer<List<Entity>> writer) {
+    this(maxBatchSize, lingerMillis, maxQueuedEntities, writer, entities -> {});
+  }
+
+  /**
+   * Creates a batcher with a follow-up of the written batches.
+   *
+   * @param maxBatchSize The maximum number of entities written in one call.
+   * @param lingerMillis How long the leader of a batch waits for other entities to be queued.
+   * @param maxQueuedEntities The maximum number of entities waiting for a batch; writes are
+   *     rejected while the queue is full.
+   * @param writer The function that writes a batch of entities.
+   * @param afterWrite The function called with every batch that was written, once its requests
+   *     are woken.
+   */
+  BatchedWriter(
+      int maxBatchSize,
+      long lingerMillis,
+      int maxQueuedEntities,
+      Consumer<List<Entity>> writer,
+      Consumer<List<Entity>> afterWrite) {
+    this.maxBatchSize = maxBatchSize;
+    this.lingerMillis = lingerMillis;
+    this.maxQueuedEntities = maxQueuedEntities;
+    this.writer = writer;
+    this.afterWrite = afterWrite;
+  }
+
+  /**
+   * Writes the entity in the next batch, returning once the batch is written.
+   *
+   * @param entity The entity that will be written (its key is completed by the write).
+   * @throws RejectedExecutionException If too many entities are already waiting to be written.
+   * @throws DatastoreFailureException If the batch couldn't be written.
+   */
+  void write(Entity entity) {
+    PendingWrite write = new PendingWrite(entity);
+    boolean interrupted = false;
+
+    synchronized (lock) {
+      if (queue.size() >= maxQueuedEntities) {
+        throw new RejectedExecutionException("Too many entities are waiting to be written.");
+      }
+      queue.add(write);
+      if (!hasLeader) {
+        hasLeader = true;
+        write.isLeader = true;
+      } else if (queue.size() >= maxBatchSize) {
+        // Lets the leader write the full batch without waiting for the linger time.
+        lock.notifyAll();
+      }
+
+      while (!write.isDone && !write.isLeader) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          // The entity is written anyway, so the request keeps waiting for the result.
+          interrupted = true;
+        }
+      }
+    }
+
+    if (!write.isDone) {
+      interrupted |= writeNextBatch();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (write.error != null) {
+      throw new DatastoreFailureException("The entity couldn't be written.", write.error);
+    }
+  }
+
+  /** Gets the number of entities waiting for a batch (the batch being written isn't counted). */
+  int getQueuedCount() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Waits for the batch to fill up (or for the linger time to pass) if other entities are queued,
+   * writes it, hands the leadership over to the first entity of the next batch and runs the
+   * follow-up of the batch.
+   *
+   * @return True if the thread was interrupted while waiting.
+   */
+  private boolean writeNextBatch() {
+    boolean interrupted = false;
+    List<PendingWrite> batch;
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + lingerMillis;
+      long remainingMillis = lingerMillis;
+      // The entity of the leader is the only one queued when no other request is writing.
+      while (queue.size() > 1 && queue.size() < maxBatchSize && remainingMillis > 0) {
+        try {
+          lock.wait(remainingMillis);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        remainingMillis = deadline - System.currentTimeMillis();
+      }
+      List<PendingWrite> firstWrites = queue.subList(0, Math.min(queue.size(), maxBatchSize));
+      batch = new ArrayList<>(firstWrites);
+      firstWrites.clear();
+    }
+
+    RuntimeException error = null;
+    List<Entity> entities = new ArrayList<>();
+    try {
+      for (PendingWrite write : batch) {
+        entities.add(write.entity);
+      }
+      writer.accept(entities);
+    } catch (RuntimeException e) {
+      error = e;
+    }
+
+    synchronized (lock) {
+      for (PendingWrite write : batch) {
+        write.error = error;
+        write.isDone = true;
+      }
+      if (queue.isEmpty()) {
+        hasLeader = false;
+      } else {
+        queue.get(0).isLeader = true;
+      }
+      lock.notifyAll();
+    }
+
+    if (error == null) {
+      try {
+        afterWrite.accept(entities);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "The follow-up of a written batch failed.", e);
+      }
+    }
+    return interrupted;
+  }
+
+  /** An entity waiting to be written. The fields are guarded by the lock of the batcher. */
+  private static final class PendingWrite {
+    private final Entity entity;
+    private boolean isLeader = false;
+    private boolean isDone = false;
+    private RuntimeException error;
+
+    private PendingWrite(Entity entity) {
+      this.entity = entity;
+    }
+  }
+}
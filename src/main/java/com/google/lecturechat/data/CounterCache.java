@@ -0,0 +1,103 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bounded cache of the values of sharded counters, so that listings don't read every shard of every
+ * counter they show. Values are kept for a short time only, since other instances increment the
+ * counters too; the increments made by this instance are applied to the cached values right away.
+ */
+final class CounterCache {
+
+  private final long maxAgeMillis;
+  private final LinkedHashMap<String, CachedValue> values;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxCounters The maximum number of counters kept (the least recently used are evicted).
+   * @param maxAgeMillis The time after which the value of a counter is read again.
+   */
+  CounterCache(int maxCounters, long maxAgeMillis) {
+    this.maxAgeMillis = maxAgeMillis;
+    values =
+        new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+            return size() > maxCounters;
+          }
+        };
+  }
+
+  /**
+   * Gets the value of a counter, if it is cached and not too old to be used.
+   *
+   * @param counterName The name of the counter.
+   * @return An Optional object that contains the value if it was cached.
+   */
+  synchronized Optional<Long> get(String counterName) {
+    CachedValue value = values.get(counterName);
+    if (value == null) {
+      return Optional.empty();
+    }
+    if (System.currentTimeMillis() - value.readAt > maxAgeMillis) {
+      values.remove(counterName);
+      return Optional.empty();
+    }
+    return Optional.of(value.value);
+  }
+
+  /**
+   * Caches the value of a counter that was just read from its shards.
+   *
+   * @param counterName The name of the counter.
+   * @param value The value of the counter.
+   */
+  synchronized void put(String counterName, long value) {
+    values.put(counterName, new CachedValue(value));
+  }
+
+  /**
+   * Adds an increment made by this instance to the cached value of the counter, if it is cached.
+   *
+   * @param counterName The name of the counter.
+   * @param delta The amount the counter was incremented by.
+   */
+  synchronized void add(String counterName, long delta) {
+    CachedValue value = values.get(counterName);
+    if (value != null) {
+      value.value += delta;
+    }
+  }
+
+  /** Removes all the cached values. */
+  synchronized void clear() {
+    values.clear();
+  }
+
+  /** The value of a counter and the time it was read at. */
+  private static final class CachedValue {
+    private final long readAt = System.currentTimeMillis();
+    private long value;
+
+    private CachedValue(long value) {
+      this.value = value;
+    }
+  }
+}
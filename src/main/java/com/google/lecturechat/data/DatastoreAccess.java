@@ -14,8 +14,12 @@
 
 package com.google.lecturechat.data;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -25,13 +29,25 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.lecturechat.data.constants.AttendanceEntity;
+import com.google.lecturechat.data.constants.BackfillJobEntity;
+import com.google.lecturechat.data.constants.CounterShardEntity;
 import com.google.lecturechat.data.constants.EventEntity;
 import com.google.lecturechat.data.constants.GroupEntity;
+import com.google.lecturechat.data.constants.GroupNameEntity;
+import com.google.lecturechat.data.constants.MembershipEntity;
 import com.google.lecturechat.data.constants.MessageEntity;
 import com.google.lecturechat.data.constants.UserEntity;
 import java.time.LocalDateTime;
@@ -39,14 +55,145 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 /** API class for methods that access and operate on the datastore database. */
 public class DatastoreAccess {
 
+  private static final Logger logger = Logger.getLogger(DatastoreAccess.class.getName());
+
+  // Limits of the in-memory cache of recent messages, shared by all the servlets of an instance.
+  private static final int CACHED_MESSAGES_PER_EVENT = 200;
+  private static final long MAX_CACHED_MESSAGES_BYTES = 16L * 1024 * 1024;
+  // How long the cached messages of an event are served before checking that no other instance
+  // wrote to the event. It is well below MESSAGE_OVERLAP_MILLIS, so a message missed meanwhile is
+  // still sent with the overlap of the next read.
+  private static final long RECENT_MESSAGES_CHECK_MILLIS = 1000;
+  private static final RecentMessagesCache recentMessages =
+      new RecentMessagesCache(
+          MemcacheServiceFactory.getMemcacheService(),
+          CACHED_MESSAGES_PER_EVENT,
+          MAX_CACHED_MESSAGES_BYTES,
+          RECENT_MESSAGES_CHECK_MILLIS);
+
+  // The timestamp of a message is set before it is stored, and the queries of messages are
+  // eventually consistent, so a message can become visible after newer ones. The messages of this
+  // window before a cursor are sent again with the messages after it (see
+  // getMessagesFromEventAfter).
+  private static final long MESSAGE_OVERLAP_MILLIS = 10000;
+
+  // Limits of the group commit of new messages, shared by all the servlets of an instance.
+  private static final int MAX_MESSAGES_PER_BATCH = 100;
+  private static final long MESSAGE_BATCH_LINGER_MILLIS = 2;
+  private static final int MAX_QUEUED_MESSAGES = 1000;
+  private static final BatchedWriter messageWriter =
+      new BatchedWriter(
+          MAX_MESSAGES_PER_BATCH,
+          MESSAGE_BATCH_LINGER_MILLIS,
+          MAX_QUEUED_MESSAGES,
+          entities -> getDatastoreAccess().writeMessages(entities),
+          entities -> getDatastoreAccess().countMessages(entities));
+  // The messages counters are incremented by tasks, so that the requests that add messages don't
+  // wait for the transactions of the counters (see countMessages).
+  public static final String COUNT_MESSAGES_TASK_URL = "/count-messages-task";
+  public static final String COUNT_MESSAGES_EVENT_PARAMETER = "event";
+  public static final String COUNT_MESSAGES_COUNT_PARAMETER = "count";
+
+  // Increments of the same counter write one of its shards at random, so that concurrent joins (or
+  // messages) rarely write the same entity group. A counter starts with a single shard, and its
+  // shards are doubled (up to this many) every time an increment collides with another one.
+  private static final int MAX_COUNTER_SHARDS = 16;
+  // How many times a transaction is attempted when it collides with another one.
+  private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+  private static final long RETRY_DELAY_MILLIS = 20;
+  // Counter values are only cached for a short time, since other instances increment them too.
+  private static final int CACHED_COUNTERS = 10000;
+  private static final long CACHED_COUNTERS_MAX_AGE_MILLIS = 10000;
+  private static final CounterCache counterValues =
+      new CounterCache(CACHED_COUNTERS, CACHED_COUNTERS_MAX_AGE_MILLIS);
+  // The number of shards of the counters read or widened by the instance. It never decreases, so
+  // a value read earlier is at most the current one and increments only write shards in use.
+  private static final Map<String, Integer> counterShards =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+              return size() > CACHED_COUNTERS;
+            }
+          });
+
+  // Groups and events are cached on the instance and in memcache, since they rarely change.
+  private static final int CACHED_ENTITIES = 10000;
+  private static final int CACHED_ENTITIES_EXPIRATION_SECONDS = 60 * 60;
+  // How long a group or event kept on the instance is served before checking that no other
+  // instance wrote it.
+  private static final long CACHED_ENTITIES_VALIDITY_MILLIS = 1000;
+  private static final EntityCache groupsAndEvents =
+      new EntityCache(
+          MemcacheServiceFactory.getMemcacheService(),
+          CACHED_ENTITIES,
+          CACHED_ENTITIES_EXPIRATION_SECONDS,
+          CACHED_ENTITIES_VALIDITY_MILLIS);
+
+  // The users known to be registered, checked on every page load (see addUser).
+  private static final int CACHED_REGISTERED_USERS = 100000;
+  private static final RegisteredUsersCache registeredUsers =
+      new RegisteredUsersCache(CACHED_REGISTERED_USERS);
+
+  // The backfills known to be done. A backfill stays done once it is, since what it stored is kept
+  // up to date by the methods that write the same entities.
+  private static final Set<Backfill> doneBackfills = ConcurrentHashMap.newKeySet();
+
+  // The maximum number of keys the datastore accepts in a single batch get.
+  private static final int MAX_KEYS_PER_GET = 1000;
+  // The maximum number of messages deleted by a single batch delete.
+  private static final int MESSAGES_PER_PURGE_CHUNK = 500;
+  // The number of entities scanned by each chunk of a backfill run in a single request.
+  private static final int BACKFILL_CHUNK_SIZE = 100;
+  // A page that leaves out some results of its query (e.g. the groups already joined) scans at
+  // most this many times its limit, so that a user who joined most groups can't make a request
+  // read all of them.
+  private static final int MAX_SCANNED_PAGES = 5;
+
+  // How long the messages of an event are kept after its end, unless the event sets it.
+  private static final int DEFAULT_RETENTION_HOURS = 24;
+  private static final int MAX_RETENTION_HOURS = 7 * 24;
+  // Messages expire in slots of this length, so each expiry tick only deletes the slot that
+  // expired since the previous tick.
+  private static final long EXPIRY_SLOT_MILLIS = 15 * 60 * 1000;
+  // The retention policies of the events that messages were recently added to (events don't
+  // change after they are created, so the policies never go stale).
+  private static final int CACHED_RETENTION_POLICIES = 10000;
+  private static final Map<Long, RetentionPolicy> retentionPolicies =
+      Collections.synchronizedMap(
+          new LinkedHashMap<Long, RetentionPolicy>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RetentionPolicy> eldest) {
+              return size() > CACHED_RETENTION_POLICIES;
+            }
+          });
+
+  private static final MetricsRegistry metrics = MetricsRegistry.getMetricsRegistry();
+
   private final DatastoreService datastore;
 
   private DatastoreAccess(DatastoreService datastore) {
@@ -55,44 +202,171 @@ public class DatastoreAccess {
 
   /** Factory constructor. */
   public static DatastoreAccess getDatastoreAccess() {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore =
+        InstrumentedDatastore.instrument(
+            DatastoreService.class, DatastoreServiceFactory.getDatastoreService(), metrics);
     return new DatastoreAccess(datastore);
   }
 
+  /** Drops everything cached in memory (e.g. when the underlying datastore was reset). */
+  static void clearCaches() {
+    recentMessages.clear();
+    retentionPolicies.clear();
+    counterValues.clear();
+    counterShards.clear();
+    groupsAndEvents.clear();
+    registeredUsers.clear();
+    doneBackfills.clear();
+  }
+
+  /** Gets the cache of the groups and events (e.g. to check its hit and miss counters). */
+  static EntityCache getEntityCache() {
+    return groupsAndEvents;
+  }
+
   /**
-   * Adds new group entity to the database if it doesn't already exist (atomic).
+   * Adds new group entity to the database if it doesn't already exist (atomic). Groups are
+   * identified by their group name, whose key is derived from the canonical university, degree and
+   * year, so the group is found (or created along with its name) with a transactional get by key.
+   * Groups that only differ in case or whitespace are the same group.
    *
    * @param university The name of the unversity the new group is associated with.
    * @param degree The name of the degree the new group is associated with.
    * @param year The year of the degree the new group is associated with.
    * @return The id associated with the group.
+   * @throws ConcurrentModificationException If the creation still collided after
+   *     MAX_TRANSACTION_ATTEMPTS.
    */
   public long addGroup(String university, String degree, int year) {
-    Transaction transaction = datastore.beginTransaction();
-    try {
-      Optional<Entity> groupEntity = getExistingGroupEntity(university, degree, year);
-      if (!groupEntity.isPresent()) {
-        Entity newGroupEntity = new Entity(GroupEntity.KIND.getLabel());
-        newGroupEntity.setProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel(), university);
-        newGroupEntity.setProperty(GroupEntity.DEGREE_PROPERTY.getLabel(), degree);
-        newGroupEntity.setProperty(GroupEntity.YEAR_PROPERTY.getLabel(), year);
-        newGroupEntity.setProperty(
-            GroupEntity.STUDENTS_PROPERTY.getLabel(), new ArrayList<String>());
-        newGroupEntity.setProperty(GroupEntity.EVENTS_PROPERTY.getLabel(), new ArrayList<Long>());
-        datastore.put(newGroupEntity);
-        groupEntity = Optional.of(newGroupEntity);
-      }
-      transaction.commit();
-      return groupEntity.get().getKey().getId();
-    } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
-      }
+    try (RequestTrace.Span span = RequestTrace.startSpan("addGroup")) {
+      Key nameKey = getGroupNameKey(university, degree, year);
+      boolean hasNamesOfOldGroups = isBackfillDone(Backfill.GROUP_NAMES);
+      return retryOnContention(
+          () -> {
+            Transaction transaction =
+                datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+              try {
+                Entity nameEntity = datastore.get(transaction, nameKey);
+                return (long) nameEntity.getProperty(GroupNameEntity.GROUP_PROPERTY.getLabel());
+              } catch (EntityNotFoundException e) {
+                // The group doesn't exist yet, or was created before group names were stored.
+              }
+
+              // Until the names of the old groups are stored, they can only be found by a query.
+              Optional<Entity> groupEntity =
+                  hasNamesOfOldGroups
+                      ? Optional.empty()
+                      : getExistingGroupEntity(university, degree, year);
+              if (!groupEntity.isPresent()) {
+                Entity newGroupEntity = new Entity(GroupEntity.KIND.getLabel());
+                newGroupEntity.setProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel(), university);
+                newGroupEntity.setProperty(GroupEntity.DEGREE_PROPERTY.getLabel(), degree);
+                newGroupEntity.setProperty(GroupEntity.YEAR_PROPERTY.getLabel(), year);
+                newGroupEntity.setProperty(
+                    GroupEntity.EVENTS_PROPERTY.getLabel(), new ArrayList<Long>());
+                datastore.put(transaction, newGroupEntity);
+                groupEntity = Optional.of(newGroupEntity);
+              }
+              long groupId = groupEntity.get().getKey().getId();
+              datastore.put(transaction, createGroupNameEntity(nameKey, groupId));
+              transaction.commit();
+              return groupId;
+            } finally {
+              if (transaction.isActive()) {
+                transaction.rollback();
+              }
+            }
+          });
     }
   }
 
   /**
-   * Queries the database to check if a group with the given parameters already exists.
+   * Gets the key of the group name of a group, named after its canonical university, degree and
+   * year (see canonicalize).
+   *
+   * @param university The name of the university of the group.
+   * @param degree The name of the degree of the group.
+   * @param year The year of the degree of the group.
+   * @return The key of the group name.
+   */
+  private static Key getGroupNameKey(String university, String degree, long year) {
+    // Newlines can't appear in the canonical names, so they can't make two groups share a key.
+    String name = canonicalize(university) + "\n" + canonicalize(degree) + "\n" + year;
+    return KeyFactory.createKey(GroupNameEntity.KIND.getLabel(), name);
+  }
+
+  /** Trims a name, collapses its runs of whitespace into one space and puts it in lower case. */
+  private static String canonicalize(String name) {
+    return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+  }
+
+  /** Creates the group name entity that points to the group with the given id. */
+  private static Entity createGroupNameEntity(Key nameKey, long groupId) {
+    Entity nameEntity = new Entity(nameKey);
+    nameEntity.setProperty(GroupNameEntity.GROUP_PROPERTY.getLabel(), groupId);
+    return nameEntity;
+  }
+
+  /**
+   * Stores the names of the groups created before group names were stored, so that addGroup finds
+   * them without a query. If several old groups only differ in case or whitespace, the name points
+   * to the first one found, and the others are logged as duplicates so that they can be merged by
+   * hand (their events and members would be lost by an automatic merge of the wrong group).
+   *
+   * @return The number of group names stored.
+   */
+  public int addNamesOfOldGroups() {
+    return runBackfill(Backfill.GROUP_NAMES);
+  }
+
+  /**
+   * Stores the name of a group created before group names were stored (see addNamesOfOldGroups).
+   *
+   * @param groupEntity The entity of the group.
+   * @return 1 if the name was stored, 0 if the group already had one (or is a duplicate).
+   */
+  private int addNameOfOldGroup(Entity groupEntity) {
+    Key nameKey =
+        getGroupNameKey(
+            (String) groupEntity.getProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel()),
+            (String) groupEntity.getProperty(GroupEntity.DEGREE_PROPERTY.getLabel()),
+            (long) groupEntity.getProperty(GroupEntity.YEAR_PROPERTY.getLabel()));
+    return retryOnContention(
+        () -> {
+          Transaction transaction = datastore.beginTransaction();
+          try {
+            Entity nameEntity = datastore.get(transaction, nameKey);
+            long namedGroupId =
+                (long) nameEntity.getProperty(GroupNameEntity.GROUP_PROPERTY.getLabel());
+            if (namedGroupId != groupEntity.getKey().getId()) {
+              logger.warning(
+                  String.format(
+                      "The group %d has the same name as the group %d (%s), so addGroup can't"
+                          + " find it. It has to be merged into the other group by hand.",
+                      groupEntity.getKey().getId(),
+                      namedGroupId,
+                      nameKey.getName().replace('\n', '/')));
+            }
+            return 0;
+          } catch (EntityNotFoundException e) {
+            datastore.put(
+                transaction, createGroupNameEntity(nameKey, groupEntity.getKey().getId()));
+            transaction.commit();
+            return 1;
+          } finally {
+            if (transaction.isActive()) {
+              transaction.rollback();
+            }
+          }
+        });
+  }
+
+  /**
+   * Queries the database to check if a group with the given parameters already exists. Like the
+   * group names, the university and the degree are compared without case and extra whitespace, so
+   * the groups of the same year are read and compared in memory. If several groups match, the first
+   * one found is returned, which is the one the backfill of the group names points to.
    *
    * @param university The name of the university the new group is associated with.
    * @param degree The name of the degree the new group is associated with.
@@ -102,32 +376,164 @@ public class DatastoreAccess {
   private Optional<Entity> getExistingGroupEntity(String university, String degree, int year) {
     Query query = new Query(GroupEntity.KIND.getLabel());
     query.setFilter(
-        new CompositeFilter(
-            CompositeFilterOperator.AND,
-            Arrays.asList(
-                new FilterPredicate(
-                    GroupEntity.UNIVERSITY_PROPERTY.getLabel(), FilterOperator.EQUAL, university),
-                new FilterPredicate(
-                    GroupEntity.DEGREE_PROPERTY.getLabel(), FilterOperator.EQUAL, degree),
-                new FilterPredicate(
-                    GroupEntity.YEAR_PROPERTY.getLabel(), FilterOperator.EQUAL, year))));
-    Entity groupEntity = datastore.prepare(query).asSingleEntity();
-    return ((groupEntity != null) ? Optional.of(groupEntity) : Optional.empty());
+        new FilterPredicate(GroupEntity.YEAR_PROPERTY.getLabel(), FilterOperator.EQUAL, year));
+    String canonicalUniversity = canonicalize(university);
+    String canonicalDegree = canonicalize(degree);
+    for (Entity groupEntity : datastore.prepare(query).asIterable()) {
+      String groupUniversity =
+          (String) groupEntity.getProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel());
+      String groupDegree = (String) groupEntity.getProperty(GroupEntity.DEGREE_PROPERTY.getLabel());
+      if (canonicalize(groupUniversity).equals(canonicalUniversity)
+          && canonicalize(groupDegree).equals(canonicalDegree)) {
+        return Optional.of(groupEntity);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Queries the database to get one page of the groups that match the given (optional) criteria.
+   * The groups are ordered by their key, so the cursor returned can be used to get the next page.
+   *
+   * @param university The university of the groups, or null to include all universities.
+   * @param degree The degree of the groups, or null to include all degrees.
+   * @param year The year of the groups, or null to include all years.
+   * @param cursor The web-safe cursor returned with the previous page, or null for the first page.
+   * @param limit The maximum number of groups in the page.
+   * @return The page of groups.
+   * @throws IllegalArgumentException If the cursor is not valid.
+   */
+  public GroupsPage getGroupsPage(
+      String university, String degree, Integer year, String cursor, int limit) {
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+
+    QueryResultList<Entity> results =
+        datastore
+            .prepare(createGroupsQuery(university, degree, year))
+            .asQueryResultList(fetchOptions);
+    String nextCursor = (results.size() < limit) ? null : results.getCursor().toWebSafeString();
+    return new GroupsPage(createGroupsPageSummaries(results), nextCursor);
+  }
+
+  /**
+   * Gets one page of the groups that match the given (optional) criteria, leaving out the groups
+   * the user already joined. The groups are scanned until the page is full, so a page only holds
+   * fewer groups than the limit if it is the last one, or if the user joined most of the groups
+   * scanned (see MAX_SCANNED_PAGES).
+   *
+   * @param user The context of the request.
+   * @param university The university of the groups, or null to include all universities.
+   * @param degree The degree of the groups, or null to include all degrees.
+   * @param year The year of the groups, or null to include all years.
+   * @param cursor The web-safe cursor returned with the previous page, or null for the first page.
+   * @param limit The maximum number of groups in the page.
+   * @return The page of groups that the user didn't join yet.
+   * @throws IllegalArgumentException If the cursor is not valid.
+   */
+  public GroupsPage getNotJoinedGroupsPage(
+      UserContext user, String university, String degree, Integer year, String cursor, int limit) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getNotJoinedGroupsPage")) {
+      LongIdSet joinedGroupsIds = getUserIdsSet(user, UserEntity.GROUPS_PROPERTY.getLabel());
+      FilteredResults results =
+          getFilteredResults(
+              createGroupsQuery(university, degree, year),
+              cursor,
+              limit,
+              entity -> !joinedGroupsIds.contains(entity.getKey().getId()));
+      return new GroupsPage(createGroupsPageSummaries(results.entities), results.nextCursor);
+    }
   }
 
   /**
-   * Queries the database to get a list of all groups.
+   * Creates the query of the groups that match the given (optional) criteria, ordered by their key.
    *
-   * @return The list of groups.
+   * @param university The university of the groups, or null to include all universities.
+   * @param degree The degree of the groups, or null to include all degrees.
+   * @param year The year of the groups, or null to include all years.
+   * @return The query.
    */
-  public List<Group> getAllGroups() {
+  private static Query createGroupsQuery(String university, String degree, Integer year) {
+    List<Filter> filters = new ArrayList<>();
+    if (university != null) {
+      filters.add(
+          new FilterPredicate(
+              GroupEntity.UNIVERSITY_PROPERTY.getLabel(), FilterOperator.EQUAL, university));
+    }
+    if (degree != null) {
+      filters.add(
+          new FilterPredicate(
+              GroupEntity.DEGREE_PROPERTY.getLabel(), FilterOperator.EQUAL, degree));
+    }
+    if (year != null) {
+      filters.add(
+          new FilterPredicate(GroupEntity.YEAR_PROPERTY.getLabel(), FilterOperator.EQUAL, year));
+    }
+
     Query query = new Query(GroupEntity.KIND.getLabel());
-    PreparedQuery results = datastore.prepare(query);
-    List<Group> groups = new ArrayList<>();
-    for (Entity entity : results.asIterable()) {
-      groups.add(Group.createGroupFromEntity(entity));
+    if (filters.size() == 1) {
+      query.setFilter(filters.get(0));
+    } else if (filters.size() > 1) {
+      query.setFilter(new CompositeFilter(CompositeFilterOperator.AND, filters));
+    }
+    return query;
+  }
+
+  /**
+   * Creates the summaries of the groups of a directory page, none of which is joined by the user.
+   *
+   * @param groupEntities The group entities of the page.
+   * @return The list of group summaries.
+   */
+  private List<GroupSummary> createGroupsPageSummaries(List<Entity> groupEntities) {
+    Map<Key, Integer> studentsCounts =
+        getMembersCounts(groupEntities, GroupEntity.STUDENTS_PROPERTY.getLabel());
+    return groupEntities.stream()
+        .map(
+            entity ->
+                GroupSummary.createGroupSummaryFromEntity(
+                    entity, studentsCounts.get(entity.getKey()), false))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Scans the results of a query from a cursor until the given number of them pass the filter,
+   * the results run out, or MAX_SCANNED_PAGES times the limit were scanned. The results are read
+   * in batches of the limit, so a query whose results all pass is read as a single page.
+   *
+   * @param query The query.
+   * @param cursor The web-safe cursor to start from, or null to start from the first result.
+   * @param limit The maximum number of results that pass the filter.
+   * @param filter The filter of the results.
+   * @return The results that passed the filter, and the cursor after the last result scanned.
+   * @throws IllegalArgumentException If the cursor is not valid.
+   */
+  private FilteredResults getFilteredResults(
+      Query query, String cursor, int limit, Predicate<Entity> filter) {
+    int maxScannedCount = limit * MAX_SCANNED_PAGES;
+    FetchOptions fetchOptions =
+        FetchOptions.Builder.withLimit(maxScannedCount).prefetchSize(limit).chunkSize(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+
+    QueryResultIterator<Entity> results =
+        datastore.prepare(query).asQueryResultIterator(fetchOptions);
+    List<Entity> entities = new ArrayList<>();
+    int scannedCount = 0;
+    while (entities.size() < limit && results.hasNext()) {
+      Entity entity = results.next();
+      scannedCount++;
+      if (filter.test(entity)) {
+        entities.add(entity);
+      }
     }
-    return groups;
+    // Otherwise the results ran out before the page was full.
+    boolean hasNextPage = entities.size() == limit || scannedCount == maxScannedCount;
+    return new FilteredResults(
+        entities, hasNextPage ? results.getCursor().toWebSafeString() : null);
   }
 
   /**
@@ -139,38 +545,201 @@ public class DatastoreAccess {
    * @throws IllegalArgumentException If the entity can't be found in the database.
    */
   private Entity getEntityById(String kind, long id) {
-    Key key = KeyFactory.createKey(kind, id);
-    try {
-      return datastore.get(key);
-    } catch (EntityNotFoundException e) {
+    Optional<Entity> entity = getEntityByKey(KeyFactory.createKey(kind, id));
+    if (!entity.isPresent()) {
       throw new IllegalArgumentException(
           "Couldn't find entity with id " + id + " and kind " + kind + ".");
     }
+    return entity.get();
   }
 
   /**
-   * Queries the database to get an entity by its ID string.
+   * Gets an entity by its ID, reading it from the database only if it wasn't already read during
+   * the user's request.
    *
+   * @param user The context of the request.
    * @param kind The kind of the entity.
-   * @param id The id of the entity (as a string).
+   * @param id The id of the entity.
    * @return The entity.
+   * @throws IllegalArgumentException If the entity can't be found in the database.
    */
-  private Optional<Entity> getEntityByIdString(String kind, String id) {
+  private Entity getEntityById(UserContext user, String kind, long id) {
+    Optional<Entity> entity = getEntity(user, KeyFactory.createKey(kind, id));
+    if (!entity.isPresent()) {
+      throw new IllegalArgumentException(
+          "Couldn't find entity with id " + id + " and kind " + kind + ".");
+    }
+    return entity.get();
+  }
+
+  /**
+   * Gets an entity by its key, reading it from the database only if it wasn't already read during
+   * the user's request.
+   *
+   * @param user The context of the request.
+   * @param key The key of the entity.
+   * @return The entity, or an empty Optional object if it can't be found.
+   */
+  private Optional<Entity> getEntity(UserContext user, Key key) {
+    return user.getEntity(key, this::getEntityByKey);
+  }
+
+  /**
+   * Queries the database to get an entity by its key. Groups and events are read through the
+   * entity cache.
+   *
+   * @param key The key of the entity.
+   * @return The entity, or an empty Optional object if it can't be found.
+   */
+  private Optional<Entity> getEntityByKey(Key key) {
+    if (isCached(key.getKind())) {
+      return Optional.ofNullable(getCachedEntitiesByKeys(Collections.singletonList(key)).get(key));
+    }
     try {
-      return Optional.of(datastore.get(KeyFactory.createKey(kind, id)));
+      return Optional.of(datastore.get(key));
     } catch (EntityNotFoundException e) {
       return Optional.empty();
     }
   }
 
+  /** Checks if the entities of the given kind are read through the entity cache. */
+  private static boolean isCached(String kind) {
+    return kind.equals(GroupEntity.KIND.getLabel()) || kind.equals(EventEntity.KIND.getLabel());
+  }
+
+  /**
+   * Gets the groups or events with the given keys from the entity cache, reading the ones that
+   * aren't cached with as few batch gets as possible.
+   *
+   * @param keys The keys of the groups or events.
+   * @return The entities found, by their key.
+   */
+  private Map<Key, Entity> getCachedEntitiesByKeys(List<Key> keys) {
+    return groupsAndEvents.getAll(keys, this::getEntitiesByKeys);
+  }
+
+  /**
+   * Queries the database to get the entities with the given keys, using one batch get for every
+   * MAX_KEYS_PER_GET keys.
+   *
+   * @param keys The keys of the entities.
+   * @return The entities found, by their key.
+   */
+  private Map<Key, Entity> getEntitiesByKeys(List<Key> keys) {
+    Map<Key, Entity> entities = new HashMap<>();
+    for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_GET) {
+      entities.putAll(
+          datastore.get(keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_GET))));
+    }
+    return entities;
+  }
+
+  /**
+   * Queries the database to get the entities with the given IDs in as few calls as possible. The
+   * entities are returned in the order of their IDs and the entities that can't be found in the
+   * database are left out.
+   *
+   * @param kind The kind of the entities.
+   * @param ids The ids of the entities.
+   * @return The list of entities found.
+   */
+  private List<Entity> getEntitiesByIds(String kind, List<Long> ids) {
+    List<Key> keys =
+        ids.stream().map(id -> KeyFactory.createKey(kind, id)).collect(Collectors.toList());
+    Map<Key, Entity> foundEntities = getCachedEntitiesByKeys(keys);
+    return keys.stream()
+        .map(foundEntities::get)
+        .filter(entity -> entity != null)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the entities with the given IDs, reading from the database (in as few calls as possible)
+   * only the ones that weren't already read during the user's request. The entities are returned
+   * in the order of their IDs and the entities that can't be found are left out.
+   *
+   * @param user The context of the request.
+   * @param kind The kind of the entities.
+   * @param ids The ids of the entities.
+   * @return The list of entities found.
+   */
+  private List<Entity> getEntitiesByIds(UserContext user, String kind, List<Long> ids) {
+    List<Key> keys =
+        ids.stream().map(id -> KeyFactory.createKey(kind, id)).collect(Collectors.toList());
+    List<Key> keysToRead =
+        keys.stream()
+            .filter(key -> user.getReadEntity(key) == null)
+            .distinct()
+            .collect(Collectors.toList());
+    Map<Key, Entity> foundEntities = getCachedEntitiesByKeys(keysToRead);
+    for (Key key : keysToRead) {
+      user.setReadEntity(key, Optional.ofNullable(foundEntities.get(key)));
+    }
+
+    return keys.stream()
+        .map(user::getReadEntity)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Queries the database to get an entity by its ID string.
+   *
+   * @param kind The kind of the entity.
+   * @param id The id of the entity (as a string).
+   * @return The entity.
+   */
+  private Optional<Entity> getEntityByIdString(String kind, String id) {
+    return getEntityByKey(KeyFactory.createKey(kind, id));
+  }
+
+  /**
+   * Gets the ids stored in one of the user's properties (e.g. the ids of the joined groups).
+   *
+   * @param user The context of the request.
+   * @param propertyName The name of the user property that contains the ids.
+   * @return The list of ids (empty if the user isn't registered).
+   */
+  private List<Long> getUserIds(UserContext user, String propertyName) {
+    Optional<Entity> userEntity = getEntity(user, user.getUserKey());
+    if (!userEntity.isPresent()) {
+      return new ArrayList<>();
+    }
+
+    List<Long> ids = (ArrayList) (userEntity.get().getProperty(propertyName));
+    return (ids != null) ? ids : new ArrayList<>();
+  }
+
+  /**
+   * Gets the set of ids stored in one of the user's properties, computed once per request.
+   *
+   * @param user The context of the request.
+   * @param propertyName The name of the user property that contains the ids.
+   * @return The set of ids (empty if the user isn't registered).
+   */
+  private LongIdSet getUserIdsSet(UserContext user, String propertyName) {
+    return user.getJoinedIds(propertyName, () -> LongIdSet.of(getUserIds(user, propertyName)));
+  }
+
   /**
-   * Queries the database to check if the user is already registered or not.
+   * Checks if the user is already registered or not. The database is only queried if the user
+   * isn't known to be registered by the instance yet.
    *
    * @param userId The id of the user to be checked.
    * @return True if the user is already registered, false otherwise.
    */
   public boolean isUserRegistered(String userId) {
-    return getEntityByIdString(UserEntity.KIND.getLabel(), userId).isPresent();
+    if (registeredUsers.contains(userId)) {
+      metrics.countCacheLookups("registered_users", 1, 0);
+      return true;
+    }
+    metrics.countCacheLookups("registered_users", 0, 1);
+    boolean registered = getEntityByIdString(UserEntity.KIND.getLabel(), userId).isPresent();
+    if (registered) {
+      registeredUsers.add(userId);
+    }
+    return registered;
   }
 
   /**
@@ -185,46 +754,78 @@ public class DatastoreAccess {
    */
   public long addEventToGroup(
       long groupId, String title, long startTime, long endTime, String creator) {
-    // Create cross-group transaction to make operations on both entity types atomic.
-    Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
-    long eventId = 0;
+    return addEventToGroup(groupId, title, startTime, endTime, creator, DEFAULT_RETENTION_HOURS);
+  }
 
-    try {
-      Entity eventEntity = new Entity(EventEntity.KIND.getLabel());
-      eventEntity.setProperty(EventEntity.TITLE_PROPERTY.getLabel(), title);
-      eventEntity.setProperty(EventEntity.START_PROPERTY.getLabel(), startTime);
-      eventEntity.setProperty(EventEntity.END_PROPERTY.getLabel(), endTime);
-      eventEntity.setProperty(EventEntity.CREATOR_PROPERTY.getLabel(), creator);
-      eventEntity.setProperty(EventEntity.MESSAGES_PROPERTY.getLabel(), new ArrayList<Long>());
-      eventEntity.setProperty(EventEntity.ATTENDEES_PROPERTY.getLabel(), new ArrayList<String>());
-      eventId = datastore.put(transaction, eventEntity).getId();
-
-      if (eventId != 0) {
-        Entity groupEntity = getEntityById(GroupEntity.KIND.getLabel(), groupId);
-        List<Long> eventIds =
-            (ArrayList) (groupEntity.getProperty(GroupEntity.EVENTS_PROPERTY.getLabel()));
-        if (eventIds == null) {
-          eventIds = new ArrayList<>();
-        }
-        eventIds.add(eventId);
-        groupEntity.setProperty(GroupEntity.EVENTS_PROPERTY.getLabel(), eventIds);
-        datastore.put(transaction, groupEntity);
-        transaction.commit();
+  /**
+   * Adds new event entity to a specific group in the database (atomic).
+   *
+   * @param groupId The id of the group the new event belongs to.
+   * @param title The title of the new event.
+   * @param startTime The start time of the event (number of milliseconds since epoch time).
+   * @param endTime The end time of the event (number of milliseconds since epoch time).
+   * @param creator The creator of the event.
+   * @param retentionHours The number of hours the chat messages are kept after the end of the
+   *     event (between 1 and MAX_RETENTION_HOURS).
+   * @return The id of the event created or 0 if the event couldn't be created.
+   * @throws IllegalArgumentException If the retention is out of range or the group doesn't exist.
+   */
+  public long addEventToGroup(
+      long groupId,
+      String title,
+      long startTime,
+      long endTime,
+      String creator,
+      int retentionHours) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("addEventToGroup")) {
+      if (retentionHours < 1 || retentionHours > MAX_RETENTION_HOURS) {
+        throw new IllegalArgumentException(
+            "The retention must be between 1 and " + MAX_RETENTION_HOURS + " hours.");
       }
 
-    } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
+      // Create cross-group transaction to make operations on both entity types atomic.
+      Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      long eventId = 0;
+
+      try {
+        Entity eventEntity = new Entity(EventEntity.KIND.getLabel());
+        eventEntity.setProperty(EventEntity.TITLE_PROPERTY.getLabel(), title);
+        eventEntity.setProperty(EventEntity.START_PROPERTY.getLabel(), startTime);
+        eventEntity.setProperty(EventEntity.END_PROPERTY.getLabel(), endTime);
+        eventEntity.setProperty(EventEntity.CREATOR_PROPERTY.getLabel(), creator);
+        eventEntity.setProperty(EventEntity.MESSAGES_PROPERTY.getLabel(), new ArrayList<Long>());
+        eventEntity.setProperty(EventEntity.GROUP_PROPERTY.getLabel(), groupId);
+        eventEntity.setProperty(EventEntity.RETENTION_PROPERTY.getLabel(), retentionHours);
+        eventId = datastore.put(transaction, eventEntity).getId();
+
+        if (eventId != 0) {
+          Entity groupEntity = getEntityById(GroupEntity.KIND.getLabel(), groupId);
+          List<Long> eventIds =
+              (ArrayList) (groupEntity.getProperty(GroupEntity.EVENTS_PROPERTY.getLabel()));
+          if (eventIds == null) {
+            eventIds = new ArrayList<>();
+          }
+          eventIds.add(eventId);
+          groupEntity.setProperty(GroupEntity.EVENTS_PROPERTY.getLabel(), eventIds);
+          datastore.put(transaction, groupEntity);
+          transaction.commit();
+          groupsAndEvents.invalidate(groupEntity.getKey());
+        }
+
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
       }
+      return eventId;
     }
-    return eventId;
   }
 
   /**
    * Queries the database to get a list of all events in a certain group.
    *
    * @param groupId The id of the group.
-   * @return The list of events.
+   * @return The list of events (the events that can't be found are left out).
    */
   List<Event> getAllEventsFromGroup(long groupId) {
     Entity groupEntity = getEntityById(GroupEntity.KIND.getLabel(), groupId);
@@ -233,193 +834,666 @@ public class DatastoreAccess {
     List<Event> events = new ArrayList<>();
     if (eventIds != null) {
       events =
-          eventIds.stream()
-              .map(
-                  id -> Event.createEventFromEntity(getEntityById(EventEntity.KIND.getLabel(), id)))
+          getEntitiesByIds(EventEntity.KIND.getLabel(), eventIds).stream()
+              .map(Event::createEventFromEntity)
               .collect(Collectors.toList());
     }
     return events;
   }
 
   /**
-   * Adds the user to the database if they don't exist already.
+   * Gets a list of all events in a certain group, reusing the entities already read during the
+   * user's request.
    *
-   * @param userId The id of the user that will be added.
-   * @param name The name of the user that will be added.
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @return The list of events (the events that can't be found are left out).
    */
-  public void addUser(String userId, String name) {
-    if (isUserRegistered(userId)) {
-      return;
-    }
-
-    Entity userEntity = new Entity(KeyFactory.createKey(UserEntity.KIND.getLabel(), userId));
-    userEntity.setProperty(UserEntity.NAME_PROPERTY.getLabel(), name);
-    userEntity.setProperty(UserEntity.GROUPS_PROPERTY.getLabel(), new ArrayList<Long>());
-    userEntity.setProperty(UserEntity.EVENTS_PROPERTY.getLabel(), new ArrayList<Long>());
-    datastore.put(userEntity);
+  private List<Event> getAllEventsFromGroup(UserContext user, long groupId) {
+    return getAllEventEntitiesFromGroup(user, groupId).stream()
+        .map(Event::createEventFromEntity)
+        .collect(Collectors.toList());
   }
 
   /**
-   * Joins the given entity by adding the entity id to the user's list of entities (The entities are
-   * defined by a label). Examples of entities: groups, events.
+   * Gets the entities of all events in a certain group, reusing the entities already read during
+   * the user's request.
    *
-   * @param userId The id of the user that joins the entity.
-   * @param entityId The id of the entity that the user joined.
-   * @param entityLabel The label associated with this entity.
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @return The list of event entities (the events that can't be found are left out).
    */
-  private void joinEntity(String userId, long entityId, String entityLabel) {
-    Optional<Entity> user = getEntityByIdString(UserEntity.KIND.getLabel(), userId);
-    if (!user.isPresent()) {
-      return;
-    }
-
-    Transaction transaction = datastore.beginTransaction();
-    try {
-      List<Long> entitiesIds = (ArrayList) (user.get().getProperty(entityLabel));
-      if (entitiesIds == null) {
-        entitiesIds = new ArrayList<>();
-      }
-      if (!entitiesIds.contains(entityId)) {
-        entitiesIds.add(entityId);
-      }
-      user.get().setProperty(entityLabel, entitiesIds);
-      datastore.put(user.get());
-      transaction.commit();
-    } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
-      }
+  private List<Entity> getAllEventEntitiesFromGroup(UserContext user, long groupId) {
+    Entity groupEntity = getEntityById(user, GroupEntity.KIND.getLabel(), groupId);
+    List<Long> eventIds =
+        (ArrayList) (groupEntity.getProperty(GroupEntity.EVENTS_PROPERTY.getLabel()));
+    if (eventIds == null) {
+      return new ArrayList<>();
     }
+    return getEntitiesByIds(user, EventEntity.KIND.getLabel(), eventIds);
   }
 
   /**
-   * Adds the user to the list of users of the entity with the given id and kind. The list of users
-   * ids is associated with the property that has the name propertyName.
+   * Queries the database to get one page of the events of a group that start in the interval [from,
+   * to), keeping only the events that the user joined (or didn't join). The events are ordered by
+   * their start date, and only the events in the interval are read, no matter how many events the
+   * group had in the past. The events are scanned until the page is full, so a page only holds
+   * fewer events than the limit if it is the last one, or if most of the events scanned were left
+   * out (see MAX_SCANNED_PAGES).
    *
-   * @param userId The id of the user that will be added to the entity.
-   * @param entityId The id of the entity to which the user will be added.
-   * @param entityKind The entity kind label (e.g. group, event).
-   * @param propertyName The name of the property that contains the users ids.
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @param from The inclusive lower bound of the start date.
+   * @param to The exclusive upper bound of the start date.
+   * @param joined True to get the events joined by the user, false to get the other events.
+   * @param cursor The web-safe cursor returned with the previous page, or null for the first page.
+   * @param limit The maximum number of events in the page.
+   * @return The page of event summaries.
+   * @throws IllegalArgumentException If the cursor is not valid.
    */
-  public void addUserToEntity(
-      String userId, long entityId, String entityKind, String propertyName) {
-    Transaction transaction = datastore.beginTransaction();
+  public EventsPage getEventsPageFromGroup(
+      UserContext user,
+      long groupId,
+      long from,
+      long to,
+      boolean joined,
+      String cursor,
+      int limit) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getEventsPageFromGroup")) {
+      Query query = new Query(EventEntity.KIND.getLabel());
+      query.setFilter(
+          new CompositeFilter(
+              CompositeFilterOperator.AND,
+              Arrays.asList(
+                  new FilterPredicate(
+                      EventEntity.GROUP_PROPERTY.getLabel(), FilterOperator.EQUAL, groupId),
+                  new FilterPredicate(
+                      EventEntity.START_PROPERTY.getLabel(),
+                      FilterOperator.GREATER_THAN_OR_EQUAL,
+                      from),
+                  new FilterPredicate(
+                      EventEntity.START_PROPERTY.getLabel(), FilterOperator.LESS_THAN, to))));
+      query.addSort(EventEntity.START_PROPERTY.getLabel(), SortDirection.ASCENDING);
 
-    try {
-      Entity entity = getEntityById(entityKind, entityId);
-      List<String> usersIds = (ArrayList) (entity.getProperty(propertyName));
-      if (usersIds == null) {
-        usersIds = new ArrayList<>();
-      }
-      if (!usersIds.contains(userId)) {
-        usersIds.add(userId);
-      }
-      entity.setProperty(propertyName, usersIds);
-      datastore.put(transaction, entity);
-      transaction.commit();
-    } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
-      }
+      // Already read if the caller checked the membership of the user.
+      LongIdSet joinedEventsIds = getUserIdsSet(user, UserEntity.EVENTS_PROPERTY.getLabel());
+      FilteredResults results =
+          getFilteredResults(
+              query,
+              cursor,
+              limit,
+              entity -> joinedEventsIds.contains(entity.getKey().getId()) == joined);
+      return new EventsPage(createEventSummaries(results.entities, joined), results.nextCursor);
     }
   }
 
   /**
-   * Joins the given group by adding the group id to the user's list of groups. The list of students
-   * associated with the group should also be updated by including the new user.
+   * Stores the id of their group in the events created before events kept track of it, so that
+   * they can be found by getEventsPageFromGroup.
    *
-   * @param userId The id of the user that joins the group.
-   * @param groupId The id of the group that the user joined.
+   * @return The number of events updated.
    */
-  public void joinGroup(String userId, long groupId) {
-    joinEntity(userId, groupId, UserEntity.GROUPS_PROPERTY.getLabel());
-    addUserToEntity(
-        userId, groupId, GroupEntity.KIND.getLabel(), GroupEntity.STUDENTS_PROPERTY.getLabel());
+  public int addGroupToOldEvents() {
+    return runBackfill(Backfill.EVENT_GROUPS);
   }
 
   /**
-   * Joins the given event by adding the event id to the user's list of events. The list of
-   * attendees associated with the event should also be updated by including the new user.
+   * Stores the id of a group in its events created before events kept track of it (see
+   * addGroupToOldEvents).
    *
-   * @param userId The id of the user that joins the event.
-   * @param eventId The id of the event that the user joined.
+   * @param groupEntity The entity of the group.
+   * @return The number of events updated.
    */
-  public void joinEvent(String userId, long eventId) {
-    joinEntity(userId, eventId, UserEntity.EVENTS_PROPERTY.getLabel());
-    addUserToEntity(
-        userId, eventId, EventEntity.KIND.getLabel(), EventEntity.ATTENDEES_PROPERTY.getLabel());
+  private int addGroupToOldEvents(Entity groupEntity) {
+    List<Long> eventIds =
+        (ArrayList) (groupEntity.getProperty(GroupEntity.EVENTS_PROPERTY.getLabel()));
+    if (eventIds == null) {
+      return 0;
+    }
+
+    List<Entity> eventsToUpdate =
+        getEntitiesByIds(EventEntity.KIND.getLabel(), eventIds).stream()
+            .filter(entity -> !entity.hasProperty(EventEntity.GROUP_PROPERTY.getLabel()))
+            .collect(Collectors.toList());
+    for (Entity eventEntity : eventsToUpdate) {
+      eventEntity.setProperty(EventEntity.GROUP_PROPERTY.getLabel(), groupEntity.getKey().getId());
+    }
+    if (!eventsToUpdate.isEmpty()) {
+      datastore.put(eventsToUpdate);
+      eventsToUpdate.forEach(eventEntity -> groupsAndEvents.invalidate(eventEntity.getKey()));
+    }
+    return eventsToUpdate.size();
   }
 
   /**
-   * Gets the groups joined by the user.
+   * Adds the user to the database if they don't exist already. Called on every page load, so the
+   * users already seen by the instance are skipped without reading the database.
    *
-   * @param userId The id of the user.
-   * @return The list of the groups joined.
+   * @param userId The id of the user that will be added.
+   * @param name The name of the user that will be added.
    */
-  public List<Group> getJoinedGroups(String userId) {
-    Optional<Entity> user = getEntityByIdString(UserEntity.KIND.getLabel(), userId);
-    if (!user.isPresent()) {
-      return new ArrayList<>();
-    }
+  public void addUser(String userId, String name) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("addUser")) {
+      if (isUserRegistered(userId)) {
+        return;
+      }
 
-    List<Long> groupsIds =
-        (ArrayList) (user.get().getProperty(UserEntity.GROUPS_PROPERTY.getLabel()));
-    if (groupsIds == null) {
-      return new ArrayList<>();
+      Entity userEntity = new Entity(KeyFactory.createKey(UserEntity.KIND.getLabel(), userId));
+      userEntity.setProperty(UserEntity.NAME_PROPERTY.getLabel(), name);
+      userEntity.setProperty(UserEntity.GROUPS_PROPERTY.getLabel(), new ArrayList<Long>());
+      userEntity.setProperty(UserEntity.EVENTS_PROPERTY.getLabel(), new ArrayList<Long>());
+      datastore.put(userEntity);
+      registeredUsers.add(userId);
     }
-    return groupsIds.stream()
-        .map(
-            groupId ->
-                Group.createGroupFromEntity(getEntityById(GroupEntity.KIND.getLabel(), groupId)))
-        .collect(Collectors.toList());
   }
 
   /**
-   * Gets the events joined by the user.
+   * Joins the given entity by adding the entity id to the user's list of entities (The entities are
+   * defined by a label). Examples of entities: groups, events. The membership entity and the shard
+   * of the members counter are written in the same transaction, and only the user's entity group
+   * and one random shard are written, so concurrent joins of the same entity rarely contend. The
+   * transaction is retried (on a different shard) if it collides with another join anyway.
    *
-   * @param userId The id of the user.
-   * @return The list of the events joined.
+   * @param userId The id of the user that joins the entity.
+   * @param entity The entity that the user joins.
+   * @param entityLabel The label associated with this entity in the user entity.
+   * @return False if the user isn't registered, so nothing was joined.
+   * @throws ConcurrentModificationException If the join still collided after
+   *     MAX_TRANSACTION_ATTEMPTS.
    */
-  public List<Event> getJoinedEvents(String userId) {
-    Optional<Entity> user = getEntityByIdString(UserEntity.KIND.getLabel(), userId);
-    if (!user.isPresent()) {
-      return new ArrayList<>();
-    }
-
-    List<Long> eventsIds =
-        (ArrayList) (user.get().getProperty(UserEntity.EVENTS_PROPERTY.getLabel()));
-    if (eventsIds == null) {
-      return new ArrayList<>();
-    }
-    return eventsIds.stream()
-        .map(
-            eventId ->
-                Event.createEventFromEntity(getEntityById(EventEntity.KIND.getLabel(), eventId)))
-        .collect(Collectors.toList());
+  private boolean joinEntity(String userId, Entity entity, String entityLabel) {
+    return retryOnContention(
+        () -> {
+          try {
+            return tryToJoinEntity(userId, entity, entityLabel);
+          } catch (ConcurrentModificationException e) {
+            addCounterShards(getMembersCounterName(entity.getKey()));
+            throw e;
+          }
+        });
   }
 
   /**
-   * Gets only the groups that the user isn't part of already.
+   * Runs a transaction, running it again (after a short random pause) if it collides with another
+   * transaction, up to MAX_TRANSACTION_ATTEMPTS times.
    *
-   * @param userId The id of the user.
-   * @return The list of groups that the user didn't join yet.
+   * @param transaction The function that runs the whole transaction, from beginning to commit.
+   * @return The result of the transaction.
+   * @throws ConcurrentModificationException If the transaction still collided after
+   *     MAX_TRANSACTION_ATTEMPTS.
    */
-  public List<Group> getNotJoinedGroups(String userId) {
-    List<Group> groups = getAllGroups();
-    groups.removeAll(getJoinedGroups(userId));
-    return groups;
+  private static <T> T retryOnContention(Supplier<T> transaction) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return transaction.get();
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+        // A random pause spreads out the transactions that collided, so they don't collide again.
+        try {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(RETRY_DELAY_MILLIS * attempt));
+        } catch (InterruptedException interruption) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
   }
 
   /**
-   * Gets all the events in a certain group that the user had joined already.
+   * Makes a single attempt to join the given entity (see joinEntity).
    *
-   * @param groupId The id of the group.
-   * @param userId The id of the user.
+   * @param userId The id of the user that joins the entity.
+   * @param entity The entity that the user joins.
+   * @param entityLabel The label associated with this entity in the user entity.
+   * @return False if the user isn't registered, so nothing was joined.
+   * @throws ConcurrentModificationException If another transaction wrote the same entity groups.
+   */
+  private boolean tryToJoinEntity(String userId, Entity entity, String entityLabel) {
+    Key userKey = KeyFactory.createKey(UserEntity.KIND.getLabel(), userId);
+    Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      Entity userEntity;
+      try {
+        userEntity = datastore.get(transaction, userKey);
+      } catch (EntityNotFoundException e) {
+        return false;
+      }
+
+      long entityId = entity.getKey().getId();
+      List<Long> entitiesIds = (ArrayList) (userEntity.getProperty(entityLabel));
+      if (entitiesIds == null) {
+        entitiesIds = new ArrayList<>();
+      }
+      if (entitiesIds.contains(entityId)) {
+        return true;
+      }
+      entitiesIds.add(entityId);
+      userEntity.setProperty(entityLabel, entitiesIds);
+
+      List<Entity> entities = new ArrayList<>();
+      entities.add(userEntity);
+      entities.add(createMembershipEntity(userKey, entity.getKey()));
+      if (entity.getKind().equals(EventEntity.KIND.getLabel())) {
+        entities.add(createAttendanceEntity(userId, entity));
+      }
+      datastore.put(transaction, entities);
+      String counterName = getMembersCounterName(entity.getKey());
+      incrementCounter(transaction, counterName, 1);
+      transaction.commit();
+      counterValues.add(counterName, 1);
+      return true;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Creates the membership entity that records that the user joined a group or an event. The
+   * membership is a child of the user entity, named after the kind and the id of the entity.
+   *
+   * @param userKey The key of the user that joined the entity.
+   * @param entityKey The key of the entity joined.
+   * @return The membership entity.
+   */
+  private static Entity createMembershipEntity(Key userKey, Key entityKey) {
+    Entity membershipEntity =
+        new Entity(
+            KeyFactory.createKey(
+                userKey,
+                MembershipEntity.KIND.getLabel(),
+                entityKey.getKind() + ":" + entityKey.getId()));
+    membershipEntity.setProperty(
+        MembershipEntity.ENTITY_KIND_PROPERTY.getLabel(), entityKey.getKind());
+    membershipEntity.setProperty(MembershipEntity.ENTITY_ID_PROPERTY.getLabel(), entityKey.getId());
+    membershipEntity.setProperty(
+        MembershipEntity.JOINED_PROPERTY.getLabel(), System.currentTimeMillis());
+    return membershipEntity;
+  }
+
+  /**
+   * Creates the attendance entity that indexes the event by its start date among the events joined
+   * by the user. The attendance is a child of the user entity and its id is the id of the event.
+   *
+   * @param userId The id of the user that joined the event.
+   * @param eventEntity The entity of the event joined.
+   * @return The attendance entity.
+   */
+  private Entity createAttendanceEntity(String userId, Entity eventEntity) {
+    Key userKey = KeyFactory.createKey(UserEntity.KIND.getLabel(), userId);
+    Entity attendanceEntity =
+        new Entity(
+            KeyFactory.createKey(
+                userKey, AttendanceEntity.KIND.getLabel(), eventEntity.getKey().getId()));
+    attendanceEntity.setProperty(
+        AttendanceEntity.START_PROPERTY.getLabel(),
+        eventEntity.getProperty(EventEntity.START_PROPERTY.getLabel()));
+    return attendanceEntity;
+  }
+
+  /**
+   * Joins the given group by adding the group id to the user's list of groups. The membership of
+   * the user is stored and the number of students of the group is incremented as well.
+   *
+   * @param userId The id of the user that joins the group.
+   * @param groupId The id of the group that the user joined.
+   * @throws IllegalArgumentException If the group can't be found in the database.
+   */
+  public void joinGroup(String userId, long groupId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("joinGroup")) {
+      joinEntity(
+          userId,
+          getEntityById(GroupEntity.KIND.getLabel(), groupId),
+          UserEntity.GROUPS_PROPERTY.getLabel());
+    }
+  }
+
+  /**
+   * Joins the given event by adding the event id to the user's list of events. The membership and
+   * the attendance of the user are stored and the number of attendees of the event is incremented
+   * as well.
+   *
+   * @param userId The id of the user that joins the event.
+   * @param eventId The id of the event that the user joined.
+   * @throws IllegalArgumentException If the event can't be found in the database.
+   */
+  public void joinEvent(String userId, long eventId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("joinEvent")) {
+      joinEntity(
+          userId,
+          getEntityById(EventEntity.KIND.getLabel(), eventId),
+          UserEntity.EVENTS_PROPERTY.getLabel());
+    }
+  }
+
+  /**
+   * Creates the attendance entities of the events joined before attendances were stored, so that
+   * they show up in getJoinedEventsThatStartBetweenDates. Attendances that already exist are
+   * overwritten with the same values.
+   *
+   * @return The number of attendances stored.
+   */
+  public int addAttendancesOfOldJoins() {
+    return runBackfill(Backfill.ATTENDANCES);
+  }
+
+  /**
+   * Creates the attendance entities of the events a user joined before attendances were stored
+   * (see addAttendancesOfOldJoins).
+   *
+   * @param userEntity The entity of the user.
+   * @return The number of attendances stored.
+   */
+  private int addAttendancesOfOldJoins(Entity userEntity) {
+    List<Long> eventIds =
+        (ArrayList) (userEntity.getProperty(UserEntity.EVENTS_PROPERTY.getLabel()));
+    if (eventIds == null) {
+      return 0;
+    }
+
+    String userId = userEntity.getKey().getName();
+    List<Entity> attendances =
+        getEntitiesByIds(EventEntity.KIND.getLabel(), eventIds).stream()
+            .map(eventEntity -> createAttendanceEntity(userId, eventEntity))
+            .collect(Collectors.toList());
+    if (!attendances.isEmpty()) {
+      datastore.put(attendances);
+    }
+    return attendances.size();
+  }
+
+  /**
+   * Moves the students and attendees stored in the list properties of the groups and events (by the
+   * joins made before memberships were stored) to memberships and members counters, so that the
+   * groups and events no longer hold the lists. Can be called again safely: the memberships are
+   * just overwritten, and the lists are removed in the same transaction that adds them to the
+   * counters.
+   *
+   * @return The number of members moved.
+   */
+  public int moveOldMembersToMemberships() {
+    return runBackfill(Backfill.GROUP_MEMBERSHIPS) + runBackfill(Backfill.EVENT_MEMBERSHIPS);
+  }
+
+  /**
+   * Moves the members stored in a list property of a group or an event (see
+   * moveOldMembersToMemberships).
+   *
+   * @param entity The entity of the group or event.
+   * @param propertyName The name of the property that contains the ids of the earlier members.
+   * @return The number of members moved.
+   */
+  private int moveOldMembersToMemberships(Entity entity, String propertyName) {
+    List<String> membersIds = (ArrayList) (entity.getProperty(propertyName));
+    if (membersIds == null) {
+      return 0;
+    }
+
+    datastore.put(
+        membersIds.stream()
+            .map(
+                userId ->
+                    createMembershipEntity(
+                        KeyFactory.createKey(UserEntity.KIND.getLabel(), userId), entity.getKey()))
+            .collect(Collectors.toList()));
+    return retryOnContention(
+        () -> {
+          Transaction transaction =
+              datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+          try {
+            Entity currentEntity = datastore.get(transaction, entity.getKey());
+            List<String> currentMembersIds = (ArrayList) (currentEntity.getProperty(propertyName));
+            if (currentMembersIds == null) {
+              return 0;
+            }
+            incrementCounter(
+                transaction, getMembersCounterName(entity.getKey()), currentMembersIds.size());
+            currentEntity.removeProperty(propertyName);
+            datastore.put(transaction, currentEntity);
+            transaction.commit();
+            groupsAndEvents.invalidate(currentEntity.getKey());
+            return currentMembersIds.size();
+          } catch (EntityNotFoundException e) {
+            return 0;
+          } finally {
+            if (transaction.isActive()) {
+              transaction.rollback();
+            }
+          }
+        });
+  }
+
+  /**
+   * Runs a whole backfill in the calling request, only saving its progress once it is done. Only
+   * meant for small datastores (e.g. in tests); the app runs backfills in tasks (see
+   * startBackfillJob).
+   *
+   * @param backfill The backfill.
+   * @return The number of things the backfill stored or moved.
+   */
+  private int runBackfill(Backfill backfill) {
+    long now = System.currentTimeMillis();
+    BackfillJob job = new BackfillJob(backfill, null, 0, 0, 0, now, now, false);
+    while (!job.isDone()) {
+      job = runBackfillChunk(job, BACKFILL_CHUNK_SIZE);
+    }
+    saveBackfillJob(job);
+    return (int) job.getUpdatedEntities();
+  }
+
+  /**
+   * Checks if a backfill ran to its end (in a task or in a request). The result is cached by the
+   * instance once the backfill is done.
+   *
+   * @param backfill The backfill.
+   * @return True if the backfill is done.
+   */
+  public boolean isBackfillDone(Backfill backfill) {
+    if (doneBackfills.contains(backfill)) {
+      return true;
+    }
+    Optional<BackfillJob> job = getBackfillJob(backfill);
+    if (job.isPresent() && job.get().isDone()) {
+      doneBackfills.add(backfill);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gets the progress of a backfill, if it was ever started.
+   *
+   * @param backfill The backfill.
+   * @return An Optional object that contains the progress of the backfill.
+   */
+  public Optional<BackfillJob> getBackfillJob(Backfill backfill) {
+    return getEntityByKey(getBackfillJobKey(backfill))
+        .map(BackfillJob::createBackfillJobFromEntity);
+  }
+
+  /**
+   * Starts a backfill from the first entity of its kind, replacing its previous progress (if there
+   * is one). The entities are only scanned by the following calls of runNextBackfillChunk.
+   *
+   * @param backfill The backfill.
+   * @return The progress of the new backfill.
+   */
+  public BackfillJob startBackfillJob(Backfill backfill) {
+    long now = System.currentTimeMillis();
+    BackfillJob job = new BackfillJob(backfill, null, 0, 0, 0, now, now, false);
+    saveBackfillJob(job);
+    return job;
+  }
+
+  /**
+   * Scans the next chunk of entities of a backfill and checkpoints its progress in the datastore,
+   * so that it can be resumed from the next chunk by any instance. The checkpoint is kept, marked
+   * as done, once all the entities are scanned.
+   *
+   * @param job The progress of the backfill.
+   * @param chunkSize The maximum number of entities scanned.
+   * @return The progress of the backfill after scanning the chunk.
+   * @throws IllegalArgumentException If the cursor of the backfill is not valid.
+   */
+  public BackfillJob runNextBackfillChunk(BackfillJob job, int chunkSize) {
+    BackfillJob nextJob = runBackfillChunk(job, chunkSize);
+    saveBackfillJob(nextJob);
+    return nextJob;
+  }
+
+  /**
+   * Scans the next chunk of entities of a backfill, with a query that continues from the cursor of
+   * the backfill, and updates each of them.
+   *
+   * @param job The progress of the backfill.
+   * @param chunkSize The maximum number of entities scanned.
+   * @return The progress of the backfill after scanning the chunk.
+   */
+  private BackfillJob runBackfillChunk(BackfillJob job, int chunkSize) {
+    Backfill backfill = job.getBackfill();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(chunkSize);
+    if (job.getCursor().isPresent()) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(job.getCursor().get()));
+    }
+
+    QueryResultList<Entity> results =
+        datastore.prepare(new Query(backfill.getScannedKind())).asQueryResultList(fetchOptions);
+    long updatedEntities = 0;
+    for (Entity entity : results) {
+      switch (backfill) {
+        case GROUP_NAMES:
+          updatedEntities += addNameOfOldGroup(entity);
+          break;
+        case EVENT_GROUPS:
+          updatedEntities += addGroupToOldEvents(entity);
+          break;
+        case ATTENDANCES:
+          updatedEntities += addAttendancesOfOldJoins(entity);
+          break;
+        case GROUP_MEMBERSHIPS:
+          updatedEntities +=
+              moveOldMembersToMemberships(entity, GroupEntity.STUDENTS_PROPERTY.getLabel());
+          break;
+        case EVENT_MEMBERSHIPS:
+          updatedEntities +=
+              moveOldMembersToMemberships(entity, EventEntity.ATTENDEES_PROPERTY.getLabel());
+          break;
+        case MESSAGE_EXPIRY_SLOTS:
+          updatedEntities += addExpirySlotToOldMessage(entity);
+          break;
+      }
+    }
+
+    return new BackfillJob(
+        backfill,
+        results.getCursor().toWebSafeString(),
+        job.getScannedEntities() + results.size(),
+        job.getUpdatedEntities() + updatedEntities,
+        job.getChunks() + 1,
+        job.getStartedAt(),
+        System.currentTimeMillis(),
+        results.size() < chunkSize);
+  }
+
+  private void saveBackfillJob(BackfillJob job) {
+    Entity jobEntity = new Entity(getBackfillJobKey(job.getBackfill()));
+    if (job.getCursor().isPresent()) {
+      jobEntity.setProperty(
+          BackfillJobEntity.CURSOR_PROPERTY.getLabel(), new Text(job.getCursor().get()));
+    }
+    jobEntity.setProperty(BackfillJobEntity.SCANNED_PROPERTY.getLabel(), job.getScannedEntities());
+    jobEntity.setProperty(
+        BackfillJobEntity.UPDATED_ENTITIES_PROPERTY.getLabel(), job.getUpdatedEntities());
+    jobEntity.setProperty(BackfillJobEntity.CHUNKS_PROPERTY.getLabel(), job.getChunks());
+    jobEntity.setProperty(BackfillJobEntity.STARTED_PROPERTY.getLabel(), job.getStartedAt());
+    jobEntity.setProperty(BackfillJobEntity.UPDATED_PROPERTY.getLabel(), job.getUpdatedAt());
+    jobEntity.setProperty(BackfillJobEntity.DONE_PROPERTY.getLabel(), job.isDone());
+    datastore.put(jobEntity);
+  }
+
+  private static Key getBackfillJobKey(Backfill backfill) {
+    return KeyFactory.createKey(BackfillJobEntity.KIND.getLabel(), backfill.getName());
+  }
+
+  /**
+   * Gets the groups joined by the user, reusing the entities already read during their request.
+   *
+   * @param user The context of the request.
+   * @return The list of the groups joined (the groups that can't be found are left out).
+   */
+  public List<Group> getJoinedGroups(UserContext user) {
+    return getJoinedEntities(
+            user, UserEntity.GROUPS_PROPERTY.getLabel(), GroupEntity.KIND.getLabel())
+        .stream()
+        .map(Group::createGroupFromEntity)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the summaries of the groups joined by the user, reusing the entities already read during
+   * their request.
+   *
+   * @param user The context of the request.
+   * @return The list of the summaries of the groups joined (the groups that can't be found are left
+   *     out).
+   */
+  public List<GroupSummary> getJoinedGroupSummaries(UserContext user) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getJoinedGroupSummaries")) {
+      List<Entity> groupEntities =
+          getJoinedEntities(
+              user, UserEntity.GROUPS_PROPERTY.getLabel(), GroupEntity.KIND.getLabel());
+      Map<Key, Integer> studentsCounts =
+          getMembersCounts(groupEntities, GroupEntity.STUDENTS_PROPERTY.getLabel());
+      return groupEntities.stream()
+          .map(
+              entity ->
+                  GroupSummary.createGroupSummaryFromEntity(
+                      entity, studentsCounts.get(entity.getKey()), true))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Gets the events joined by the user, reusing the entities already read during their request.
+   *
+   * @param user The context of the request.
+   * @return The list of the events joined (the events that can't be found are left out).
+   */
+  public List<Event> getJoinedEvents(UserContext user) {
+    return getJoinedEntities(
+            user, UserEntity.EVENTS_PROPERTY.getLabel(), EventEntity.KIND.getLabel())
+        .stream()
+        .map(Event::createEventFromEntity)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the entities whose ids are stored in one of the user's properties (e.g. the joined
+   * groups), reusing the entities already read during their request.
+   *
+   * @param user The context of the request.
+   * @param propertyName The name of the user property that contains the ids.
+   * @param kind The kind of the entities.
+   * @return The list of entities found.
+   */
+  private List<Entity> getJoinedEntities(UserContext user, String propertyName, String kind) {
+    return getEntitiesByIds(user, kind, getUserIds(user, propertyName));
+  }
+
+  /**
+   * Gets all the events in a certain group that the user had joined already.
+   *
+   * @param groupId The id of the group.
+   * @param user The context of the request.
    * @return The list of events that the user had joined already.
    */
-  public List<Event> getAllJoinedEventsFromGroup(long groupId, String userId) {
-    List<Event> events = getAllEventsFromGroup(groupId);
-    events.retainAll(getJoinedEvents(userId));
+  public List<Event> getAllJoinedEventsFromGroup(long groupId, UserContext user) {
+    LongIdSet joinedEventsIds = getUserIdsSet(user, UserEntity.EVENTS_PROPERTY.getLabel());
+    List<Event> events = getAllEventsFromGroup(user, groupId);
+    events.removeIf(event -> !joinedEventsIds.contains(event.getId()));
     return events;
   }
 
@@ -427,12 +1501,13 @@ public class DatastoreAccess {
    * Gets all the events in a certain group that the user didn't join yet.
    *
    * @param groupId The id of the group.
-   * @param userId The id of the user.
+   * @param user The context of the request.
    * @return The list of events that the user didn't join yet.
    */
-  public List<Event> getAllNotJoinedEventsFromGroup(long groupId, String userId) {
-    List<Event> events = getAllEventsFromGroup(groupId);
-    events.removeAll(getJoinedEvents(userId));
+  public List<Event> getAllNotJoinedEventsFromGroup(long groupId, UserContext user) {
+    LongIdSet joinedEventsIds = getUserIdsSet(user, UserEntity.EVENTS_PROPERTY.getLabel());
+    List<Event> events = getAllEventsFromGroup(user, groupId);
+    events.removeIf(event -> joinedEventsIds.contains(event.getId()));
     return events;
   }
 
@@ -450,22 +1525,109 @@ public class DatastoreAccess {
    */
   public List<Event> getJoinedEventsThatStartBetweenDates(
       long beginningDate, long endingDate, String userId) {
-    List<Event> joinedEvents = getJoinedEvents(userId);
-    Query query = new Query(EventEntity.KIND.getLabel());
+    return getJoinedEventsThatStartBetweenDates(
+        beginningDate, endingDate, new UserContext(userId));
+  }
+
+  /**
+   * Gets all the events joined by the user whose start date is in the interval [beginningDate,
+   * endingDate).
+   *
+   * @param beginningDate The inclusive lower bound value of the interval used to filter the events
+   *     by their start date.
+   * @param endingDate The exclusive upper bound value of the interval used to filter the events by
+   *     their start date.
+   * @param user The context of the request.
+   * @return A list of the events joined by the user whose start date is in the interval
+   *     [beginningDate, endingDate).
+   */
+  public List<Event> getJoinedEventsThatStartBetweenDates(
+      long beginningDate, long endingDate, UserContext user) {
+    return getJoinedEventEntitiesThatStartBetweenDates(beginningDate, endingDate, user).stream()
+        .map(Event::createEventFromEntity)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the summaries of all the events joined by the user whose start date is in the interval
+   * [beginningDate, endingDate).
+   *
+   * @param beginningDate The inclusive lower bound value of the interval used to filter the events
+   *     by their start date.
+   * @param endingDate The exclusive upper bound value of the interval used to filter the events by
+   *     their start date.
+   * @param user The context of the request.
+   * @return A list of the summaries of the events joined by the user whose start date is in the
+   *     interval [beginningDate, endingDate).
+   */
+  public List<EventSummary> getJoinedEventSummariesThatStartBetweenDates(
+      long beginningDate, long endingDate, UserContext user) {
+    try (RequestTrace.Span span =
+        RequestTrace.startSpan("getJoinedEventSummariesThatStartBetweenDates")) {
+      return createEventSummaries(
+          getJoinedEventEntitiesThatStartBetweenDates(beginningDate, endingDate, user), true);
+    }
+  }
+
+  /**
+   * Creates the summaries of the given events, reading the counters of their attendees and messages
+   * together (see getCounterValues).
+   *
+   * @param eventEntities The entities of the events.
+   * @param joined True if the user joined the events.
+   * @return The summaries of the events, in the same order.
+   */
+  private List<EventSummary> createEventSummaries(List<Entity> eventEntities, boolean joined) {
+    List<String> counterNames = new ArrayList<>();
+    for (Entity eventEntity : eventEntities) {
+      counterNames.add(getMembersCounterName(eventEntity.getKey()));
+      counterNames.add(getMessagesCounterName(eventEntity.getKey().getId()));
+    }
+    Map<String, Long> values = getCounterValues(counterNames);
+
+    return eventEntities.stream()
+        .map(
+            entity ->
+                EventSummary.createEventSummaryFromEntity(
+                    entity,
+                    getMembersCount(entity, EventEntity.ATTENDEES_PROPERTY.getLabel(), values),
+                    values.get(getMessagesCounterName(entity.getKey().getId())).intValue(),
+                    joined))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the entities of the events joined by the user whose start date is in the interval
+   * [beginningDate, endingDate), ordered by their start date. The interval is scanned among the
+   * user's attendances only (with a keys-only ancestor query), so other users' events are never
+   * touched, and the joined events are then read in a batch get.
+   *
+   * @param beginningDate The inclusive lower bound of the start date.
+   * @param endingDate The exclusive upper bound of the start date.
+   * @param user The context of the request.
+   * @return The list of event entities.
+   */
+  private List<Entity> getJoinedEventEntitiesThatStartBetweenDates(
+      long beginningDate, long endingDate, UserContext user) {
+    Query query =
+        new Query(AttendanceEntity.KIND.getLabel()).setAncestor(user.getUserKey()).setKeysOnly();
     query.setFilter(
         new CompositeFilter(
             CompositeFilterOperator.AND,
             Arrays.asList(
                 new FilterPredicate(
-                    EventEntity.START_PROPERTY.getLabel(),
+                    AttendanceEntity.START_PROPERTY.getLabel(),
                     FilterOperator.GREATER_THAN_OR_EQUAL,
                     beginningDate),
                 new FilterPredicate(
-                    EventEntity.START_PROPERTY.getLabel(), FilterOperator.LESS_THAN, endingDate))));
-    return StreamSupport.stream(datastore.prepare(query).asIterable().spliterator(), false)
-        .map(entity -> Event.createEventFromEntity(entity))
-        .filter(event -> joinedEvents.contains(event))
-        .collect(Collectors.toList());
+                    AttendanceEntity.START_PROPERTY.getLabel(),
+                    FilterOperator.LESS_THAN,
+                    endingDate))));
+    List<Long> eventsIds =
+        StreamSupport.stream(datastore.prepare(query).asIterable().spliterator(), false)
+            .map(entity -> entity.getKey().getId())
+            .collect(Collectors.toList());
+    return getEntitiesByIds(user, EventEntity.KIND.getLabel(), eventsIds);
   }
 
   /**
@@ -476,101 +1638,899 @@ public class DatastoreAccess {
    * @return The list of messages.
    */
   public List<Message> getMessagesFromEvent(long eventId, int limit) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getMessagesFromEvent")) {
+      Long version = loadRecentMessages(eventId);
+      Optional<List<Message>> cachedMessages =
+          recentMessages.getFirstMessages(eventId, version, limit);
+      countRecentMessagesLookup(cachedMessages.isPresent());
+      if (cachedMessages.isPresent()) {
+        return cachedMessages.get();
+      }
+
+      Query query = new Query(MessageEntity.KIND.getLabel());
+      query.addSort(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), SortDirection.ASCENDING);
+      query.setFilter(
+          new FilterPredicate(
+              MessageEntity.EVENT_PROPERTY.getLabel(), FilterOperator.EQUAL, eventId));
+
+      PreparedQuery results = datastore.prepare(query);
+      FetchOptions maxMessages = FetchOptions.Builder.withLimit(limit);
+      List<Message> messages = new ArrayList<>();
+      for (Entity entity : results.asIterable(maxMessages)) {
+        messages.add(Message.createMessageFromEntity(entity));
+      }
+
+      return messages;
+    }
+  }
+
+  /**
+   * Gets the messages in a certain event that come after the given cursor, preceded by the
+   * messages of the MESSAGE_OVERLAP_MILLIS before it. The messages are ordered by their timestamp
+   * and then by their id, so the cursor is the (timestamp, id) pair of the last message the caller
+   * has already seen. A message that became visible after newer ones is sent with the overlap, so
+   * the caller has to skip the messages it already has (by id).
+   *
+   * @param eventId The id of the event.
+   * @param lastTimestamp The timestamp of the last message already seen.
+   * @param lastMessageId The id of the last message already seen.
+   * @param limit The maximum number of messages after the cursor to return.
+   * @return The list of messages of the overlap, then the messages that come after the cursor.
+   */
+  public List<Message> getMessagesFromEventAfter(
+      long eventId, long lastTimestamp, long lastMessageId, int limit) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getMessagesFromEventAfter")) {
+      long overlapStart = lastTimestamp - MESSAGE_OVERLAP_MILLIS;
+      Long version = loadRecentMessages(eventId);
+      // The cursor just before the first message of the overlap.
+      Optional<List<Message>> cachedMessages =
+          recentMessages.getMessagesAfter(
+              eventId, version, overlapStart - 1, Long.MAX_VALUE, Integer.MAX_VALUE);
+      countRecentMessagesLookup(cachedMessages.isPresent());
+      if (cachedMessages.isPresent()) {
+        return limitMessagesAfter(
+            cachedMessages.get().iterator(), lastTimestamp, lastMessageId, limit);
+      }
+
+      Query query = new Query(MessageEntity.KIND.getLabel());
+      query.addSort(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), SortDirection.ASCENDING);
+      query.addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+      query.setFilter(
+          new CompositeFilter(
+              CompositeFilterOperator.AND,
+              Arrays.asList(
+                  new FilterPredicate(
+                      MessageEntity.EVENT_PROPERTY.getLabel(), FilterOperator.EQUAL, eventId),
+                  new FilterPredicate(
+                      MessageEntity.TIMESTAMP_PROPERTY.getLabel(),
+                      FilterOperator.GREATER_THAN_OR_EQUAL,
+                      overlapStart))));
+
+      Iterable<Entity> entities =
+          datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(limit));
+      return limitMessagesAfter(
+          StreamSupport.stream(entities.spliterator(), false)
+              .map(Message::createMessageFromEntity)
+              .iterator(),
+          lastTimestamp,
+          lastMessageId,
+          limit);
+    }
+  }
+
+  /**
+   * Selects, among the messages read for an earlier cursor of the same event (see
+   * getMessagesFromEventAfter), the ones that would be read for the given cursor, so that the
+   * requests waiting on an event can share a single read.
+   *
+   * @param messages The messages read for a cursor that doesn't come after the given one.
+   * @param lastTimestamp The timestamp of the last message already seen.
+   * @param lastMessageId The id of the last message already seen.
+   * @param limit The maximum number of messages after the cursor to return.
+   * @return The list of messages of the overlap, then the messages that come after the cursor.
+   */
+  public static List<Message> selectMessagesAfter(
+      List<Message> messages, long lastTimestamp, long lastMessageId, int limit) {
+    long overlapStart = lastTimestamp - MESSAGE_OVERLAP_MILLIS;
+    return limitMessagesAfter(
+        messages.stream().filter(message -> message.getTimestamp() >= overlapStart).iterator(),
+        lastTimestamp,
+        lastMessageId,
+        limit);
+  }
+
+  /**
+   * Collects ordered messages until the given number of messages after a cursor is reached, so
+   * that the messages are only read as far as needed.
+   *
+   * @param messages The messages, ordered by timestamp and id.
+   * @param lastTimestamp The timestamp of the cursor.
+   * @param lastMessageId The id of the cursor.
+   * @param limit The maximum number of messages after the cursor.
+   * @return The messages before the cursor, then at most limit messages after it.
+   */
+  private static List<Message> limitMessagesAfter(
+      Iterator<Message> messages, long lastTimestamp, long lastMessageId, int limit) {
+    List<Message> limitedMessages = new ArrayList<>();
+    int messagesAfterCursor = 0;
+    while (messages.hasNext() && messagesAfterCursor < limit) {
+      Message message = messages.next();
+      limitedMessages.add(message);
+      if (message.isAfter(lastTimestamp, lastMessageId)) {
+        messagesAfterCursor++;
+      }
+    }
+    return limitedMessages;
+  }
+
+  private static void countRecentMessagesLookup(boolean hit) {
+    metrics.countCacheLookups("recent_messages", hit ? 1 : 0, hit ? 0 : 1);
+  }
+
+  /**
+   * Loads the newest messages of an event in the in-memory cache, if they aren't already cached at
+   * the current version of the event. The version is read before the messages, so a message
+   * written during the load makes the loaded buffer stale. A stale buffer (e.g. after another
+   * instance wrote to the event) is caught up with the messages after its newest one, and only
+   * loaded again if too many messages were written since.
+   *
+   * @param eventId The id of the event.
+   * @return The current version of the event, or null if the cache can't be used.
+   */
+  private Long loadRecentMessages(long eventId) {
+    Long version = recentMessages.getVersion(eventId);
+    if (version == null || recentMessages.isLoaded(eventId, version)) {
+      return version;
+    }
+
+    int capacity = recentMessages.getMessagesPerEvent();
+    Optional<Message> newestMessage = recentMessages.getNewestMessage(eventId);
+    if (newestMessage.isPresent()) {
+      // The overlap before the newest message may hold messages that became visible after it.
+      List<Message> newMessages =
+          readMessages(
+              eventId,
+              newestMessage.get().getTimestamp() - MESSAGE_OVERLAP_MILLIS,
+              SortDirection.ASCENDING,
+              capacity);
+      if (newMessages.size() < capacity) {
+        recentMessages.catchUp(eventId, version, newestMessage.get(), newMessages);
+        return version;
+      }
+    }
+
+    List<Message> messages =
+        readMessages(eventId, Long.MIN_VALUE, SortDirection.DESCENDING, capacity);
+    Collections.reverse(messages);
+    recentMessages.load(eventId, version, messages, messages.size() < capacity);
+    return version;
+  }
+
+  /**
+   * Reads the messages of an event from the given timestamp, ordered by timestamp and id.
+   *
+   * @param eventId The id of the event.
+   * @param fromTimestamp The inclusive lower bound of the timestamp of the messages.
+   * @param direction The direction of the order (descending to read the newest messages).
+   * @param limit The maximum number of messages to read.
+   * @return The list of messages, in the given order.
+   */
+  private List<Message> readMessages(
+      long eventId, long fromTimestamp, SortDirection direction, int limit) {
     Query query = new Query(MessageEntity.KIND.getLabel());
-    query.addSort(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), SortDirection.ASCENDING);
-    query.setFilter(
-        new FilterPredicate(
-            MessageEntity.EVENT_PROPERTY.getLabel(), FilterOperator.EQUAL, eventId));
+    query.addSort(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), direction);
+    query.addSort(Entity.KEY_RESERVED_PROPERTY, direction);
+    Filter eventFilter =
+        new FilterPredicate(MessageEntity.EVENT_PROPERTY.getLabel(), FilterOperator.EQUAL, eventId);
+    if (fromTimestamp == Long.MIN_VALUE) {
+      query.setFilter(eventFilter);
+    } else {
+      query.setFilter(
+          new CompositeFilter(
+              CompositeFilterOperator.AND,
+              Arrays.asList(
+                  eventFilter,
+                  new FilterPredicate(
+                      MessageEntity.TIMESTAMP_PROPERTY.getLabel(),
+                      FilterOperator.GREATER_THAN_OR_EQUAL,
+                      fromTimestamp))));
+    }
 
-    PreparedQuery results = datastore.prepare(query);
-    FetchOptions maxMessages = FetchOptions.Builder.withLimit(limit);
     List<Message> messages = new ArrayList<>();
-    for (Entity entity : results.asIterable(maxMessages)) {
+    for (Entity entity :
+        datastore.prepare(query).asIterable(FetchOptions.Builder.withLimit(limit))) {
       messages.add(Message.createMessageFromEntity(entity));
     }
-
     return messages;
   }
 
   /**
-   * Adds a new message to an event (atomic).
+   * Adds a new message to an event (atomic). The messages added concurrently on the instance are
+   * written together in batches, and the method returns once the message is stored.
    *
    * @param eventId The id of the event associated with the message.
    * @param content The content of message that will be added.
    * @param author The author of the message that will be added.
+   * @return The message that was added.
+   * @throws RejectedExecutionException If too many messages are already waiting to be written.
+   */
+  public Message addMessage(long eventId, String content, String author) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("addMessage")) {
+      long timestamp = System.currentTimeMillis();
+      Entity messageEntity = new Entity(MessageEntity.KIND.getLabel());
+      messageEntity.setProperty(MessageEntity.CONTENT_PROPERTY.getLabel(), content);
+      messageEntity.setProperty(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), timestamp);
+      messageEntity.setProperty(MessageEntity.AUTHOR_PROPERTY.getLabel(), author);
+      messageEntity.setProperty(MessageEntity.EVENT_PROPERTY.getLabel(), eventId);
+      messageEntity.setProperty(
+          MessageEntity.EXPIRY_SLOT_PROPERTY.getLabel(), getExpirySlot(eventId, timestamp));
+      messageWriter.write(messageEntity);
+      return Message.createMessageFromEntity(messageEntity);
+    }
+  }
+
+  /**
+   * Writes a batch of new messages and adds them to the cache of recent messages. The writers of
+   * the messages are acknowledged right after this, before the messages are counted (see
+   * countMessages).
+   *
+   * @param messageEntities The entities of the messages.
+   */
+  private void writeMessages(List<Entity> messageEntities) {
+    datastore.put(messageEntities);
+
+    Map<Long, List<Message>> messagesByEvent = new HashMap<>();
+    for (Entity messageEntity : messageEntities) {
+      long eventId = (long) messageEntity.getProperty(MessageEntity.EVENT_PROPERTY.getLabel());
+      messagesByEvent
+          .computeIfAbsent(eventId, id -> new ArrayList<>())
+          .add(Message.createMessageFromEntity(messageEntity));
+    }
+    for (Map.Entry<Long, List<Message>> eventMessages : messagesByEvent.entrySet()) {
+      recentMessages.add(eventMessages.getKey(), eventMessages.getValue());
+    }
+  }
+
+  /**
+   * Counts a batch of stored messages: adds them to the cached values of the messages counters of
+   * their events, and enqueues a task per event that increments its counter (see
+   * incrementMessagesCounter). The tasks are added with a single call, so the request that wrote
+   * the batch doesn't wait for the transactions of the counters. The counters are never
+   * decremented: expired and purged messages are deleted by their keys alone, without reading
+   * their event, so a counter holds the number of messages ever sent to its event.
+   *
+   * @param messageEntities The entities of the messages.
+   */
+  private void countMessages(List<Entity> messageEntities) {
+    Map<Long, Long> messagesCounts = new HashMap<>();
+    for (Entity messageEntity : messageEntities) {
+      long eventId = (long) messageEntity.getProperty(MessageEntity.EVENT_PROPERTY.getLabel());
+      messagesCounts.merge(eventId, 1L, Long::sum);
+    }
+
+    List<TaskOptions> tasks = new ArrayList<>();
+    for (Map.Entry<Long, Long> messagesCount : messagesCounts.entrySet()) {
+      counterValues.add(getMessagesCounterName(messagesCount.getKey()), messagesCount.getValue());
+      tasks.add(
+          TaskOptions.Builder.withUrl(COUNT_MESSAGES_TASK_URL)
+              .param(COUNT_MESSAGES_EVENT_PARAMETER, Long.toString(messagesCount.getKey()))
+              .param(COUNT_MESSAGES_COUNT_PARAMETER, Long.toString(messagesCount.getValue()))
+              .method(TaskOptions.Method.POST));
+    }
+    QueueFactory.getDefaultQueue().add(tasks);
+  }
+
+  /**
+   * Increments the messages counter of an event by the messages of a written batch (see
+   * countMessages). The cached value of the counter isn't changed, since the instance that wrote
+   * the messages already counted them. The transaction is retried (on a different shard) if it
+   * collides with another increment.
+   *
+   * @param eventId The id of the event.
+   * @param count The number of messages written.
+   * @throws ConcurrentModificationException If the increment still collided after
+   *     MAX_TRANSACTION_ATTEMPTS (the task that called it is then retried by the queue).
+   */
+  public void incrementMessagesCounter(long eventId, long count) {
+    String counterName = getMessagesCounterName(eventId);
+    retryOnContention(
+        () -> {
+          Transaction transaction = datastore.beginTransaction();
+          try {
+            incrementCounter(transaction, counterName, count);
+            transaction.commit();
+            return null;
+          } catch (ConcurrentModificationException e) {
+            addCounterShards(counterName);
+            throw e;
+          } finally {
+            if (transaction.isActive()) {
+              transaction.rollback();
+            }
+          }
+        });
+  }
+
+  /**
+   * Gets the expiry slot of a message: the first slot that starts after the retention of the
+   * message ends.
+   *
+   * @param eventId The id of the event of the message.
+   * @param timestamp The time the message was sent.
+   * @return The index of the slot.
+   */
+  private long getExpirySlot(long eventId, long timestamp) {
+    return getExpirySlot(getRetentionPolicy(eventId), timestamp);
+  }
+
+  /** Gets the expiry slot of a message, given the retention policy of its event. */
+  private static long getExpirySlot(RetentionPolicy policy, long timestamp) {
+    long expiryTime = policy.getExpiryTime(timestamp);
+    return (expiryTime + EXPIRY_SLOT_MILLIS - 1) / EXPIRY_SLOT_MILLIS;
+  }
+
+  /**
+   * Stores the expiry slot of the messages sent before messages had one, so that they expire with
+   * the retention of their event like the other messages (see deleteExpiredMessages). The slots of
+   * messages whose retention already ended have started, so the next expiry tick deletes them.
+   *
+   * @return The number of messages updated.
+   */
+  public int addExpirySlotsToOldMessages() {
+    return runBackfill(Backfill.MESSAGE_EXPIRY_SLOTS);
+  }
+
+  /**
+   * Stores the expiry slot of a message sent before messages had one (see
+   * addExpirySlotsToOldMessages).
+   *
+   * @param messageEntity The entity of the message.
+   * @return 1 if the slot was stored, 0 if the message already had one.
    */
-  public void addMessage(long eventId, String content, String author) {
-    long timestamp = System.currentTimeMillis();
-    Entity messageEntity = new Entity(MessageEntity.KIND.getLabel());
-    messageEntity.setProperty(MessageEntity.CONTENT_PROPERTY.getLabel(), content);
-    messageEntity.setProperty(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), timestamp);
-    messageEntity.setProperty(MessageEntity.AUTHOR_PROPERTY.getLabel(), author);
-    messageEntity.setProperty(MessageEntity.EVENT_PROPERTY.getLabel(), eventId);
+  private int addExpirySlotToOldMessage(Entity messageEntity) {
+    if (messageEntity.hasProperty(MessageEntity.EXPIRY_SLOT_PROPERTY.getLabel())) {
+      return 0;
+    }
+
+    long eventId = (long) messageEntity.getProperty(MessageEntity.EVENT_PROPERTY.getLabel());
+    long timestamp = (long) messageEntity.getProperty(MessageEntity.TIMESTAMP_PROPERTY.getLabel());
+    messageEntity.setProperty(
+        MessageEntity.EXPIRY_SLOT_PROPERTY.getLabel(), getExpirySlot(eventId, timestamp));
     datastore.put(messageEntity);
+    return 1;
   }
 
   /**
-   * Checks if the user is part of the given property associated with the entity identified by its
-   * type and its id.
+   * Gets the retention policy of the messages of an event, reading the event only if its policy
+   * isn't cached yet. The messages of events that can't be found are kept for the default
+   * retention after they are sent.
    *
-   * @param userId The id of the user.
+   * @param eventId The id of the event.
+   * @return The retention policy.
+   */
+  private RetentionPolicy getRetentionPolicy(long eventId) {
+    RetentionPolicy policy = retentionPolicies.get(eventId);
+    if (policy != null) {
+      return policy;
+    }
+
+    Optional<Entity> eventEntity =
+        getEntityByKey(KeyFactory.createKey(EventEntity.KIND.getLabel(), eventId));
+    if (!eventEntity.isPresent()) {
+      // Cached too, so messages sent to a missing event don't read it every time.
+      policy = new RetentionPolicy(0, DEFAULT_RETENTION_HOURS);
+    } else {
+      long endTime = (long) eventEntity.get().getProperty(EventEntity.END_PROPERTY.getLabel());
+      Long retentionHours =
+          (Long) eventEntity.get().getProperty(EventEntity.RETENTION_PROPERTY.getLabel());
+      policy =
+          new RetentionPolicy(
+              endTime,
+              (retentionHours != null) ? retentionHours.intValue() : DEFAULT_RETENTION_HOURS);
+    }
+    retentionPolicies.put(eventId, policy);
+    return policy;
+  }
+
+  /**
+   * Deletes the messages whose expiry slot has started. Called on every tick of the expiry cron,
+   * this only finds the messages of the slot that expired since the previous tick (or of the slots
+   * left over by a tick that ran out of time). Only the keys of the messages are read, and they are
+   * deleted in chunks of MESSAGES_PER_PURGE_CHUNK.
+   *
+   * @param maxMillis The time after which no other chunk is deleted.
+   * @return The number of messages deleted.
+   */
+  public int deleteExpiredMessages(long maxMillis) {
+    long start = System.currentTimeMillis();
+    long currentSlot = start / EXPIRY_SLOT_MILLIS;
+    Query query = new Query(MessageEntity.KIND.getLabel()).setKeysOnly();
+    query.setFilter(
+        new FilterPredicate(
+            MessageEntity.EXPIRY_SLOT_PROPERTY.getLabel(),
+            FilterOperator.LESS_THAN_OR_EQUAL,
+            currentSlot));
+
+    int deletedMessages = 0;
+    List<Key> messagesToBeDeleted;
+    do {
+      messagesToBeDeleted =
+          datastore.prepare(query)
+              .asList(FetchOptions.Builder.withLimit(MESSAGES_PER_PURGE_CHUNK))
+              .stream()
+              .map(Entity::getKey)
+              .collect(Collectors.toList());
+      if (!messagesToBeDeleted.isEmpty()) {
+        datastore.delete(messagesToBeDeleted);
+        deletedMessages += messagesToBeDeleted.size();
+      }
+    } while (messagesToBeDeleted.size() == MESSAGES_PER_PURGE_CHUNK
+        && System.currentTimeMillis() - start < maxMillis);
+
+    if (deletedMessages > 0) {
+      // Only the keys of the messages were read, so the cached messages of every event are checked
+      // against the retention of their event (read before, as the cache is locked meanwhile).
+      Map<Long, RetentionPolicy> policies = new HashMap<>();
+      for (long eventId : recentMessages.getEventIds()) {
+        policies.put(eventId, getRetentionPolicy(eventId));
+      }
+      recentMessages.removeOldestMessages(
+          message -> {
+            RetentionPolicy policy = policies.get(message.getEvent());
+            return policy != null
+                && getExpirySlot(policy, message.getTimestamp()) <= currentSlot;
+          });
+    }
+    return deletedMessages;
+  }
+
+  /**
+   * Checks if the user joined the entity with the given id, using the list of joined entities of
+   * the user. Unlike the list of members of the entity, this list only changes when the user joins
+   * something, so it stays small and is read at most once during the user's request.
+   *
+   * @param user The context of the request.
    * @param entityId The id of the entity.
-   * @param entityKind The entity kind label (e.g. group, event).
-   * @param propertyName The name of the property that could contain the user id.
-   * @return True if the user is part of the property.
+   * @param entityLabel The label associated with this kind of entity in the user entity.
+   * @return True if the user joined the entity.
    */
-  private boolean isPartOfEntity(
-      String userId, long entityId, String entityKind, String propertyName) {
-    Entity entity = getEntityById(entityKind, entityId);
-    List<String> usersIds = (ArrayList) (entity.getProperty(propertyName));
-    return (usersIds != null) && usersIds.contains(userId);
+  private boolean isPartOfEntity(UserContext user, long entityId, String entityLabel) {
+    return getUserIdsSet(user, entityLabel).contains(entityId);
   }
 
   /**
-   * Checks if the user is a member of the specified group.
+   * Checks if the user is a member of the specified group. The user is read at most once during
+   * the user's request.
    *
-   * @param userId The id of the user.
+   * @param user The context of the request.
    * @param groupId The id of the group.
    * @return True if the user is a member of the group.
    */
-  public boolean isMemberOfGroup(String userId, long groupId) {
-    return isPartOfEntity(
-        userId, groupId, GroupEntity.KIND.getLabel(), GroupEntity.STUDENTS_PROPERTY.getLabel());
+  public boolean isMemberOfGroup(UserContext user, long groupId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("isMemberOfGroup")) {
+      return isPartOfEntity(user, groupId, UserEntity.GROUPS_PROPERTY.getLabel());
+    }
   }
 
   /**
-   * TODO: It will be later used in a different pull request to restrict the users access to the
-   * chat rooms. Implemented now since it uses the same logic as the isMemberOfGroup function.
-   * Checks if the user is an attendee of the specified event.
+   * Checks if the user is an attendee of the specified event. The user is read at most once during
+   * the user's request.
    *
-   * @param userId The id of the user.
+   * @param user The context of the request.
    * @param eventId The id of the event.
    * @return True if the user is an attendee of the event.
    */
-  public boolean isAttendeeOfEvent(String userId, long eventId) {
-    return isPartOfEntity(
-        userId, eventId, EventEntity.KIND.getLabel(), EventEntity.ATTENDEES_PROPERTY.getLabel());
+  public boolean isAttendeeOfEvent(UserContext user, long eventId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("isAttendeeOfEvent")) {
+      return isPartOfEntity(user, eventId, UserEntity.EVENTS_PROPERTY.getLabel());
+    }
+  }
+
+  /**
+   * Starts reading the user entity in the background, if it wasn't read yet during the user's
+   * request, so that it is read while the caller makes its other reads. It is awaited (within the
+   * deadline of the request) by the first method that needs it, e.g. isMemberOfGroup.
+   *
+   * @param user The context of the request.
+   * @throws DatastoreTimeoutException If the deadline of the request has already passed.
+   */
+  private void prefetchUser(UserContext user) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("prefetchUser")) {
+      if (user.isReadOrPending(user.getUserKey())) {
+        return;
+      }
+      List<Key> keys = Collections.singletonList(user.getUserKey());
+      user.setPendingEntities(keys, getAsyncDatastore(user).get(keys));
+    }
+  }
+
+  /**
+   * Starts the reads needed by isMemberOfGroup and getGroup concurrently: the user entity and the
+   * memberships of the group are read in the background while the group is read (usually from the
+   * entity cache), so the caller waits for the slowest read rather than for all of them in turn.
+   *
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @throws DatastoreTimeoutException If the deadline of the request has already passed.
+   */
+  public void prefetchGroupDetails(UserContext user, long groupId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("prefetchGroupDetails")) {
+      prefetchDetails(user, KeyFactory.createKey(GroupEntity.KIND.getLabel(), groupId));
+    }
+  }
+
+  /**
+   * Starts the reads needed by isAttendeeOfEvent and getEvent concurrently (see
+   * prefetchGroupDetails).
+   *
+   * @param user The context of the request.
+   * @param eventId The id of the event.
+   * @throws DatastoreTimeoutException If the deadline of the request has already passed.
+   */
+  public void prefetchEventDetails(UserContext user, long eventId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("prefetchEventDetails")) {
+      prefetchDetails(user, KeyFactory.createKey(EventEntity.KIND.getLabel(), eventId));
+    }
+  }
+
+  /**
+   * Starts reading the user entity and the memberships of a group or event in the background, then
+   * reads the group or event itself.
+   *
+   * @param user The context of the request.
+   * @param entityKey The key of the group or event.
+   */
+  private void prefetchDetails(UserContext user, Key entityKey) {
+    prefetchUser(user);
+    user.setPendingMemberships(
+        entityKey,
+        getAsyncDatastore(user).prepare(createMembershipsQuery(entityKey)).asIterable());
+    getEntity(user, entityKey);
+  }
+
+  /**
+   * Gets an async datastore service whose calls fail once the deadline of the request has passed.
+   *
+   * @param user The context of the request.
+   * @return The async datastore service.
+   */
+  private static AsyncDatastoreService getAsyncDatastore(UserContext user) {
+    return InstrumentedDatastore.instrument(
+        AsyncDatastoreService.class,
+        DatastoreServiceFactory.getAsyncDatastoreService(
+            DatastoreServiceConfig.Builder.withDeadline(user.getRemainingMillis() / 1000.0)),
+        metrics);
+  }
+
+  /**
+   * Gets all the details of a group, including the ids of its students and events.
+   *
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @return The group.
+   * @throws IllegalArgumentException If the group can't be found in the database.
+   */
+  public Group getGroup(UserContext user, long groupId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getGroup")) {
+      Entity groupEntity = getEntityById(user, GroupEntity.KIND.getLabel(), groupId);
+      Group group = Group.createGroupFromEntity(groupEntity);
+      return new Group(
+          group.getId(),
+          group.getUniversity(),
+          group.getDegree(),
+          group.getYear(),
+          getMembersIds(user, groupEntity, GroupEntity.STUDENTS_PROPERTY.getLabel()),
+          group.getEvents());
+    }
+  }
+
+  /**
+   * Gets all the details of an event, including the ids of its attendees.
+   *
+   * @param user The context of the request.
+   * @param eventId The id of the event.
+   * @return The event.
+   * @throws IllegalArgumentException If the event can't be found in the database.
+   */
+  public Event getEvent(UserContext user, long eventId) {
+    try (RequestTrace.Span span = RequestTrace.startSpan("getEvent")) {
+      Entity eventEntity = getEntityById(user, EventEntity.KIND.getLabel(), eventId);
+      Event event = Event.createEventFromEntity(eventEntity);
+      return new Event(
+          event.getId(),
+          event.getTitle(),
+          event.getStart(),
+          event.getEnd(),
+          event.getCreator(),
+          getMembersIds(user, eventEntity, EventEntity.ATTENDEES_PROPERTY.getLabel()));
+    }
+  }
+
+  /**
+   * Gets the ids of the users that joined a group or an event: the ones stored in the list property
+   * of the entity (who joined before memberships were stored) followed by the ones that have a
+   * membership. The memberships query started by prefetchGroupDetails (or prefetchEventDetails) is
+   * used if there is one.
+   *
+   * @param user The context of the request.
+   * @param entity The entity of the group or event.
+   * @param propertyName The name of the property that contains the ids of the earlier members.
+   * @return The ids of the members.
+   */
+  private List<String> getMembersIds(UserContext user, Entity entity, String propertyName) {
+    Set<String> membersIds = new LinkedHashSet<>();
+    List<String> earlierMembersIds = (ArrayList) (entity.getProperty(propertyName));
+    if (earlierMembersIds != null) {
+      membersIds.addAll(earlierMembersIds);
+    }
+
+    Iterable<Entity> memberships =
+        user.takePendingMemberships(entity.getKey())
+            .orElseGet(
+                () -> datastore.prepare(createMembershipsQuery(entity.getKey())).asIterable());
+    for (Entity membershipEntity : memberships) {
+      membersIds.add(membershipEntity.getKey().getParent().getName());
+    }
+    return new ArrayList<>(membersIds);
+  }
+
+  /**
+   * Creates the keys-only query of the memberships of a group or an event.
+   *
+   * @param entityKey The key of the group or event.
+   * @return The query.
+   */
+  private static Query createMembershipsQuery(Key entityKey) {
+    return new Query(MembershipEntity.KIND.getLabel())
+        .setFilter(
+            new CompositeFilter(
+                CompositeFilterOperator.AND,
+                Arrays.asList(
+                    new FilterPredicate(
+                        MembershipEntity.ENTITY_KIND_PROPERTY.getLabel(),
+                        FilterOperator.EQUAL,
+                        entityKey.getKind()),
+                    new FilterPredicate(
+                        MembershipEntity.ENTITY_ID_PROPERTY.getLabel(),
+                        FilterOperator.EQUAL,
+                        entityKey.getId()))))
+        .setKeysOnly();
+  }
+
+  /**
+   * Gets the number of members of each of the given groups or events: the members stored in the
+   * list property of the entity (who joined before memberships were stored) plus the value of its
+   * members counter. The counter shards of all the entities are read together.
+   *
+   * @param entities The entities of the groups or events.
+   * @param propertyName The name of the property that contains the ids of the earlier members.
+   * @return The number of members, by the key of the entity.
+   */
+  private Map<Key, Integer> getMembersCounts(List<Entity> entities, String propertyName) {
+    List<String> counterNames =
+        entities.stream()
+            .map(entity -> getMembersCounterName(entity.getKey()))
+            .collect(Collectors.toList());
+    Map<String, Long> values = getCounterValues(counterNames);
+
+    Map<Key, Integer> counts = new HashMap<>();
+    for (Entity entity : entities) {
+      counts.put(entity.getKey(), getMembersCount(entity, propertyName, values));
+    }
+    return counts;
+  }
+
+  /**
+   * Gets the number of members of a group or event, given the values of the counters read.
+   *
+   * @param entity The entity of the group or event.
+   * @param propertyName The name of the property that contains the ids of the earlier members.
+   * @param values The values of the counters, which include the members counter of the entity.
+   * @return The number of members.
+   */
+  private static int getMembersCount(Entity entity, String propertyName, Map<String, Long> values) {
+    long count =
+        getListPropertySize(entity.getProperty(propertyName))
+            + values.get(getMembersCounterName(entity.getKey()));
+    return (int) count;
+  }
+
+  /** Gets the number of values of a list property, which is null if the list is empty. */
+  static int getListPropertySize(Object listProperty) {
+    return (listProperty == null) ? 0 : ((Collection<?>) listProperty).size();
+  }
+
+  /** Gets the name of the counter of the members (students or attendees) of a group or event. */
+  private static String getMembersCounterName(Key entityKey) {
+    return entityKey.getKind() + ":" + entityKey.getId() + ":members";
+  }
+
+  /** Gets the name of the counter of the messages posted to an event. */
+  private static String getMessagesCounterName(long eventId) {
+    return EventEntity.KIND.getLabel() + ":" + eventId + ":messages";
+  }
+
+  /** Gets the key of one of the shards of a counter. */
+  private static Key getCounterShardKey(String counterName, int shard) {
+    return KeyFactory.createKey(CounterShardEntity.KIND.getLabel(), counterName + ":" + shard);
+  }
+
+  /**
+   * Increments a counter as part of a transaction, writing one of its shards at random (among the
+   * shards the instance knows to be in use). The shard is created if it doesn't exist yet.
+   *
+   * @param transaction The transaction that the increment is part of.
+   * @param counterName The name of the counter.
+   * @param delta The amount the counter is incremented by.
+   */
+  private void incrementCounter(Transaction transaction, String counterName, long delta) {
+    int shards = counterShards.getOrDefault(counterName, 1);
+    Key shardKey = getCounterShardKey(counterName, ThreadLocalRandom.current().nextInt(shards));
+    Entity shardEntity;
+    try {
+      shardEntity = datastore.get(transaction, shardKey);
+    } catch (EntityNotFoundException e) {
+      shardEntity = new Entity(shardKey);
+      shardEntity.setProperty(CounterShardEntity.COUNT_PROPERTY.getLabel(), 0L);
+    }
+    long count = (long) shardEntity.getProperty(CounterShardEntity.COUNT_PROPERTY.getLabel());
+    shardEntity.setProperty(CounterShardEntity.COUNT_PROPERTY.getLabel(), count + delta);
+    datastore.put(transaction, shardEntity);
+  }
+
+  /**
+   * Doubles the number of shards of a counter (up to MAX_COUNTER_SHARDS) after one of its
+   * increments collided with another transaction, by updating the number stored in its first
+   * shard. This is best effort: if the update collides too, another increment will widen the
+   * counter later.
+   *
+   * @param counterName The name of the counter.
+   */
+  private void addCounterShards(String counterName) {
+    Key firstShardKey = getCounterShardKey(counterName, 0);
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Entity firstShard;
+      try {
+        firstShard = datastore.get(transaction, firstShardKey);
+      } catch (EntityNotFoundException e) {
+        firstShard = new Entity(firstShardKey);
+        firstShard.setProperty(CounterShardEntity.COUNT_PROPERTY.getLabel(), 0L);
+      }
+      int shards = Math.min(2 * getShardsCount(firstShard), MAX_COUNTER_SHARDS);
+      firstShard.setProperty(CounterShardEntity.SHARDS_PROPERTY.getLabel(), (long) shards);
+      datastore.put(transaction, firstShard);
+      transaction.commit();
+      recordShardsCount(counterName, shards);
+    } catch (ConcurrentModificationException e) {
+      // Dropped (see above).
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /** Gets the number of shards of a counter from its first shard (null if it doesn't exist). */
+  private static int getShardsCount(Entity firstShard) {
+    Long shards =
+        (firstShard == null)
+            ? null
+            : (Long) firstShard.getProperty(CounterShardEntity.SHARDS_PROPERTY.getLabel());
+    return (shards == null) ? 1 : shards.intValue();
+  }
+
+  /** Records the number of shards of a counter, unless the instance already knows a larger one. */
+  private static void recordShardsCount(String counterName, int shards) {
+    counterShards.merge(counterName, shards, Math::max);
   }
 
   /**
-   * Deletes all messages older than a certain timeframe.
+   * Gets the values of the given counters. The values cached by the instance are used if they are
+   * recent enough. The other counters are read by summing their shards: the first shards of all
+   * the counters are read with a single batch get, and the other shards (of the counters that
+   * were widened) with a second one, so only the shards in use are read.
+   *
+   * @param counterNames The names of the counters.
+   * @return The value of each counter (0 if none of its shards exists), by its name.
+   */
+  private Map<String, Long> getCounterValues(List<String> counterNames) {
+    Map<String, Long> values = new HashMap<>();
+    List<String> counterNamesToRead = new ArrayList<>();
+    List<Key> shardKeys = new ArrayList<>();
+    int cachedValuesCount = 0;
+    for (String counterName : counterNames) {
+      Optional<Long> cachedValue = counterValues.get(counterName);
+      if (cachedValue.isPresent()) {
+        values.put(counterName, cachedValue.get());
+        cachedValuesCount++;
+      } else if (!values.containsKey(counterName)) {
+        // Marks the counter as read, so that repeated names are only read once.
+        values.put(counterName, 0L);
+        counterNamesToRead.add(counterName);
+        shardKeys.add(getCounterShardKey(counterName, 0));
+      }
+    }
+    metrics.countCacheLookups("counters", cachedValuesCount, counterNamesToRead.size());
+    Map<Key, Entity> shardEntities = new HashMap<>(getEntitiesByKeys(shardKeys));
+
+    Map<String, Integer> shardsCounts = new HashMap<>();
+    List<Key> otherShardKeys = new ArrayList<>();
+    for (String counterName : counterNamesToRead) {
+      int shards = getShardsCount(shardEntities.get(getCounterShardKey(counterName, 0)));
+      recordShardsCount(counterName, shards);
+      shardsCounts.put(counterName, shards);
+      for (int shard = 1; shard < shards; shard++) {
+        otherShardKeys.add(getCounterShardKey(counterName, shard));
+      }
+    }
+    if (!otherShardKeys.isEmpty()) {
+      shardEntities.putAll(getEntitiesByKeys(otherShardKeys));
+    }
+
+    for (String counterName : counterNamesToRead) {
+      long value = 0;
+      for (int shard = 0; shard < shardsCounts.get(counterName); shard++) {
+        Entity shardEntity = shardEntities.get(getCounterShardKey(counterName, shard));
+        if (shardEntity != null) {
+          value += (long) shardEntity.getProperty(CounterShardEntity.COUNT_PROPERTY.getLabel());
+        }
+      }
+      values.put(counterName, value);
+      counterValues.put(counterName, value);
+    }
+    return values;
+  }
+
+  /**
+   * Deletes all messages older than a certain timeframe, one chunk of MESSAGES_PER_PURGE_CHUNK
+   * messages at a time. Only the keys of the messages are read.
    *
    * @param hours The length of the timeframe where messages should be kept in hours.
    */
   public void deleteMessagesOlderThan(int hours) {
-    ZonedDateTime currentTime = LocalDateTime.now().atZone(ZoneId.of("UTC"));
-    long timeFrameLimit = currentTime.minusHours(hours).toInstant().toEpochMilli();
-
-    Query query = new Query(MessageEntity.KIND.getLabel());
+    long cutoff = getCutoff(hours);
+    Query query = new Query(MessageEntity.KIND.getLabel()).setKeysOnly();
     query.setFilter(
         new FilterPredicate(
-            MessageEntity.TIMESTAMP_PROPERTY.getLabel(), FilterOperator.LESS_THAN, timeFrameLimit));
+            MessageEntity.TIMESTAMP_PROPERTY.getLabel(), FilterOperator.LESS_THAN, cutoff));
+
+    boolean isAnyMessageDeleted = false;
+    List<Key> messagesToBeDeleted;
+    do {
+      messagesToBeDeleted =
+          datastore.prepare(query)
+              .asList(FetchOptions.Builder.withLimit(MESSAGES_PER_PURGE_CHUNK))
+              .stream()
+              .map(Entity::getKey)
+              .collect(Collectors.toList());
+      if (!messagesToBeDeleted.isEmpty()) {
+        datastore.delete(messagesToBeDeleted);
+        isAnyMessageDeleted = true;
+      }
+    } while (messagesToBeDeleted.size() == MESSAGES_PER_PURGE_CHUNK);
+
+    if (isAnyMessageDeleted) {
+      recentMessages.removeOldestMessages(message -> message.getTimestamp() < cutoff);
+    }
+  }
+
+  /** Gets the time (in milliseconds since epoch) before which the messages are deleted. */
+  private static long getCutoff(int hours) {
+    ZonedDateTime currentTime = LocalDateTime.now().atZone(ZoneId.of("UTC"));
+    return currentTime.minusHours(hours).toInstant().toEpochMilli();
+  }
+
+  /** The results of a query that passed a filter, and the cursor of the next page. */
+  private static final class FilteredResults {
+
+    private final List<Entity> entities;
+    // The web-safe cursor after the last result scanned, or null if there are no results left.
+    private final String nextCursor;
 
-    PreparedQuery results = datastore.prepare(query);
-    List<Key> messagesToBeDeleted = new ArrayList<>();
-    for (Entity entity : results.asIterable()) {
-      messagesToBeDeleted.add(entity.getKey());
+    private FilteredResults(List<Entity> entities, String nextCursor) {
+      this.entities = entities;
+      this.nextCursor = nextCursor;
     }
-    datastore.delete(messagesToBeDeleted);
   }
 }
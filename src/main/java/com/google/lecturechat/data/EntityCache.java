@@ -0,0 +1,294 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Two-tier read-through cache of entities that are read far more often than they change (groups
+ * and events): a bounded in-process tier in front of a memcache tier shared by all the instances.
+ *
+ * <p>Every cached entity is tagged with the version of its key, a number kept in memcache that is
+ * incremented after each write of the entity (see invalidate). A cached entity is only used if its
+ * tag matches the current version, so an entity read while it was being written is dropped by the
+ * version increment that follows the write. An entity kept in the instance is used without
+ * reading its version for a short time after its version was last found to match, so an entity
+ * written by another instance can be served for that long after the write.
+ */
+final class EntityCache {
+
+  private static final String VERSION_PREFIX = "EntityVersion:";
+  private static final String ENTITY_PREFIX = "Entity:";
+  private static final MetricsRegistry metrics = MetricsRegistry.getMetricsRegistry();
+
+  private final MemcacheService memcache;
+  private final Expiration expiration;
+  private final long validityMillis;
+  private final LinkedHashMap<Key, CachedEntity> entities;
+
+  // The number of invalidations made by the instance. The entities read while an entity was
+  // invalidated have their version read again by the next lookup, since they may be stale.
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param memcache The memcache service of the shared tier.
+   * @param maxEntities The maximum number of entities kept in the instance (the least recently used
+   *     are evicted).
+   * @param expirationSeconds The time after which the entities are evicted from memcache.
+   * @param validityMillis How long an entity kept in the instance is used without reading its
+   *     version, once its version was found to match.
+   */
+  EntityCache(
+      MemcacheService memcache, int maxEntities, int expirationSeconds, long validityMillis) {
+    this.memcache = memcache;
+    this.validityMillis = validityMillis;
+    expiration = Expiration.byDeltaSeconds(expirationSeconds);
+    entities =
+        new LinkedHashMap<Key, CachedEntity>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, CachedEntity> eldest) {
+            return size() > maxEntities;
+          }
+        };
+  }
+
+  /**
+   * Gets the entities with the given keys from the instance, then from memcache, and reads the
+   * remaining ones with the loader. The versions of the keys whose entity isn't valid in the
+   * instance are read with a single memcache call. Entities that can't be found aren't cached, so
+   * they are read again next time.
+   *
+   * @param requestedKeys The keys of the entities.
+   * @param loader The function that reads the entities with the given keys from the datastore.
+   * @return The entities found, by their key. Each entity is a copy the caller can modify.
+   */
+  Map<Key, Entity> getAll(
+      Collection<Key> requestedKeys, Function<List<Key>, Map<Key, Entity>> loader) {
+    Set<Key> keys = new LinkedHashSet<>(requestedKeys);
+    Map<Key, Entity> foundEntities = new HashMap<>();
+    long currentTime = System.currentTimeMillis();
+    long invalidationsBefore = invalidations.get();
+
+    Set<Key> keysToCheck = new LinkedHashSet<>();
+    synchronized (entities) {
+      for (Key key : keys) {
+        CachedEntity cachedEntity = entities.get(key);
+        if (cachedEntity != null && currentTime - cachedEntity.checkedAt < validityMillis) {
+          foundEntities.put(key, cachedEntity.entity.clone());
+        } else {
+          keysToCheck.add(key);
+        }
+      }
+    }
+
+    Map<Key, Long> versions = keysToCheck.isEmpty() ? new HashMap<>() : getVersions(keysToCheck);
+    Set<Key> keysNotInInstance = new LinkedHashSet<>();
+    synchronized (entities) {
+      for (Key key : keysToCheck) {
+        CachedEntity cachedEntity = entities.get(key);
+        if (cachedEntity != null && cachedEntity.isVersion(versions.get(key))) {
+          cachedEntity.checkedAt = currentTime;
+          foundEntities.put(key, cachedEntity.entity.clone());
+        } else {
+          keysNotInInstance.add(key);
+        }
+      }
+    }
+    localHits.addAndGet(foundEntities.size());
+    metrics.countCacheLookups("entities_instance", foundEntities.size(), keysNotInInstance.size());
+    if (keysNotInInstance.isEmpty()) {
+      return foundEntities;
+    }
+
+    List<Key> keysToLoad = new ArrayList<>();
+    Map<String, Object> sharedEntities = memcache.getAll(getEntityKeys(keysNotInInstance));
+    for (Key key : keysNotInInstance) {
+      CachedEntity cachedEntity = (CachedEntity) sharedEntities.get(getEntityKey(key));
+      if (cachedEntity != null && cachedEntity.isVersion(versions.get(key))) {
+        cachedEntity.checkedAt = (invalidations.get() == invalidationsBefore) ? currentTime : 0;
+        putInInstance(key, cachedEntity);
+        foundEntities.put(key, cachedEntity.entity.clone());
+        sharedHits.incrementAndGet();
+      } else {
+        keysToLoad.add(key);
+      }
+    }
+    metrics.countCacheLookups(
+        "entities_memcache", keysNotInInstance.size() - keysToLoad.size(), keysToLoad.size());
+    if (keysToLoad.isEmpty()) {
+      return foundEntities;
+    }
+
+    misses.addAndGet(keysToLoad.size());
+    Map<String, CachedEntity> entitiesToShare = new HashMap<>();
+    for (Map.Entry<Key, Entity> loadedEntity : loader.apply(keysToLoad).entrySet()) {
+      Key key = loadedEntity.getKey();
+      Long version = versions.get(key);
+      if (version != null) {
+        CachedEntity cachedEntity = new CachedEntity(version, loadedEntity.getValue().clone());
+        cachedEntity.checkedAt = (invalidations.get() == invalidationsBefore) ? currentTime : 0;
+        putInInstance(key, cachedEntity);
+        entitiesToShare.put(getEntityKey(key), cachedEntity);
+      }
+      foundEntities.put(key, loadedEntity.getValue());
+    }
+    if (!entitiesToShare.isEmpty()) {
+      memcache.putAll(entitiesToShare, expiration);
+    }
+    return foundEntities;
+  }
+
+  /**
+   * Makes the cached copies of an entity stale on all the instances, by incrementing the version of
+   * its key. Has to be called after the write of the entity is committed.
+   *
+   * @param key The key of the entity written.
+   */
+  void invalidate(Key key) {
+    invalidations.incrementAndGet();
+    synchronized (entities) {
+      entities.remove(key);
+    }
+    // A version that was evicted from memcache restarts from the current time, so that it doesn't
+    // match the versions the entities were cached with before.
+    if (memcache.increment(getVersionKey(key), 1, System.currentTimeMillis()) == null) {
+      memcache.delete(getEntityKey(key));
+    }
+  }
+
+  /** Removes all the cached entities, on the instance and in memcache. */
+  void clear() {
+    synchronized (entities) {
+      entities.clear();
+    }
+    memcache.clearAll();
+  }
+
+  /** Gets the number of entities found in the instance (with or without reading their version). */
+  long getLocalHits() {
+    return localHits.get();
+  }
+
+  /** Gets the number of entities found in memcache but not in the instance. */
+  long getSharedHits() {
+    return sharedHits.get();
+  }
+
+  /** Gets the number of entities that had to be read from the datastore. */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the current versions of the given keys, creating the versions that aren't in memcache yet.
+   * The keys whose version is unavailable (e.g. memcache is down) are left out, so their entities
+   * are neither taken from nor stored in the cache.
+   */
+  private Map<Key, Long> getVersions(Collection<Key> keys) {
+    Map<String, Object> storedVersions = memcache.getAll(getVersionKeys(keys));
+    Map<Key, Long> versions = new HashMap<>();
+    List<String> missingVersionKeys = new ArrayList<>();
+    for (Key key : keys) {
+      Long version = (Long) storedVersions.get(getVersionKey(key));
+      if (version != null) {
+        versions.put(key, version);
+      } else {
+        missingVersionKeys.add(getVersionKey(key));
+      }
+    }
+
+    if (!missingVersionKeys.isEmpty()) {
+      Map<String, Long> createdVersions =
+          memcache.incrementAll(missingVersionKeys, 0, System.currentTimeMillis());
+      for (Key key : keys) {
+        Long version = createdVersions.get(getVersionKey(key));
+        if (version != null) {
+          versions.put(key, version);
+        }
+      }
+    }
+    return versions;
+  }
+
+  private void putInInstance(Key key, CachedEntity cachedEntity) {
+    synchronized (entities) {
+      entities.put(key, cachedEntity);
+    }
+  }
+
+  private static List<String> getVersionKeys(Collection<Key> keys) {
+    List<String> versionKeys = new ArrayList<>();
+    for (Key key : keys) {
+      versionKeys.add(getVersionKey(key));
+    }
+    return versionKeys;
+  }
+
+  private static List<String> getEntityKeys(Collection<Key> keys) {
+    List<String> entityKeys = new ArrayList<>();
+    for (Key key : keys) {
+      entityKeys.add(getEntityKey(key));
+    }
+    return entityKeys;
+  }
+
+  private static String getVersionKey(Key key) {
+    return VERSION_PREFIX + KeyFactory.keyToString(key);
+  }
+
+  private static String getEntityKey(Key key) {
+    return ENTITY_PREFIX + KeyFactory.keyToString(key);
+  }
+
+  /** An entity and the version of its key it was read at. */
+  private static final class CachedEntity implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final Entity entity;
+    // The last time (in milliseconds since epoch) the version was found to match memcache, on the
+    // instance that keeps this copy.
+    private transient long checkedAt;
+
+    private CachedEntity(long version, Entity entity) {
+      this.version = version;
+      this.entity = entity;
+    }
+
+    private boolean isVersion(Long currentVersion) {
+      return currentVersion != null && version == currentVersion;
+    }
+  }
+}
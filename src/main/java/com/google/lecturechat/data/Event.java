@@ -89,4 +89,9 @@ public final class Event {
     }
     return (this.getId() == ((Event) anotherObject).getId());
   }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
 }
@@ -0,0 +1,122 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.lecturechat.data.constants.EventEntity;
+
+/**
+ * A helper class for passing the event data shown in listings. Unlike Event, it only holds the
+ * number of attendees and messages instead of their ids.
+ */
+public final class EventSummary {
+
+  private final long id;
+  private final String title;
+
+  // The number of milliseconds since epoch time (1 Jan 1970 UTC).
+  private final long startTime;
+  private final long endTime;
+
+  private final int attendeesCount;
+  // The number of messages ever sent to the event. The counter is never decremented, so it
+  // includes the messages that already expired or were deleted.
+  private final int messagesCount;
+
+  // True if the user that requested the listing is an attendee of the event.
+  private final boolean joined;
+
+  public EventSummary(
+      long id,
+      String title,
+      long startTime,
+      long endTime,
+      int attendeesCount,
+      int messagesCount,
+      boolean joined) {
+    this.id = id;
+    this.title = title;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.attendeesCount = attendeesCount;
+    this.messagesCount = messagesCount;
+    this.joined = joined;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public long getStart() {
+    return startTime;
+  }
+
+  public long getEnd() {
+    return endTime;
+  }
+
+  public int getAttendeesCount() {
+    return attendeesCount;
+  }
+
+  public int getMessagesCount() {
+    return messagesCount;
+  }
+
+  public boolean isJoined() {
+    return joined;
+  }
+
+  /**
+   * Creates the summary of an event.
+   *
+   * @param eventEntity The entity of the event.
+   * @param attendeesCount The number of attendees of the event, which the entity doesn't hold.
+   * @param messagesCount The number of messages ever sent to the event.
+   * @param joined True if the user joined the event.
+   * @return The summary.
+   */
+  public static EventSummary createEventSummaryFromEntity(
+      Entity eventEntity, int attendeesCount, int messagesCount, boolean joined) {
+    if (eventEntity.getKind().equals(EventEntity.KIND.getLabel())) {
+      long id = eventEntity.getKey().getId();
+      String title = (String) (eventEntity.getProperty(EventEntity.TITLE_PROPERTY.getLabel()));
+      long startTime = (long) (eventEntity.getProperty(EventEntity.START_PROPERTY.getLabel()));
+      long endTime = (long) (eventEntity.getProperty(EventEntity.END_PROPERTY.getLabel()));
+      return new EventSummary(
+          id, title, startTime, endTime, attendeesCount, messagesCount, joined);
+    } else {
+      throw new IllegalArgumentException(
+          "Attempted to create event summary from entity that is not an event.");
+    }
+  }
+
+  @Override
+  public boolean equals(Object anotherObject) {
+    if (!(anotherObject instanceof EventSummary)) {
+      return false;
+    }
+    return (this.getId() == ((EventSummary) anotherObject).getId());
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
+}
@@ -0,0 +1,40 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.List;
+import java.util.Optional;
+
+/** A helper class for passing one page of the events of a group. */
+public final class EventsPage {
+
+  private final List<EventSummary> events;
+
+  // The web-safe datastore cursor of the next page, or null if this is the last page.
+  private final String cursor;
+
+  public EventsPage(List<EventSummary> events, String cursor) {
+    this.events = events;
+    this.cursor = cursor;
+  }
+
+  public List<EventSummary> getEvents() {
+    return events;
+  }
+
+  public Optional<String> getCursor() {
+    return Optional.ofNullable(cursor);
+  }
+}
@@ -94,4 +94,9 @@ public final class Group {
     }
     return (this.getId() == ((Group) anotherObject).getId());
   }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
 }
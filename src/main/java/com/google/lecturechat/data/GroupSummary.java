@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.lecturechat.data.constants.GroupEntity;
+
+/**
+ * A helper class for passing the group data shown in listings. Unlike Group, it only holds the
+ * number of students and events instead of their ids.
+ */
+public final class GroupSummary {
+
+  private final long id;
+  private final String university;
+  private final String degree;
+  private final int year;
+  private final int studentsCount;
+  private final int eventsCount;
+
+  // True if the user that requested the listing is a member of the group.
+  private final boolean joined;
+
+  public GroupSummary(
+      long id,
+      String university,
+      String degree,
+      int year,
+      int studentsCount,
+      int eventsCount,
+      boolean joined) {
+    this.id = id;
+    this.university = university;
+    this.degree = degree;
+    this.year = year;
+    this.studentsCount = studentsCount;
+    this.eventsCount = eventsCount;
+    this.joined = joined;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getUniversity() {
+    return university;
+  }
+
+  public String getDegree() {
+    return degree;
+  }
+
+  public int getYear() {
+    return year;
+  }
+
+  public int getStudentsCount() {
+    return studentsCount;
+  }
+
+  public int getEventsCount() {
+    return eventsCount;
+  }
+
+  public boolean isJoined() {
+    return joined;
+  }
+
+  /**
+   * Creates the summary of a group.
+   *
+   * @param groupEntity The entity of the group.
+   * @param studentsCount The number of students of the group, which the entity doesn't hold.
+   * @param joined True if the user joined the group.
+   * @return The summary.
+   */
+  public static GroupSummary createGroupSummaryFromEntity(
+      Entity groupEntity, int studentsCount, boolean joined) {
+    if (groupEntity.getKind().equals(GroupEntity.KIND.getLabel())) {
+      long id = groupEntity.getKey().getId();
+      String university =
+          (String) (groupEntity.getProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel()));
+      String degree = (String) (groupEntity.getProperty(GroupEntity.DEGREE_PROPERTY.getLabel()));
+      Long longYear = (Long) (groupEntity.getProperty(GroupEntity.YEAR_PROPERTY.getLabel()));
+      int year = longYear.intValue();
+      int eventsCount =
+          DatastoreAccess.getListPropertySize(
+              groupEntity.getProperty(GroupEntity.EVENTS_PROPERTY.getLabel()));
+      return new GroupSummary(id, university, degree, year, studentsCount, eventsCount, joined);
+    } else {
+      throw new IllegalArgumentException(
+          "Attempted to create group summary from entity that is not a group.");
+    }
+  }
+
+  @Override
+  public boolean equals(Object anotherObject) {
+    if (!(anotherObject instanceof GroupSummary)) {
+      return false;
+    }
+    return (this.getId() == ((GroupSummary) anotherObject).getId());
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wraps the datastore services used by DatastoreAccess, so that each operation is counted by type
+ * in the MetricsRegistry and recorded as a span of the RequestTrace of the current request.
+ *
+ * <p>A query is only run when its results are read, so the prepared queries are wrapped too, and
+ * their span covers the method that reads the results. The results of the lazy methods (asList,
+ * asIterable, asIterator) are read in batches after the method returns, so they aren't counted,
+ * and the operations of the async service only cover the time taken to send them.
+ */
+final class InstrumentedDatastore {
+
+  // The methods of the datastore services that are counted as operations (the other methods don't
+  // call the datastore). A prepare is counted as a query.
+  private static final Set<String> DATASTORE_OPERATIONS =
+      new HashSet<>(
+          Arrays.asList("get", "put", "delete", "prepare", "beginTransaction", "allocateIds"));
+
+  private InstrumentedDatastore() {}
+
+  /**
+   * Wraps a datastore service.
+   *
+   * @param type The interface of the service (e.g. DatastoreService or AsyncDatastoreService).
+   * @param service The service.
+   * @param metrics The registry that counts the operations.
+   * @return The service that counts and traces the operations.
+   */
+  static <T> T instrument(Class<T> type, T service, MetricsRegistry metrics) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, arguments) -> {
+              String operation = method.getName();
+              if (!DATASTORE_OPERATIONS.contains(operation)) {
+                return invoke(service, method, arguments);
+              }
+
+              metrics.countDatastoreOperation(operation);
+              if (operation.equals("prepare")) {
+                PreparedQuery preparedQuery = (PreparedQuery) invoke(service, method, arguments);
+                return instrumentQuery(preparedQuery, findArgument(arguments, Query.class));
+              }
+              try (RequestTrace.Span span = RequestTrace.startSpan("datastore." + operation)) {
+                describeArguments(span, arguments);
+                Object result = invoke(service, method, arguments);
+                span.setResultCount(countResults(result));
+                return result;
+              }
+            }));
+  }
+
+  /** Wraps a prepared query, so that each read of its results is traced. */
+  private static PreparedQuery instrumentQuery(PreparedQuery preparedQuery, Query query) {
+    return (PreparedQuery)
+        Proxy.newProxyInstance(
+            PreparedQuery.class.getClassLoader(),
+            new Class<?>[] {PreparedQuery.class},
+            (proxy, method, arguments) -> {
+              String read = method.getName();
+              if (!read.startsWith("as") && !read.equals("countEntities")) {
+                return invoke(preparedQuery, method, arguments);
+              }
+              try (RequestTrace.Span span = RequestTrace.startSpan("datastore.query." + read)) {
+                if (query != null) {
+                  span.setKind(query.getKind());
+                }
+                Object result = invoke(preparedQuery, method, arguments);
+                if (result instanceof QueryResultList || result instanceof Entity) {
+                  span.setResultCount(countResults(result));
+                } else if (result == null) {
+                  span.setResultCount(0);
+                }
+                return result;
+              }
+            });
+  }
+
+  /** Sets the kind and the number of the keys or entities sent with an operation. */
+  private static void describeArguments(RequestTrace.Span span, Object[] arguments) {
+    if (arguments == null) {
+      return;
+    }
+    for (Object argument : arguments) {
+      if (argument instanceof Key || argument instanceof Entity) {
+        span.setKind(getKind(argument));
+        span.setKeyCount(1);
+        return;
+      }
+      if (argument instanceof Key[]) {
+        Key[] keys = (Key[]) argument;
+        if (keys.length > 0) {
+          span.setKind(keys[0].getKind());
+        }
+        span.setKeyCount(keys.length);
+        return;
+      }
+      if (argument instanceof Iterable) {
+        int count = 0;
+        for (Object element : (Iterable<?>) argument) {
+          if (count == 0) {
+            span.setKind(getKind(element));
+          }
+          count++;
+        }
+        span.setKeyCount(count);
+        return;
+      }
+      if (argument instanceof String) {
+        // The kind of the ids allocated.
+        span.setKind((String) argument);
+      }
+    }
+  }
+
+  private static String getKind(Object keyOrEntity) {
+    if (keyOrEntity instanceof Key) {
+      return ((Key) keyOrEntity).getKind();
+    }
+    return (keyOrEntity instanceof Entity) ? ((Entity) keyOrEntity).getKind() : null;
+  }
+
+  /** Counts the results of an operation, or returns -1 if they aren't known yet. */
+  private static int countResults(Object result) {
+    if (result instanceof Map) {
+      return ((Map<?, ?>) result).size();
+    }
+    if (result instanceof Collection) {
+      // E.g. the keys returned by a batch put.
+      return ((Collection<?>) result).size();
+    }
+    if (result instanceof Key[]) {
+      return ((Key[]) result).length;
+    }
+    return (result instanceof Key || result instanceof Entity) ? 1 : -1;
+  }
+
+  private static <T> T findArgument(Object[] arguments, Class<T> type) {
+    if (arguments != null) {
+      for (Object argument : arguments) {
+        if (type.isInstance(argument)) {
+          return type.cast(argument);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Object invoke(Object target, Method method, Object[] arguments)
+      throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (InvocationTargetException e) {
+      // Throws what the service threw (e.g. EntityNotFoundException).
+      throw e.getCause();
+    }
+  }
+}
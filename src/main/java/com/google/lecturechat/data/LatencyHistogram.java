@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, whose buckets grow exponentially like the ones of HdrHistogram:
+ * the bucket i counts the latencies in (2^(i-1), 2^i] microseconds, so recording a latency is a
+ * leading-zeros count and an atomic increment. The last bucket counts all the latencies above the
+ * bound of the one before it.
+ */
+final class LatencyHistogram {
+
+  // The bound of the last bucket with a bound is 2^(BUCKETS - 2) microseconds, about 67 seconds.
+  static final int BUCKETS = 28;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder sumMicros = new LongAdder();
+
+  /**
+   * Records a latency.
+   *
+   * @param latencyNanos The latency, in nanoseconds.
+   */
+  void record(long latencyNanos) {
+    long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(latencyNanos), 0);
+    buckets.incrementAndGet(getBucket(micros));
+    sumMicros.add(micros);
+  }
+
+  /**
+   * Gets the number of latencies recorded in each bucket. The counts are read one at a time, so
+   * they may miss the latencies recorded meanwhile.
+   */
+  long[] getBucketCounts() {
+    long[] counts = new long[BUCKETS];
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      counts[bucket] = buckets.get(bucket);
+    }
+    return counts;
+  }
+
+  /** Gets the sum of the latencies recorded, in microseconds. */
+  long getSumMicros() {
+    return sumMicros.sum();
+  }
+
+  /**
+   * Gets the inclusive upper bound of a bucket (other than the last one, which is unbounded).
+   *
+   * @param bucket The index of the bucket.
+   * @return The bound, in microseconds.
+   */
+  static long getBoundMicros(int bucket) {
+    return 1L << bucket;
+  }
+
+  /** Gets the index of the bucket of a latency, the smallest i such that micros <= 2^i. */
+  static int getBucket(long micros) {
+    if (micros <= 1) {
+      return 0;
+    }
+    int bucket = Long.SIZE - Long.numberOfLeadingZeros(micros - 1);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.Collection;
+
+/**
+ * A set of entity ids stored as primitive longs in an open-addressing hash table (with linear
+ * probing), used to check the membership of ids without boxing them.
+ */
+final class LongIdSet {
+
+  private static final int MIN_CAPACITY = 8;
+  // Marks the empty slots of the table, so the value itself is tracked separately.
+  private static final long EMPTY = 0;
+
+  private long[] table;
+  private boolean containsEmptyValue = false;
+  private int size = 0;
+
+  /**
+   * Creates an empty set.
+   *
+   * @param expectedSize The number of ids the set is expected to hold.
+   */
+  LongIdSet(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < 2 * expectedSize) {
+      capacity <<= 1;
+    }
+    table = new long[capacity];
+  }
+
+  /**
+   * Creates a set containing the given ids.
+   *
+   * @param ids The ids that will be added to the set.
+   * @return The set.
+   */
+  static LongIdSet of(Collection<Long> ids) {
+    LongIdSet set = new LongIdSet(ids.size());
+    for (long id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  /**
+   * Adds an id to the set.
+   *
+   * @param id The id that will be added.
+   * @return True if the id wasn't already in the set.
+   */
+  boolean add(long id) {
+    if (id == EMPTY) {
+      if (containsEmptyValue) {
+        return false;
+      }
+      containsEmptyValue = true;
+      size++;
+      return true;
+    }
+
+    int index = findSlot(table, id);
+    if (table[index] == id) {
+      return false;
+    }
+    table[index] = id;
+    size++;
+    // Growing the table once it is half full keeps the probe sequences short.
+    if (2 * size > table.length) {
+      resize();
+    }
+    return true;
+  }
+
+  /**
+   * Checks if an id is in the set.
+   *
+   * @param id The id to be checked.
+   * @return True if the id is in the set.
+   */
+  boolean contains(long id) {
+    if (id == EMPTY) {
+      return containsEmptyValue;
+    }
+    return table[findSlot(table, id)] == id;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Finds the slot that holds the id, or the empty slot where it would be added. */
+  private static int findSlot(long[] table, long id) {
+    int mask = table.length - 1;
+    int index = mix(id) & mask;
+    while (table[index] != EMPTY && table[index] != id) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private void resize() {
+    long[] newTable = new long[table.length * 2];
+    for (long id : table) {
+      if (id != EMPTY) {
+        newTable[findSlot(newTable, id)] = id;
+      }
+    }
+    table = newTable;
+  }
+
+  /** Spreads the bits of the id, since datastore ids can share their low bits. */
+  private static int mix(long id) {
+    long hash = id * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
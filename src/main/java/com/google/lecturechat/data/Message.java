@@ -54,6 +54,18 @@ public final class Message {
     return event;
   }
 
+  /**
+   * Checks if the message comes after a cursor, in the order of the messages of an event (by
+   * timestamp, then by id).
+   *
+   * @param timestamp The timestamp of the cursor.
+   * @param messageId The id of the cursor.
+   * @return True if the message comes after the cursor.
+   */
+  public boolean isAfter(long timestamp, long messageId) {
+    return this.timestamp > timestamp || (this.timestamp == timestamp && id > messageId);
+  }
+
   public static Message createMessageFromEntity(Entity messageEntity) {
     if (messageEntity.getKind().equals(MessageEntity.KIND.getLabel())) {
       long id = messageEntity.getKey().getId();
@@ -78,4 +90,9 @@ public final class Message {
     }
     return (this.getId() == ((Message) anotherObject).getId());
   }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
 }
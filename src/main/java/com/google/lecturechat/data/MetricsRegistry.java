@@ -0,0 +1,185 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Registry of the metrics of this instance: the latency of the requests of each servlet method, the
+ * number of datastore operations of each type and the lookups of each cache (hits and misses). The
+ * metrics are recorded without taking any lock, and are written in the Prometheus text format
+ * (whose lines end with \n whatever the platform).
+ */
+public final class MetricsRegistry {
+
+  private static final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+  private final ConcurrentMap<String, LatencyHistogram> requestLatencies =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> datastoreOperations = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> cacheHits = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+
+  MetricsRegistry() {}
+
+  /** Gets the registry shared by all the servlets of this instance. */
+  public static MetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  /**
+   * Records the latency of a request.
+   *
+   * @param endpoint The path of the servlet that handled the request.
+   * @param method The HTTP method of the request.
+   * @param latencyNanos The time taken to handle the request, in nanoseconds.
+   */
+  public void recordRequest(String endpoint, String method, long latencyNanos) {
+    getOrCreate(
+            requestLatencies,
+            "endpoint=\"" + escape(endpoint) + "\",method=\"" + escape(method) + "\"",
+            labels -> new LatencyHistogram())
+        .record(latencyNanos);
+  }
+
+  /**
+   * Records the lookups made in a cache.
+   *
+   * @param cache The name of the cache.
+   * @param hits The number of values found in the cache.
+   * @param misses The number of values that had to be read elsewhere.
+   */
+  void countCacheLookups(String cache, long hits, long misses) {
+    if (hits > 0) {
+      getOrCreate(cacheHits, cache, name -> new LongAdder()).add(hits);
+    }
+    if (misses > 0) {
+      getOrCreate(cacheMisses, cache, name -> new LongAdder()).add(misses);
+    }
+  }
+
+  /**
+   * Counts a datastore operation.
+   *
+   * @param operation The type of the operation (the name of the method of the datastore service).
+   */
+  void countDatastoreOperation(String operation) {
+    getOrCreate(datastoreOperations, operation, name -> new LongAdder()).increment();
+  }
+
+  /**
+   * Writes all the metrics in the Prometheus text format (version 0.0.4).
+   *
+   * @param writer The writer of the output.
+   */
+  public void writeTo(PrintWriter writer) {
+    writer.print(
+        "# HELP lecturechat_request_duration_seconds The time taken to handle the requests.\n");
+    writer.print("# TYPE lecturechat_request_duration_seconds histogram\n");
+    for (Map.Entry<String, LatencyHistogram> histogram : sorted(requestLatencies).entrySet()) {
+      writeHistogram(writer, histogram.getKey(), histogram.getValue());
+    }
+
+    writer.print(
+        "# HELP lecturechat_datastore_operations_total The datastore operations made, by type.\n");
+    writer.print("# TYPE lecturechat_datastore_operations_total counter\n");
+    for (Map.Entry<String, LongAdder> count : sorted(datastoreOperations).entrySet()) {
+      writer.printf(
+          "lecturechat_datastore_operations_total{operation=\"%s\"} %d\n",
+          escape(count.getKey()), count.getValue().sum());
+    }
+
+    Map<String, LongAdder> hits = sorted(cacheHits);
+    Map<String, LongAdder> misses = sorted(cacheMisses);
+    Set<String> caches = new TreeSet<>(hits.keySet());
+    caches.addAll(misses.keySet());
+    writer.print("# HELP lecturechat_cache_hits_total The values found in the caches.\n");
+    writer.print("# TYPE lecturechat_cache_hits_total counter\n");
+    for (String cache : caches) {
+      writer.printf(
+          "lecturechat_cache_hits_total{cache=\"%s\"} %d\n", escape(cache), getSum(hits, cache));
+    }
+    writer.print("# HELP lecturechat_cache_misses_total The values not found in the caches.\n");
+    writer.print("# TYPE lecturechat_cache_misses_total counter\n");
+    for (String cache : caches) {
+      writer.printf(
+          "lecturechat_cache_misses_total{cache=\"%s\"} %d\n",
+          escape(cache), getSum(misses, cache));
+    }
+    writer.print(
+        "# HELP lecturechat_cache_hit_ratio The fraction of the lookups found in the caches.\n");
+    writer.print("# TYPE lecturechat_cache_hit_ratio gauge\n");
+    for (String cache : caches) {
+      long hitsCount = getSum(hits, cache);
+      long lookups = hitsCount + getSum(misses, cache);
+      writer.printf(
+          "lecturechat_cache_hit_ratio{cache=\"%s\"} %s\n",
+          escape(cache), (lookups == 0) ? "NaN" : Double.toString((double) hitsCount / lookups));
+    }
+  }
+
+  /** Writes the cumulative buckets of a histogram, its sum and its count. */
+  private static void writeHistogram(
+      PrintWriter writer, String labels, LatencyHistogram histogram) {
+    long[] counts = histogram.getBucketCounts();
+    long cumulativeCount = 0;
+    for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; bucket++) {
+      cumulativeCount += counts[bucket];
+      writer.printf(
+          "lecturechat_request_duration_seconds_bucket{%s,le=\"%s\"} %d\n",
+          labels, Double.toString(LatencyHistogram.getBoundMicros(bucket) / 1e6), cumulativeCount);
+    }
+    cumulativeCount += counts[LatencyHistogram.BUCKETS - 1];
+    writer.printf(
+        "lecturechat_request_duration_seconds_bucket{%s,le=\"+Inf\"} %d\n",
+        labels, cumulativeCount);
+    writer.printf(
+        "lecturechat_request_duration_seconds_sum{%s} %s\n",
+        labels, Double.toString(histogram.getSumMicros() / 1e6));
+    writer.printf("lecturechat_request_duration_seconds_count{%s} %d\n", labels, cumulativeCount);
+  }
+
+  /**
+   * Gets the metric of the given key, creating it if needed. The metrics are only created once, so
+   * this is a lock-free read afterwards (unlike computeIfAbsent, which may lock).
+   */
+  private static <T> T getOrCreate(
+      ConcurrentMap<String, T> metrics, String key, Function<String, T> factory) {
+    T metric = metrics.get(key);
+    return (metric != null) ? metric : metrics.computeIfAbsent(key, factory);
+  }
+
+  private static <T> Map<String, T> sorted(Map<String, T> metrics) {
+    return new TreeMap<>(metrics);
+  }
+
+  private static long getSum(Map<String, LongAdder> counters, String key) {
+    LongAdder counter = counters.get(key);
+    return (counter == null) ? 0 : counter.sum();
+  }
+
+  /** Escapes a label value, as required by the Prometheus text format. */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
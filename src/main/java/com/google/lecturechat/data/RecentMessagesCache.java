@@ -0,0 +1,405 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * In-memory cache of the most recent messages of each event. Every event keeps a ring buffer of its
+ * newest messages, ordered by timestamp and id. The least recently used events are evicted when
+ * the estimated size of the cached messages goes over the limit.
+ *
+ * <p>Every buffer is tagged with the version of its event, a number kept in memcache that is
+ * incremented after each batch of messages of the event is written, by any instance (see add). A
+ * buffer is only used while its tag matches the current version, so it is known to hold every
+ * message up to the newest one: a message written by another instance, or written while the buffer
+ * was being loaded, makes the buffer stale until it is caught up (see catchUp) or loaded again.
+ *
+ * <p>The version of an event whose buffer matched it is only read again from memcache after a
+ * short interval, so the messages written by other instances meanwhile can be missing from the
+ * reads for that long.
+ */
+final class RecentMessagesCache {
+
+  private static final String VERSION_PREFIX = "MessagesVersion:";
+  // Rough size of a message object without its strings, in bytes.
+  private static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+  private final MemcacheService memcache;
+  private final int messagesPerEvent;
+  private final long maxBytes;
+  private final long versionCheckMillis;
+  private final LinkedHashMap<Long, EventMessages> buffers = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param memcache The memcache service that keeps the versions of the events.
+   * @param messagesPerEvent The maximum number of messages kept for each event.
+   * @param maxBytes The maximum estimated size of all the cached messages.
+   * @param versionCheckMillis How long the version of an event is trusted once its buffer was
+   *     found to match it, before it is read from memcache again.
+   */
+  RecentMessagesCache(
+      MemcacheService memcache, int messagesPerEvent, long maxBytes, long versionCheckMillis) {
+    this.memcache = memcache;
+    this.messagesPerEvent = messagesPerEvent;
+    this.maxBytes = maxBytes;
+    this.versionCheckMillis = versionCheckMillis;
+  }
+
+  /** The maximum number of messages kept for each event. */
+  int getMessagesPerEvent() {
+    return messagesPerEvent;
+  }
+
+  /**
+   * Gets the current version of an event, creating it if it isn't in memcache yet. It has to be
+   * read before the messages of the event are loaded, and it is passed to the methods that read
+   * the buffer of the event. If the buffer of the event matched the version less than
+   * versionCheckMillis ago, the version of the buffer is returned without reading memcache.
+   *
+   * @param eventId The id of the event.
+   * @return The version, or null if it is unavailable (e.g. memcache is down), in which case the
+   *     cache can't be used.
+   */
+  Long getVersion(long eventId) {
+    long currentTime = System.currentTimeMillis();
+    synchronized (this) {
+      EventMessages buffer = buffers.get(eventId);
+      if (buffer != null && currentTime - buffer.checkedAt < versionCheckMillis) {
+        return buffer.version;
+      }
+    }
+
+    Long version = (Long) memcache.get(getVersionKey(eventId));
+    if (version == null) {
+      // A version that was evicted from memcache restarts from the current time, so that it
+      // doesn't match the versions the buffers were loaded with before.
+      version = memcache.increment(getVersionKey(eventId), 0, currentTime);
+    }
+    synchronized (this) {
+      EventMessages buffer = buffers.get(eventId);
+      if (buffer != null && version != null && buffer.version == version) {
+        buffer.checkedAt = currentTime;
+      }
+    }
+    return version;
+  }
+
+  /**
+   * Checks if the messages of the event are cached at the given version.
+   *
+   * @param eventId The id of the event.
+   * @param version The current version of the event.
+   * @return True if the messages of the event are cached.
+   */
+  synchronized boolean isLoaded(long eventId, Long version) {
+    return getValidBuffer(eventId, version).isPresent();
+  }
+
+  /**
+   * Caches the most recent messages of an event, replacing what was cached before unless it is
+   * newer. If a message was written after the load started, the version of the event no longer
+   * matches the one of the buffer, so the buffer is never used.
+   *
+   * @param eventId The id of the event.
+   * @param version The version of the event, read before the messages were loaded.
+   * @param messages The most recent messages of the event, ordered by timestamp and id.
+   * @param isComplete True if the messages are all the messages of the event.
+   */
+  synchronized void load(long eventId, long version, List<Message> messages, boolean isComplete) {
+    EventMessages currentBuffer = buffers.get(eventId);
+    if (currentBuffer != null && currentBuffer.version > version) {
+      return;
+    }
+
+    remove(eventId);
+    EventMessages buffer = new EventMessages(version, isComplete);
+    buffer.checkedAt = System.currentTimeMillis();
+    buffers.put(eventId, buffer);
+    for (Message message : messages) {
+      addToBuffer(buffer, message);
+    }
+    evictIfNeeded();
+  }
+
+  /**
+   * Records a batch of new messages of an event, once they are stored: increments the version of
+   * the event, then adds the messages to its buffer if the buffer held every message up to them
+   * (i.e. no other batch was written since). Otherwise the buffer is left stale, to be caught up
+   * by the next read (or dropped if the version is unavailable).
+   *
+   * @param eventId The id of the event.
+   * @param messages The messages that were added to the datastore.
+   */
+  void add(long eventId, List<Message> messages) {
+    Long version = memcache.increment(getVersionKey(eventId), 1, System.currentTimeMillis());
+    if (version == null) {
+      // The other instances have to notice the new messages, so their buffers are made stale.
+      memcache.delete(getVersionKey(eventId));
+    }
+
+    synchronized (this) {
+      EventMessages buffer = buffers.get(eventId);
+      if (buffer == null) {
+        return;
+      }
+      if (version == null) {
+        remove(eventId);
+        return;
+      }
+      if (buffer.version != version - 1) {
+        // The version is read again by the next read, which finds the buffer stale.
+        buffer.checkedAt = 0;
+        return;
+      }
+      for (Message message : messages) {
+        addToBuffer(buffer, message);
+      }
+      buffer.version = version;
+      buffer.checkedAt = System.currentTimeMillis();
+      evictIfNeeded();
+    }
+  }
+
+  /**
+   * Gets the newest message cached for an event, even if its buffer is stale, so that the buffer
+   * can be caught up with the messages after it instead of being loaded again.
+   *
+   * @param eventId The id of the event.
+   * @return The newest message, or an empty Optional object if no message of the event is cached.
+   */
+  synchronized Optional<Message> getNewestMessage(long eventId) {
+    EventMessages buffer = buffers.get(eventId);
+    if (buffer == null || buffer.messages.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(buffer.messages.peekLast());
+  }
+
+  /**
+   * Catches a stale buffer up with the messages written since its newest message, and tags it
+   * with the given version. Nothing is done if the buffer changed since its newest message was
+   * read (it was loaded again, caught up or dropped meanwhile).
+   *
+   * @param eventId The id of the event.
+   * @param version The version of the event, read before the messages were read.
+   * @param newestMessage The newest message of the buffer, read before the messages were read.
+   * @param messages All the messages of the event from (at least) the newest message of the
+   *     buffer, ordered by timestamp and id.
+   */
+  synchronized void catchUp(
+      long eventId, long version, Message newestMessage, List<Message> messages) {
+    EventMessages buffer = buffers.get(eventId);
+    if (buffer == null
+        || buffer.version >= version
+        || buffer.messages.isEmpty()
+        || !buffer.messages.peekLast().equals(newestMessage)) {
+      return;
+    }
+
+    Message oldestMessage = buffer.messages.peekFirst();
+    for (Message message : messages) {
+      // A message older than an incomplete buffer would leave a gap before it.
+      if (buffer.isComplete
+          || message.isAfter(oldestMessage.getTimestamp(), oldestMessage.getId())) {
+        addToBuffer(buffer, message);
+      }
+    }
+    buffer.version = version;
+    buffer.checkedAt = System.currentTimeMillis();
+    evictIfNeeded();
+  }
+
+  /**
+   * Gets the first messages of an event, which is only possible if all its messages are cached.
+   *
+   * @param eventId The id of the event.
+   * @param version The current version of the event.
+   * @param limit The maximum number of messages to return.
+   * @return The messages, or an empty Optional object if they can't be served from the cache.
+   */
+  synchronized Optional<List<Message>> getFirstMessages(long eventId, Long version, int limit) {
+    Optional<EventMessages> buffer = getValidBuffer(eventId, version);
+    if (!buffer.isPresent() || !buffer.get().isComplete) {
+      return Optional.empty();
+    }
+
+    List<Message> messages = new ArrayList<>();
+    Iterator<Message> iterator = buffer.get().messages.iterator();
+    while (iterator.hasNext() && messages.size() < limit) {
+      messages.add(iterator.next());
+    }
+    return Optional.of(messages);
+  }
+
+  /**
+   * Gets the messages of an event that come after the given cursor. This is only possible if no
+   * message between the cursor and the oldest cached message was left out of the buffer.
+   *
+   * @param eventId The id of the event.
+   * @param version The current version of the event.
+   * @param lastTimestamp The timestamp of the last message already seen.
+   * @param lastMessageId The id of the last message already seen.
+   * @param limit The maximum number of messages to return.
+   * @return The messages, or an empty Optional object if they can't be served from the cache.
+   */
+  synchronized Optional<List<Message>> getMessagesAfter(
+      long eventId, Long version, long lastTimestamp, long lastMessageId, int limit) {
+    Optional<EventMessages> buffer = getValidBuffer(eventId, version);
+    if (!buffer.isPresent()) {
+      return Optional.empty();
+    }
+
+    ArrayDeque<Message> bufferedMessages = buffer.get().messages;
+    if (!buffer.get().isComplete
+        && (bufferedMessages.isEmpty()
+            || bufferedMessages.peekFirst().isAfter(lastTimestamp, lastMessageId))) {
+      return Optional.empty();
+    }
+
+    List<Message> messages = new ArrayList<>();
+    for (Message message : bufferedMessages) {
+      if (messages.size() == limit) {
+        break;
+      }
+      if (message.isAfter(lastTimestamp, lastMessageId)) {
+        messages.add(message);
+      }
+    }
+    return Optional.of(messages);
+  }
+
+  /** Gets the ids of the events whose messages are cached. */
+  synchronized List<Long> getEventIds() {
+    return new ArrayList<>(buffers.keySet());
+  }
+
+  /**
+   * Removes the oldest messages of each buffer, once they were deleted from the datastore. The
+   * messages of an event are deleted from the oldest, so the buffers that held every message of
+   * their event still do, and they keep their version. The order of the buffers for eviction isn't
+   * changed.
+   *
+   * @param isDeleted Whether a message was deleted, which only holds for the oldest messages of
+   *     its event.
+   */
+  synchronized void removeOldestMessages(Predicate<Message> isDeleted) {
+    for (EventMessages buffer : buffers.values()) {
+      while (!buffer.messages.isEmpty() && isDeleted.test(buffer.messages.peekFirst())) {
+        Message oldest = buffer.messages.pollFirst();
+        buffer.bytes -= getSize(oldest);
+        bytes -= getSize(oldest);
+      }
+    }
+  }
+
+  /** Removes all the cached messages. */
+  synchronized void clear() {
+    buffers.clear();
+    bytes = 0;
+  }
+
+  /** Gets the buffer of an event, if it is tagged with the current version of the event. */
+  private Optional<EventMessages> getValidBuffer(long eventId, Long version) {
+    EventMessages buffer = buffers.get(eventId);
+    if (buffer == null || version == null || buffer.version != version) {
+      return Optional.empty();
+    }
+    return Optional.of(buffer);
+  }
+
+  private void remove(long eventId) {
+    EventMessages buffer = buffers.remove(eventId);
+    if (buffer != null) {
+      bytes -= buffer.bytes;
+    }
+  }
+
+  /**
+   * Inserts the message in order, dropping the oldest message if the buffer is full. Messages
+   * almost always arrive in order, so only the newest few messages are ever moved.
+   */
+  private void addToBuffer(EventMessages buffer, Message message) {
+    Deque<Message> newerMessages = new ArrayDeque<>();
+    while (!buffer.messages.isEmpty()
+        && buffer.messages.peekLast().isAfter(message.getTimestamp(), message.getId())) {
+      newerMessages.push(buffer.messages.pollLast());
+    }
+
+    boolean isDuplicate =
+        !buffer.messages.isEmpty() && buffer.messages.peekLast().getId() == message.getId();
+    if (!isDuplicate) {
+      buffer.messages.addLast(message);
+      buffer.bytes += getSize(message);
+      bytes += getSize(message);
+    }
+    while (!newerMessages.isEmpty()) {
+      buffer.messages.addLast(newerMessages.pop());
+    }
+
+    if (buffer.messages.size() > messagesPerEvent) {
+      Message oldest = buffer.messages.pollFirst();
+      buffer.bytes -= getSize(oldest);
+      bytes -= getSize(oldest);
+      buffer.isComplete = false;
+    }
+  }
+
+  private void evictIfNeeded() {
+    Iterator<Map.Entry<Long, EventMessages>> iterator = buffers.entrySet().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      bytes -= iterator.next().getValue().bytes;
+      iterator.remove();
+    }
+  }
+
+  private static long getSize(Message message) {
+    int charactersCount =
+        (message.getContent() == null ? 0 : message.getContent().length())
+            + (message.getAuthor() == null ? 0 : message.getAuthor().length());
+    return MESSAGE_OVERHEAD_BYTES + 2L * charactersCount;
+  }
+
+  private static String getVersionKey(long eventId) {
+    return VERSION_PREFIX + eventId;
+  }
+
+  /** The cached messages of a single event, and the version of the event they are complete at. */
+  private static final class EventMessages {
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private long version;
+    // The last time (in milliseconds since epoch) the version was found to match memcache.
+    private long checkedAt;
+    private boolean isComplete;
+    private long bytes = 0;
+
+    private EventMessages(long version, boolean isComplete) {
+      this.version = version;
+      this.isComplete = isComplete;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the users known to be registered, so that the registration check made on every
+ * page load only reads the datastore for users the instance hasn't seen yet. Users are never
+ * unregistered, so the cache never goes stale.
+ *
+ * <p>The users are identified by a 64-bit fingerprint of their id (the first bytes of its SHA-256
+ * hash), which keeps each entry small. Unlike a Bloom filter, whose false positives would skip the
+ * registration of some new users, two ids only share a fingerprint with negligible probability.
+ */
+final class RegisteredUsersCache {
+
+  private final LinkedHashMap<Long, Boolean> fingerprints;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxUsers The maximum number of users kept (the least recently seen are evicted).
+   */
+  RegisteredUsersCache(int maxUsers) {
+    fingerprints =
+        new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > maxUsers;
+          }
+        };
+  }
+
+  /**
+   * Checks if the user is known to be registered.
+   *
+   * @param userId The id of the user.
+   * @return True if the user is registered, false if the registration has to be checked.
+   */
+  boolean contains(String userId) {
+    long fingerprint = fingerprint(userId);
+    synchronized (fingerprints) {
+      return fingerprints.get(fingerprint) != null;
+    }
+  }
+
+  /**
+   * Records that the user is registered.
+   *
+   * @param userId The id of the user.
+   */
+  void add(String userId) {
+    long fingerprint = fingerprint(userId);
+    synchronized (fingerprints) {
+      fingerprints.put(fingerprint, true);
+    }
+  }
+
+  /** Removes all the users. */
+  void clear() {
+    synchronized (fingerprints) {
+      fingerprints.clear();
+    }
+  }
+
+  private static long fingerprint(String userId) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return ByteBuffer.wrap(digest.digest(userId.getBytes(StandardCharsets.UTF_8))).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trace of the datastore calls made while handling a request: a span for each traced method of
+ * DatastoreAccess and, nested in it, a span for each datastore operation, with the kind of the
+ * entities, the number of keys and of results, and the duration.
+ *
+ * <p>The trace of a request is kept by the thread that handles it, in a buffer of at most MAX_SPANS
+ * spans, and nothing is formatted unless the trace is reported. Spans opened while no trace was
+ * started (e.g. by cron jobs) aren't recorded.
+ */
+public final class RequestTrace {
+
+  private static final int MAX_SPANS = 256;
+  private static final ThreadLocal<RequestTrace> currentTrace = new ThreadLocal<>();
+
+  private final String name;
+  private final long startNanos = System.nanoTime();
+  private final List<Span> spans = new ArrayList<>();
+  private int depth;
+  private int droppedSpans;
+
+  private RequestTrace(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Starts tracing the request handled by the current thread.
+   *
+   * @param name The name of the request (e.g. its method and path).
+   * @return The trace, which has to be finished once the request is handled.
+   */
+  public static RequestTrace start(String name) {
+    RequestTrace trace = new RequestTrace(name);
+    currentTrace.set(trace);
+    return trace;
+  }
+
+  /**
+   * Stops tracing the request.
+   *
+   * @return The time taken to handle the request, in nanoseconds.
+   */
+  public long finish() {
+    currentTrace.remove();
+    return System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Opens a span in the trace of the current request, to be closed (with try-with-resources) when
+   * the call it describes returns. The spans opened until then are nested in it.
+   *
+   * @param name The name of the call.
+   * @return The span, which doesn't record anything if no trace was started.
+   */
+  static Span startSpan(String name) {
+    RequestTrace trace = currentTrace.get();
+    if (trace == null) {
+      return Span.NONE;
+    }
+    if (trace.spans.size() == MAX_SPANS) {
+      trace.droppedSpans++;
+      return Span.NONE;
+    }
+    Span span = new Span(trace, name, trace.depth++);
+    trace.spans.add(span);
+    return span;
+  }
+
+  /**
+   * Formats the trace, one line per span (indented by nesting), with the time it started at from
+   * the start of the request.
+   *
+   * @param durationNanos The time taken to handle the request, as returned by finish.
+   * @return The formatted trace.
+   */
+  public String format(long durationNanos) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(
+        String.format(
+            "%s took %.1f ms, %d spans", name, durationNanos / 1e6, spans.size()));
+    if (droppedSpans > 0) {
+      builder.append(String.format(" (%d more dropped)", droppedSpans));
+    }
+    for (Span span : spans) {
+      builder.append(
+          String.format(
+              "%n%8.1f ms %8.1f ms  %s%s",
+              (span.startNanos - startNanos) / 1e6,
+              span.durationNanos / 1e6,
+              new String(new char[2 * span.depth]).replace('\0', ' '),
+              span.name));
+      if (span.kind != null) {
+        builder.append(" kind=").append(span.kind);
+      }
+      if (span.keyCount >= 0) {
+        builder.append(" keys=").append(span.keyCount);
+      }
+      if (span.resultCount >= 0) {
+        builder.append(" results=").append(span.resultCount);
+      }
+      if (span.durationNanos < 0) {
+        builder.append(" (not finished)");
+      }
+    }
+    return builder.toString();
+  }
+
+  /** A call made while handling the request. The counts that aren't known are left at -1. */
+  static final class Span implements AutoCloseable {
+
+    // The span returned when nothing is traced, whose setters do nothing.
+    private static final Span NONE = new Span(null, null, 0);
+
+    private final RequestTrace trace;
+    private final String name;
+    private final int depth;
+    private final long startNanos;
+    private long durationNanos = -1;
+    private String kind;
+    private int keyCount = -1;
+    private int resultCount = -1;
+
+    private Span(RequestTrace trace, String name, int depth) {
+      this.trace = trace;
+      this.name = name;
+      this.depth = depth;
+      startNanos = (trace != null) ? System.nanoTime() : 0;
+    }
+
+    /** Sets the kind of the entities read or written. */
+    void setKind(String kind) {
+      if (trace != null) {
+        this.kind = kind;
+      }
+    }
+
+    /** Sets the number of keys (or entities) sent with the call. */
+    void setKeyCount(int keyCount) {
+      if (trace != null) {
+        this.keyCount = keyCount;
+      }
+    }
+
+    /** Sets the number of results returned by the call. */
+    void setResultCount(int resultCount) {
+      if (trace != null) {
+        this.resultCount = resultCount;
+      }
+    }
+
+    @Override
+    public void close() {
+      if (trace != null) {
+        durationNanos = System.nanoTime() - startNanos;
+        trace.depth--;
+      }
+    }
+  }
+}
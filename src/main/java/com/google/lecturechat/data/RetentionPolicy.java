@@ -0,0 +1,46 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+/**
+ * The retention policy of the chat messages of an event: the messages are kept for a number of
+ * hours after the end of the event (or after they were sent, for messages sent later than that).
+ */
+final class RetentionPolicy {
+
+  private final long eventEnd;
+  private final long retentionMillis;
+
+  /**
+   * Creates the policy of an event.
+   *
+   * @param eventEnd The end time of the event, in milliseconds since epoch.
+   * @param retentionHours The number of hours the messages are kept after the end of the event.
+   */
+  RetentionPolicy(long eventEnd, int retentionHours) {
+    this.eventEnd = eventEnd;
+    this.retentionMillis = retentionHours * 60L * 60 * 1000;
+  }
+
+  /**
+   * Gets the time after which a message of the event can be deleted.
+   *
+   * @param timestamp The time the message was sent, in milliseconds since epoch.
+   * @return The expiry time of the message, in milliseconds since epoch.
+   */
+  long getExpiryTime(long timestamp) {
+    return Math.max(eventEnd, timestamp) + retentionMillis;
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.lecturechat.data.constants.UserEntity;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The signed in user of a single request, together with the entities read from the datastore while
+ * handling that request. DatastoreAccess methods that receive the context read each entity at most
+ * once per request, so the context shouldn't outlive the request it was created for. Reads can
+ * also be started in the background (see DatastoreAccess.prefetchGroupDetails), and are awaited
+ * when first used, within the deadline of the request.
+ */
+public final class UserContext {
+
+  // How long the datastore reads made for a request may take in total.
+  private static final long REQUEST_DEADLINE_MILLIS = 10000;
+
+  private final String userId;
+  private final long deadline;
+  private final Map<Key, Optional<Entity>> entities = new HashMap<>();
+  private final Map<String, LongIdSet> joinedIds = new HashMap<>();
+  // The reads started in the background that weren't used yet.
+  private final Map<Key, Future<Map<Key, Entity>>> pendingEntities = new HashMap<>();
+  private final Map<Key, Iterable<Entity>> pendingMemberships = new HashMap<>();
+
+  public UserContext(String userId) {
+    this(userId, System.currentTimeMillis() + REQUEST_DEADLINE_MILLIS);
+  }
+
+  /**
+   * Creates the context of a request whose reads have to be done by the given deadline.
+   *
+   * @param userId The id of the signed in user.
+   * @param deadline The time (in milliseconds since epoch time) after which reads fail.
+   */
+  UserContext(String userId, long deadline) {
+    this.userId = userId;
+    this.deadline = deadline;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  /** Gets the key of the user entity. */
+  Key getUserKey() {
+    return KeyFactory.createKey(UserEntity.KIND.getLabel(), userId);
+  }
+
+  /**
+   * Gets an entity that was read during this request, if there is one.
+   *
+   * @param key The key of the entity.
+   * @return The entity (or an empty Optional object if it was read but not found), or null if the
+   *     entity wasn't read yet.
+   */
+  Optional<Entity> getReadEntity(Key key) {
+    awaitPendingEntity(key);
+    return entities.get(key);
+  }
+
+  /**
+   * Remembers the result of reading an entity.
+   *
+   * @param key The key of the entity.
+   * @param entity The entity read, or an empty Optional object if it wasn't found.
+   */
+  void setReadEntity(Key key, Optional<Entity> entity) {
+    entities.put(key, entity);
+  }
+
+  /**
+   * Gets an entity, reading it with the given function only the first time it is requested.
+   *
+   * @param key The key of the entity.
+   * @param reader The function used to read the entity from the datastore.
+   * @return The entity, or an empty Optional object if it wasn't found.
+   */
+  Optional<Entity> getEntity(Key key, Function<Key, Optional<Entity>> reader) {
+    awaitPendingEntity(key);
+    Optional<Entity> entity = entities.get(key);
+    if (entity == null) {
+      entity = reader.apply(key);
+      entities.put(key, entity);
+    }
+    return entity;
+  }
+
+  /**
+   * Gets the ids stored in one of the user's properties (e.g. the joined groups), computing the set
+   * only the first time it is requested.
+   *
+   * @param propertyName The name of the user property that contains the ids.
+   * @param supplier The function used to compute the set of ids.
+   * @return The set of ids.
+   */
+  LongIdSet getJoinedIds(String propertyName, Supplier<LongIdSet> supplier) {
+    return joinedIds.computeIfAbsent(propertyName, name -> supplier.get());
+  }
+
+  /**
+   * Checks if an entity was read or is being read during this request.
+   *
+   * @param key The key of the entity.
+   * @return True if the entity doesn't have to be read again.
+   */
+  boolean isReadOrPending(Key key) {
+    return entities.containsKey(key) || pendingEntities.containsKey(key);
+  }
+
+  /**
+   * Remembers a batch get started in the background, so that the entities are taken from its
+   * result when they are first requested.
+   *
+   * @param keys The keys of the entities read.
+   * @param result The future result of the batch get.
+   */
+  void setPendingEntities(Iterable<Key> keys, Future<Map<Key, Entity>> result) {
+    for (Key key : keys) {
+      pendingEntities.put(key, result);
+    }
+  }
+
+  /**
+   * Remembers a query of the memberships of a group or event that was started in the background.
+   *
+   * @param entityKey The key of the group or event.
+   * @param memberships The results of the query, which are fetched in the background.
+   */
+  void setPendingMemberships(Key entityKey, Iterable<Entity> memberships) {
+    pendingMemberships.put(entityKey, memberships);
+  }
+
+  /**
+   * Takes the results of the query of the memberships of a group or event started in the
+   * background, if there is one.
+   *
+   * @param entityKey The key of the group or event.
+   * @return An Optional object that contains the results of the query, which can only be used once.
+   */
+  Optional<Iterable<Entity>> takePendingMemberships(Key entityKey) {
+    return Optional.ofNullable(pendingMemberships.remove(entityKey));
+  }
+
+  /**
+   * Gets the time left until the deadline of the request.
+   *
+   * @return The remaining time in milliseconds.
+   * @throws DatastoreTimeoutException If the deadline has already passed.
+   */
+  long getRemainingMillis() {
+    long remainingMillis = deadline - System.currentTimeMillis();
+    if (remainingMillis <= 0) {
+      throw new DatastoreTimeoutException("The deadline of the request has passed.");
+    }
+    return remainingMillis;
+  }
+
+  /**
+   * Waits for the batch get that reads the entity in the background, if there is one, and stores
+   * its result like the entities read directly.
+   *
+   * @param key The key of the entity.
+   * @throws DatastoreTimeoutException If the get didn't finish before the deadline of the request.
+   */
+  private void awaitPendingEntity(Key key) {
+    Future<Map<Key, Entity>> result = pendingEntities.remove(key);
+    if (result == null) {
+      return;
+    }
+    try {
+      Map<Key, Entity> foundEntities = result.get(getRemainingMillis(), TimeUnit.MILLISECONDS);
+      entities.put(key, Optional.ofNullable(foundEntities.get(key)));
+    } catch (TimeoutException e) {
+      throw new DatastoreTimeoutException("The deadline of the request has passed.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreTimeoutException("The request was interrupted.", e);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bounded cache of the id_tokens that were already verified, so the signature of a token is only
+ * checked once until it expires. The tokens are identified by their SHA-256 hash, so the raw tokens
+ * are never kept in memory.
+ */
+final class VerifiedTokenCache {
+
+  private final LinkedHashMap<String, GoogleIdToken> tokens;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxTokens The maximum number of tokens kept (the least recently used are evicted).
+   */
+  VerifiedTokenCache(int maxTokens) {
+    tokens =
+        new LinkedHashMap<String, GoogleIdToken>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, GoogleIdToken> eldest) {
+            return size() > maxTokens;
+          }
+        };
+  }
+
+  /**
+   * Gets the verified token associated with the raw token, if it is cached and didn't expire.
+   *
+   * @param idTokenString The raw id_token.
+   * @return An Optional object that contains the verified token if it was cached.
+   */
+  Optional<GoogleIdToken> get(String idTokenString) {
+    String hash = hash(idTokenString);
+    synchronized (tokens) {
+      GoogleIdToken idToken = tokens.get(hash);
+      if (idToken == null) {
+        return Optional.empty();
+      }
+      if (isExpired(idToken)) {
+        tokens.remove(hash);
+        return Optional.empty();
+      }
+      return Optional.of(idToken);
+    }
+  }
+
+  /**
+   * Caches a token that was successfully verified until its expiration time.
+   *
+   * @param idTokenString The raw id_token.
+   * @param idToken The verified token.
+   */
+  void put(String idTokenString, GoogleIdToken idToken) {
+    if (isExpired(idToken)) {
+      return;
+    }
+    String hash = hash(idTokenString);
+    synchronized (tokens) {
+      tokens.put(hash, idToken);
+    }
+  }
+
+  private static boolean isExpired(GoogleIdToken idToken) {
+    Long expirationTimeSeconds = idToken.getPayload().getExpirationTimeSeconds();
+    return expirationTimeSeconds == null
+        || expirationTimeSeconds * 1000 <= System.currentTimeMillis();
+  }
+
+  private static String hash(String idTokenString) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return Base64.getEncoder()
+          .encodeToString(digest.digest(idTokenString.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data.constants;
+
+/**
+ * Specifies the kind and property names to use for attendance entities in the datastore database.
+ * An attendance entity is a child of the user that joined the event and has the id of the event, so
+ * the events joined by a user can be queried by their start date without reading other users'
+ * events.
+ */
+public enum AttendanceEntity {
+  KIND("Attendance"),
+  START_PROPERTY("start");
+
+  /* Labels comments and properties of attendances in the database. */
+  private final String label;
+
+  private AttendanceEntity(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data.constants;
+
+/**
+ * Specifies the kind and property names to use for the entities that store the progress of the
+ * backfills in the datastore database. Each backfill has one such entity, named after it, which is
+ * kept once the backfill is done so that the code that depends on the backfill can check it.
+ */
+public enum BackfillJobEntity {
+  KIND("BackfillJob"),
+  CURSOR_PROPERTY("cursor"),
+  SCANNED_PROPERTY("scanned"),
+  UPDATED_ENTITIES_PROPERTY("updatedEntities"),
+  CHUNKS_PROPERTY("chunks"),
+  STARTED_PROPERTY("started"),
+  UPDATED_PROPERTY("updated"),
+  DONE_PROPERTY("done");
+
+  /* Labels comments and properties of the backfill jobs in the database. */
+  private final String label;
+
+  private BackfillJobEntity(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+}
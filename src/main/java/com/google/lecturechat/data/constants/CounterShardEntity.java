@@ -0,0 +1,39 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data.constants;
+
+/**
+ * Specifies the kind and property names to use for counter shard entities in the datastore
+ * database. A counter (e.g. the number of attendees of an event) is split into several shards named
+ * after the counter and the index of the shard (e.g. "Event:12:members:3"). Every increment writes
+ * a random shard, and the value of the counter is the sum of its shards. The first shard (index 0)
+ * also holds the number of shards in use, which only grows when increments collide.
+ */
+public enum CounterShardEntity {
+  KIND("CounterShard"),
+  COUNT_PROPERTY("count"),
+  SHARDS_PROPERTY("shards");
+
+  /* Labels comments and properties of counter shards in the database. */
+  private final String label;
+
+  private CounterShardEntity(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+}
@@ -22,7 +22,10 @@ public enum EventEntity {
   END_PROPERTY("end"),
   CREATOR_PROPERTY("creator"),
   MESSAGES_PROPERTY("messages"),
-  ATTENDEES_PROPERTY("attendees");
+  // Only holds the attendees that joined before memberships were stored.
+  ATTENDEES_PROPERTY("attendees"),
+  GROUP_PROPERTY("group"),
+  RETENTION_PROPERTY("retentionHours");
 
   /* Labels comments and properties of events in the database. */
   private final String label;
@@ -20,6 +20,7 @@ public enum GroupEntity {
   UNIVERSITY_PROPERTY("university"),
   DEGREE_PROPERTY("degree"),
   YEAR_PROPERTY("year"),
+  // Only holds the students that joined before memberships were stored.
   STUDENTS_PROPERTY("students"),
   EVENTS_PROPERTY("events");
 
@@ -0,0 +1,39 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data.constants;
+
+/**
+ * Specifies the kind and property names to use for membership entities in the datastore database.
+ * A membership records that a user joined a group or an event. It is a child of the user, named
+ * after the kind and the id of the entity joined (e.g. "Event:12"), so joining only writes the
+ * user's own entity group instead of the entity that every other member joins too.
+ */
+public enum MembershipEntity {
+  KIND("Membership"),
+  ENTITY_KIND_PROPERTY("kind"),
+  ENTITY_ID_PROPERTY("entity"),
+  JOINED_PROPERTY("joined");
+
+  /* Labels comments and properties of memberships in the database. */
+  private final String label;
+
+  private MembershipEntity(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+}
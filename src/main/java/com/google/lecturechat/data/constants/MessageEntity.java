@@ -20,7 +20,8 @@ public enum MessageEntity {
   CONTENT_PROPERTY("content"),
   TIMESTAMP_PROPERTY("timestamp"),
   AUTHOR_PROPERTY("author"),
-  EVENT_PROPERTY("event");
+  EVENT_PROPERTY("event"),
+  EXPIRY_SLOT_PROPERTY("expirySlot");
 
   /* Labels comments and properties of events in the database. */
   private final String label;
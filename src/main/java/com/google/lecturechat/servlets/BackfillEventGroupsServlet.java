@@ -0,0 +1,50 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.Backfill;
+import com.google.lecturechat.data.DatastoreAccess;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for starting the backfill that stores the group id in the events created before events
+ * kept track of their group. The groups are scanned in chunks by BackfillTaskServlet. Only to be
+ * called by an admin (see web.xml), and can be called again safely (events that already have a
+ * group are skipped).
+ */
+@WebServlet("/backfill-event-groups")
+public class BackfillEventGroupsServlet extends HttpServlet {
+
+  private static DatastoreAccess datastore;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    BackfillTaskServlet.start(datastore, Backfill.EVENT_GROUPS, response);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    doGet(request, response);
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.lecturechat.servlets;
 
+import com.google.lecturechat.data.Backfill;
 import com.google.lecturechat.data.DatastoreAccess;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
@@ -22,12 +23,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet for deleting all chat messages before a certain time. Only to be called by a cron job.
+ * Servlet for starting the backfill that stores the names of the groups created before group names
+ * were stored. The groups are scanned in chunks by BackfillTaskServlet. Only to be called by an
+ * admin (see web.xml), and can be called again safely (groups that have a name are skipped).
  */
-@WebServlet("/delete-messages")
-public class DeleteMessagesCronServlet extends HttpServlet {
+@WebServlet("/backfill-group-names")
+public class BackfillGroupNamesServlet extends HttpServlet {
 
-  private static final int TIMEFRAME_MESSAGES_TO_KEEP = 24;
   private static DatastoreAccess datastore;
 
   @Override
@@ -37,11 +39,7 @@ public class DeleteMessagesCronServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    String cronHeader = request.getHeader("X-Appengine-Cron");
-    if (cronHeader == null || !cronHeader.equals("true")) {
-      return;
-    }
-    datastore.deleteMessagesOlderThan(TIMEFRAME_MESSAGES_TO_KEEP);
+    BackfillTaskServlet.start(datastore, Backfill.GROUP_NAMES, response);
   }
 
   @Override
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.servlets;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.lecturechat.data.Backfill;
+import com.google.lecturechat.data.BackfillJob;
+import com.google.lecturechat.data.DatastoreAccess;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for scanning the next chunks of a backfill in progress. If the backfill isn't done after
+ * a few chunks, the servlet enqueues itself again, so every task stays short. Only to be called by
+ * a task queue; the backfills are started by the Backfill*Servlet servlets (see start).
+ */
+@WebServlet("/backfill-task")
+public class BackfillTaskServlet extends HttpServlet {
+
+  private static final String URL = "/backfill-task";
+  private static final String BACKFILL_PARAMETER = "backfill";
+  private static final int ENTITIES_PER_CHUNK = 100;
+  private static final int MAX_CHUNKS_PER_TASK = 20;
+  private static final long MAX_TASK_MILLIS = 60 * 1000;
+  // A backfill whose progress wasn't updated for this long is considered stalled and is resumed.
+  private static final long STALLED_BACKFILL_MILLIS = 10 * 60 * 1000;
+  private static final Logger logger = Logger.getLogger(BackfillTaskServlet.class.getName());
+  private static DatastoreAccess datastore;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  /** Adds a task that continues a backfill to the default queue. */
+  private static void enqueue(Backfill backfill) {
+    QueueFactory.getDefaultQueue()
+        .add(
+            TaskOptions.Builder.withUrl(URL)
+                .param(BACKFILL_PARAMETER, backfill.getName())
+                .method(TaskOptions.Method.POST));
+  }
+
+  /**
+   * Starts a backfill (or resumes it if it stalled) and writes its progress as the response. A
+   * backfill that is already running is left alone, and one that is done is run again.
+   *
+   * @param datastore The datastore access of the calling servlet.
+   * @param backfill The backfill.
+   * @param response The response to which the progress will be written.
+   */
+  static void start(DatastoreAccess datastore, Backfill backfill, HttpServletResponse response)
+      throws IOException {
+    Optional<BackfillJob> job = datastore.getBackfillJob(backfill);
+    String status;
+    if (!job.isPresent() || job.get().isDone()) {
+      datastore.startBackfillJob(backfill);
+      enqueue(backfill);
+      status = "Started";
+    } else if (System.currentTimeMillis() - job.get().getUpdatedAt() > STALLED_BACKFILL_MILLIS) {
+      enqueue(backfill);
+      status = "Resumed";
+    } else {
+      status = "Already running";
+    }
+
+    response.setContentType("text/plain;");
+    response.getWriter().println(status + " the backfill " + backfill.getName() + ".");
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String queueHeader = request.getHeader("X-AppEngine-QueueName");
+    if (queueHeader == null) {
+      return;
+    }
+
+    Backfill backfill = Backfill.fromName(request.getParameter(BACKFILL_PARAMETER));
+    Optional<BackfillJob> storedJob = datastore.getBackfillJob(backfill);
+    if (!storedJob.isPresent() || storedJob.get().isDone()) {
+      return;
+    }
+
+    BackfillJob job = storedJob.get();
+    long taskStart = System.currentTimeMillis();
+    long scannedBefore = job.getScannedEntities();
+    int chunks = 0;
+    while (!job.isDone()
+        && chunks < MAX_CHUNKS_PER_TASK
+        && System.currentTimeMillis() - taskStart < MAX_TASK_MILLIS) {
+      job = datastore.runNextBackfillChunk(job, ENTITIES_PER_CHUNK);
+      chunks++;
+    }
+
+    logger.info(
+        String.format(
+            "Backfill %s: scanned %d entities in %d chunks and %d ms, %d entities in %d chunks"
+                + " (%d updated) since %d%s.",
+            backfill.getName(),
+            job.getScannedEntities() - scannedBefore,
+            chunks,
+            System.currentTimeMillis() - taskStart,
+            job.getScannedEntities(),
+            job.getChunks(),
+            job.getUpdatedEntities(),
+            job.getStartedAt(),
+            job.isDone() ? ", done" : ""));
+
+    if (!job.isDone()) {
+      enqueue(backfill);
+    }
+  }
+}
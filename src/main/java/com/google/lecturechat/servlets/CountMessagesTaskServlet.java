@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.DatastoreAccess;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for incrementing the messages counter of an event by the messages of a written batch.
+ * Only to be called by the tasks enqueued when messages are added (see DatastoreAccess); a task
+ * whose increment failed is retried by the queue.
+ */
+@WebServlet(DatastoreAccess.COUNT_MESSAGES_TASK_URL)
+public class CountMessagesTaskServlet extends HttpServlet {
+
+  private static final Logger logger = Logger.getLogger(CountMessagesTaskServlet.class.getName());
+  private static DatastoreAccess datastore;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String queueHeader = request.getHeader("X-AppEngine-QueueName");
+    if (queueHeader == null) {
+      return;
+    }
+
+    long eventId;
+    long count;
+    try {
+      eventId =
+          Long.parseLong(request.getParameter(DatastoreAccess.COUNT_MESSAGES_EVENT_PARAMETER));
+      count = Long.parseLong(request.getParameter(DatastoreAccess.COUNT_MESSAGES_COUNT_PARAMETER));
+    } catch (NumberFormatException e) {
+      // Retrying the task wouldn't help.
+      logger.warning("Dropped a messages count task without a valid event or count.");
+      return;
+    }
+    datastore.incrementMessagesCounter(eventId, count);
+  }
+}
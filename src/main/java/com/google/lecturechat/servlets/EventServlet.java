@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.gson.Gson;
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.Event;
+import com.google.lecturechat.data.UserContext;
+import java.io.IOException;
+import java.util.Optional;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.BadRequestException;
+
+/**
+ * Servlet for getting all the details of an event (including the ids of its attendees). Only the
+ * attendees of the event can see its details.
+ */
+@WebServlet("/event")
+public class EventServlet extends HttpServlet {
+
+  private static final String EVENT_ID_PARAMETER = "event-id";
+  private static DatastoreAccess datastore;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
+
+    if (!user.isPresent()) {
+      return;
+    }
+
+    try {
+      long eventId = Long.parseLong(request.getParameter(EVENT_ID_PARAMETER));
+      datastore.prefetchEventDetails(user.get(), eventId);
+      if (!datastore.isAttendeeOfEvent(user.get(), eventId)) {
+        return;
+      }
+
+      Event event = datastore.getEvent(user.get(), eventId);
+      response.setContentType("application/json;");
+      response.setCharacterEncoding("UTF-8");
+      Gson gson = new Gson();
+      response.getWriter().println(gson.toJson(event));
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException and events that don't exist.
+      throw new BadRequestException(e.getMessage());
+    }
+  }
+}
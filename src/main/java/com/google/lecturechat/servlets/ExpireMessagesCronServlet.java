@@ -0,0 +1,62 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.DatastoreAccess;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for deleting the chat messages whose retention expired, according to the retention
+ * policy of their event. Only to be called by a cron job, every 15 minutes (the length of an expiry
+ * slot), so each call only deletes the messages of one slot.
+ */
+@WebServlet("/expire-messages")
+public class ExpireMessagesCronServlet extends HttpServlet {
+
+  // Messages left over when the time runs out are deleted by the next tick.
+  private static final long MAX_TICK_MILLIS = 60 * 1000;
+  private static final Logger logger = Logger.getLogger(ExpireMessagesCronServlet.class.getName());
+  private static DatastoreAccess datastore;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String cronHeader = request.getHeader("X-Appengine-Cron");
+    if (cronHeader == null || !cronHeader.equals("true")) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    int deletedMessages = datastore.deleteExpiredMessages(MAX_TICK_MILLIS);
+    logger.info(
+        String.format(
+            "Deleted %d expired messages in %d ms.",
+            deletedMessages, System.currentTimeMillis() - start));
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    doGet(request, response);
+  }
+}
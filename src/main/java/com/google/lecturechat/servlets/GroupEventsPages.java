@@ -0,0 +1,72 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.EventsPage;
+import com.google.lecturechat.data.UserContext;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads the pages of a group's events requested from the servlets that list them (the events the
+ * user joined, or didn't join yet), which share the same paging parameters.
+ */
+final class GroupEventsPages {
+
+  private static final String FROM_PARAMETER = "from";
+  private static final String TO_PARAMETER = "to";
+  private static final String CURSOR_PARAMETER = "cursor";
+  private static final String LIMIT_PARAMETER = "limit";
+  private static final int DEFAULT_PAGE_SIZE = 20;
+  private static final int MAX_PAGE_SIZE = 100;
+
+  private GroupEventsPages() {}
+
+  /**
+   * Gets the page of the group's events described by the request parameters: the interval [from,
+   * to) of the start dates (unbounded by default), the cursor of the page and the page size.
+   *
+   * @param datastore The datastore access of the calling servlet.
+   * @param request The request that contains the parameters.
+   * @param user The context of the request.
+   * @param groupId The id of the group.
+   * @param joined True to get the events joined by the user, false to get the other events.
+   * @return The page of events.
+   * @throws IllegalArgumentException If one of the parameters is not valid.
+   */
+  static EventsPage getEventsPage(
+      DatastoreAccess datastore,
+      HttpServletRequest request,
+      UserContext user,
+      long groupId,
+      boolean joined) {
+    String from = request.getParameter(FROM_PARAMETER);
+    String to = request.getParameter(TO_PARAMETER);
+    String limit = request.getParameter(LIMIT_PARAMETER);
+    int pageSize = (limit != null) ? Integer.parseInt(limit) : DEFAULT_PAGE_SIZE;
+    if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+    }
+
+    return datastore.getEventsPageFromGroup(
+        user,
+        groupId,
+        (from != null) ? Long.parseLong(from) : Long.MIN_VALUE,
+        (to != null) ? Long.parseLong(to) : Long.MAX_VALUE,
+        joined,
+        request.getParameter(CURSOR_PARAMETER),
+        pageSize);
+  }
+}
@@ -15,11 +15,10 @@
 package com.google.lecturechat.servlets;
 
 import com.google.gson.Gson;
-import com.google.lecturechat.data.AuthStatus;
 import com.google.lecturechat.data.DatastoreAccess;
-import com.google.lecturechat.data.Event;
+import com.google.lecturechat.data.EventsPage;
+import com.google.lecturechat.data.UserContext;
 import java.io.IOException;
-import java.util.List;
 import java.util.Optional;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -28,8 +27,9 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.BadRequestException;
 
 /**
- * Servlet for adding a new event to a group and listing all the events of that group that the user
- * didn't join yet.
+ * Servlet for adding a new event to a group and listing the events of that group that the user
+ * didn't join yet. The events are listed one page at a time, ordered by their start date, and can
+ * be restricted to the ones that start in a given interval.
  */
 @WebServlet("/group-events")
 public class GroupEventsServlet extends HttpServlet {
@@ -38,6 +38,7 @@ public class GroupEventsServlet extends HttpServlet {
   private static final String TITLE_PARAMETER = "title";
   private static final String START_DATE_PARAMETER = "start";
   private static final String END_DATE_PARAMETER = "end";
+  private static final String RETENTION_PARAMETER = "retention-hours";
   private static DatastoreAccess datastore;
 
   @Override
@@ -47,51 +48,61 @@ public class GroupEventsServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
     try {
       long groupId = Long.parseLong(request.getParameter(GROUP_ID_PARAMETER));
-      if (!datastore.isMemberOfGroup(userId.get(), groupId)) {
+      // Checked first, so that the events of the group aren't even queried for other users.
+      if (!datastore.isMemberOfGroup(user.get(), groupId)) {
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
         return;
       }
+      EventsPage page =
+          GroupEventsPages.getEventsPage(datastore, request, user.get(), groupId, false);
 
-      List<Event> events = datastore.getAllNotJoinedEventsFromGroup(groupId, userId.get());
       response.setContentType("application/json;");
       response.setCharacterEncoding("UTF-8");
       Gson gson = new Gson();
-      response.getWriter().println(gson.toJson(events));
-    } catch (NumberFormatException e) {
+      response.getWriter().println(gson.toJson(page));
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException and invalid cursors.
       throw new BadRequestException(e.getMessage());
     }
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
     try {
       long groupId = Long.parseLong(request.getParameter(GROUP_ID_PARAMETER));
-      if (!datastore.isMemberOfGroup(userId.get(), groupId)) {
+      if (!datastore.isMemberOfGroup(user.get(), groupId)) {
         return;
       }
 
       String title = (String) request.getParameter(TITLE_PARAMETER);
       long start = Long.parseLong(request.getParameter(START_DATE_PARAMETER));
       long end = Long.parseLong(request.getParameter(END_DATE_PARAMETER));
+      String retention = request.getParameter(RETENTION_PARAMETER);
 
-      long eventId = datastore.addEventToGroup(groupId, title, start, end, userId.get());
+      long eventId =
+          (retention != null)
+              ? datastore.addEventToGroup(
+                  groupId, title, start, end, user.get().getUserId(), Integer.parseInt(retention))
+              : datastore.addEventToGroup(groupId, title, start, end, user.get().getUserId());
       if (eventId != 0) {
-        datastore.joinEvent(userId.get(), eventId);
+        datastore.joinEvent(user.get().getUserId(), eventId);
       }
-    } catch (NumberFormatException e) {
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException and retentions out of range.
       throw new BadRequestException(e.getMessage());
     }
   }
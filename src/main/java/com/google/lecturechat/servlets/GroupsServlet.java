@@ -15,11 +15,10 @@
 package com.google.lecturechat.servlets;
 
 import com.google.gson.Gson;
-import com.google.lecturechat.data.AuthStatus;
 import com.google.lecturechat.data.DatastoreAccess;
-import com.google.lecturechat.data.Group;
+import com.google.lecturechat.data.GroupsPage;
+import com.google.lecturechat.data.UserContext;
 import java.io.IOException;
-import java.util.List;
 import java.util.Optional;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -27,13 +26,20 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.BadRequestException;
 
-/** Servlet for adding a new group and listing all the groups that the user didn't join yet. */
+/**
+ * Servlet for adding a new group and listing the groups that the user didn't join yet. The groups
+ * are listed one page at a time and can be filtered by university, degree and year.
+ */
 @WebServlet("/groups")
 public class GroupsServlet extends HttpServlet {
 
   private static final String UNIVERSITY_PARAMETER = "university";
   private static final String DEGREE_PARAMETER = "degree";
   private static final String YEAR_PARAMETER = "year";
+  private static final String CURSOR_PARAMETER = "cursor";
+  private static final String LIMIT_PARAMETER = "limit";
+  private static final int DEFAULT_PAGE_SIZE = 20;
+  private static final int MAX_PAGE_SIZE = 100;
   private static DatastoreAccess datastore;
 
   @Override
@@ -43,24 +49,45 @@ public class GroupsServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
-    List<Group> groups = datastore.getNotJoinedGroups(userId.get());
+    GroupsPage page;
+    try {
+      String year = request.getParameter(YEAR_PARAMETER);
+      String limit = request.getParameter(LIMIT_PARAMETER);
+      int pageSize = (limit != null) ? Integer.parseInt(limit) : DEFAULT_PAGE_SIZE;
+      if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+        throw new BadRequestException("The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+      }
+
+      page =
+          datastore.getNotJoinedGroupsPage(
+              user.get(),
+              request.getParameter(UNIVERSITY_PARAMETER),
+              request.getParameter(DEGREE_PARAMETER),
+              (year != null) ? Integer.valueOf(year) : null,
+              request.getParameter(CURSOR_PARAMETER),
+              pageSize);
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException and invalid cursors.
+      throw new BadRequestException(e.getMessage());
+    }
+
     response.setContentType("application/json;");
     response.setCharacterEncoding("UTF-8");
     Gson gson = new Gson();
-    response.getWriter().println(gson.toJson(groups));
+    response.getWriter().println(gson.toJson(page));
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
@@ -70,7 +97,7 @@ public class GroupsServlet extends HttpServlet {
       int year = Integer.parseInt(request.getParameter(YEAR_PARAMETER));
 
       long groupId = datastore.addGroup(university, degree, year);
-      datastore.joinGroup(userId.get(), groupId);
+      datastore.joinGroup(user.get().getUserId(), groupId);
     } catch (NumberFormatException e) {
       throw new BadRequestException(e.getMessage());
     }
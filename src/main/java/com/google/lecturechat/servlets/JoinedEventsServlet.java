@@ -15,9 +15,10 @@
 package com.google.lecturechat.servlets;
 
 import com.google.gson.Gson;
-import com.google.lecturechat.data.AuthStatus;
 import com.google.lecturechat.data.DatastoreAccess;
-import com.google.lecturechat.data.Event;
+import com.google.lecturechat.data.EventSummary;
+import com.google.lecturechat.data.EventsPage;
+import com.google.lecturechat.data.UserContext;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
@@ -28,9 +29,10 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.BadRequestException;
 
 /**
- * Servlet for joining an event and listing all the events that satisfy a specific criteria (all the
- * events joined by the user that are associated with a given group, all the events joined by the
- * user whose start date is between two dates received).
+ * Servlet for joining an event and listing all the events that satisfy a specific criteria (the
+ * events joined by the user that are associated with a given group, listed one page at a time like
+ * in GroupEventsServlet, or all the events joined by the user whose start date is between two dates
+ * received). Both listings are returned as a page, the second one always being the last page.
  */
 @WebServlet("/joined-events")
 public class JoinedEventsServlet extends HttpServlet {
@@ -48,22 +50,24 @@ public class JoinedEventsServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
-    List<Event> events;
+    EventsPage page;
     String groupIdString = request.getParameter(GROUP_ID_PARAMETER);
 
     try {
       if (groupIdString != null) {
         long groupId = Long.parseLong(groupIdString);
-        if (!datastore.isMemberOfGroup(userId.get(), groupId)) {
+        // Checked first, so that the events of the group aren't even queried for other users.
+        if (!datastore.isMemberOfGroup(user.get(), groupId)) {
+          response.sendError(HttpServletResponse.SC_FORBIDDEN);
           return;
         }
-        events = datastore.getAllJoinedEventsFromGroup(groupId, userId.get());
+        page = GroupEventsPages.getEventsPage(datastore, request, user.get(), groupId, true);
       } else {
         String beginningDate = request.getParameter(BEGINNING_DATE_PARAMETER);
         String endingDate = request.getParameter(ENDING_DATE_PARAMETER);
@@ -71,31 +75,33 @@ public class JoinedEventsServlet extends HttpServlet {
         if (beginningDate == null || endingDate == null) {
           return;
         }
-        events =
-            datastore.getJoinedEventsThatStartBetweenDates(
-                Long.parseLong(beginningDate), Long.parseLong(endingDate), userId.get());
+        List<EventSummary> events =
+            datastore.getJoinedEventSummariesThatStartBetweenDates(
+                Long.parseLong(beginningDate), Long.parseLong(endingDate), user.get());
+        page = new EventsPage(events, null);
       }
-    } catch (NumberFormatException e) {
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException and invalid cursors.
       throw new BadRequestException(e.getMessage());
     }
 
     response.setContentType("application/json;");
     response.setCharacterEncoding("UTF-8");
     Gson gson = new Gson();
-    response.getWriter().println(gson.toJson(events));
+    response.getWriter().println(gson.toJson(page));
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
     try {
       long eventId = Long.parseLong(request.getParameter(EVENT_ID_PARAMETER));
-      datastore.joinEvent(userId.get(), eventId);
+      datastore.joinEvent(user.get().getUserId(), eventId);
     } catch (NumberFormatException e) {
       throw new BadRequestException(e.getMessage());
     }
@@ -15,9 +15,9 @@
 package com.google.lecturechat.servlets;
 
 import com.google.gson.Gson;
-import com.google.lecturechat.data.AuthStatus;
 import com.google.lecturechat.data.DatastoreAccess;
-import com.google.lecturechat.data.Group;
+import com.google.lecturechat.data.GroupSummary;
+import com.google.lecturechat.data.UserContext;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
@@ -41,13 +41,13 @@ public class JoinedGroupsServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
-    List<Group> groups = datastore.getJoinedGroups(userId.get());
+    List<GroupSummary> groups = datastore.getJoinedGroupSummaries(user.get());
     response.setContentType("application/json;");
     response.setCharacterEncoding("UTF-8");
     Gson gson = new Gson();
@@ -56,15 +56,15 @@ public class JoinedGroupsServlet extends HttpServlet {
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Optional<String> userId = AuthStatus.getUserId(request);
+    Optional<UserContext> user = UserContextFilter.getUserContext(request);
 
-    if (!userId.isPresent()) {
+    if (!user.isPresent()) {
       return;
     }
 
     try {
       long groupId = Long.parseLong(request.getParameter(GROUP_ID_PARAMETER));
-      datastore.joinGroup(userId.get(), groupId);
+      datastore.joinGroup(user.get().getUserId(), groupId);
     } catch (NumberFormatException e) {
       throw new BadRequestException(e.getMessage());
     }
@@ -22,24 +22,36 @@ import com.google.lecturechat.data.Message;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ServiceUnavailableException;
 
-/** Servlet for adding a chat message and getting all messages associated with an event. */
+/**
+ * Servlet for adding a chat message and getting the messages associated with an event. If the
+ * request includes the timestamp and the id of the last message seen, only the newer messages are
+ * returned, along with the most recent messages before them (see
+ * DatastoreAccess.getMessagesFromEventAfter). Adding a message returns the message that was added,
+ * so the chat room of its sender can display it without waiting for the next poll.
+ */
 @WebServlet("/messages")
 public class MessageServlet extends HttpServlet {
 
   private static final String EVENT_ID_PARAMETER = "id";
   private static final String MESSAGE_PARAMETER = "message";
+  private static final String LAST_TIMESTAMP_PARAMETER = "last-timestamp";
+  private static final String LAST_MESSAGE_ID_PARAMETER = "last-id";
   private static final int MESSAGE_LIMIT = 20;
   private static DatastoreAccess datastore;
+  private static MessageSubscribers subscribers;
 
   @Override
   public void init() {
     datastore = DatastoreAccess.getDatastoreAccess();
+    subscribers = MessageSubscribers.getMessageSubscribers();
   }
 
   @Override
@@ -50,7 +62,20 @@ public class MessageServlet extends HttpServlet {
 
     try {
       long eventId = Long.parseLong(request.getParameter(EVENT_ID_PARAMETER));
-      List<Message> messages = datastore.getMessagesFromEvent(eventId, MESSAGE_LIMIT);
+      String lastTimestamp = request.getParameter(LAST_TIMESTAMP_PARAMETER);
+      String lastMessageId = request.getParameter(LAST_MESSAGE_ID_PARAMETER);
+
+      List<Message> messages;
+      if (lastTimestamp != null && lastMessageId != null) {
+        messages =
+            datastore.getMessagesFromEventAfter(
+                eventId,
+                Long.parseLong(lastTimestamp),
+                Long.parseLong(lastMessageId),
+                MESSAGE_LIMIT);
+      } else {
+        messages = datastore.getMessagesFromEvent(eventId, MESSAGE_LIMIT);
+      }
       response.setContentType("application/json;");
       response.setCharacterEncoding("UTF-8");
       Gson gson = new Gson();
@@ -72,9 +97,17 @@ public class MessageServlet extends HttpServlet {
     try {
       long eventId = Long.parseLong(request.getParameter(EVENT_ID_PARAMETER));
       String content = request.getParameter(MESSAGE_PARAMETER);
-      datastore.addMessage(eventId, content, name);
+      Message message = datastore.addMessage(eventId, content, name);
+      subscribers.publish(message);
+      response.setContentType("application/json;");
+      response.setCharacterEncoding("UTF-8");
+      Gson gson = new Gson();
+      response.getWriter().println(gson.toJson(message));
     } catch (NumberFormatException e) {
       throw new BadRequestException(e.getMessage());
+    } catch (RejectedExecutionException e) {
+      // Too many messages are waiting to be written, so the client should retry later.
+      throw new ServiceUnavailableException(e.getMessage());
     }
   }
 }
@@ -0,0 +1,222 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.gson.Gson;
+import com.google.lecturechat.data.AuthStatus;
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.Message;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.BadRequestException;
+
+/**
+ * Servlet for long-polling the messages of an event. If there are no messages newer than the last
+ * message seen by the chat room, the request is held open until a new message is posted on this
+ * instance, or for a few seconds at most: messages posted on other instances don't wake it, so the
+ * messages are read once more when it times out.
+ */
+@WebServlet(urlPatterns = "/messages/stream", asyncSupported = true)
+public class MessageStreamServlet extends HttpServlet {
+
+  private static final String EVENT_ID_PARAMETER = "id";
+  private static final String LAST_TIMESTAMP_PARAMETER = "last-timestamp";
+  private static final String LAST_MESSAGE_ID_PARAMETER = "last-id";
+  private static final int MESSAGE_LIMIT = 20;
+  private static final long TIMEOUT_MILLISECONDS = 5000;
+  private static DatastoreAccess datastore;
+  private static MessageSubscribers subscribers;
+
+  @Override
+  public void init() {
+    datastore = DatastoreAccess.getDatastoreAccess();
+    subscribers = MessageSubscribers.getMessageSubscribers();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!AuthStatus.isSignedIn(request)) {
+      return;
+    }
+
+    long eventId;
+    long lastTimestamp;
+    long lastMessageId;
+    try {
+      eventId = Long.parseLong(request.getParameter(EVENT_ID_PARAMETER));
+      String lastTimestampString = request.getParameter(LAST_TIMESTAMP_PARAMETER);
+      String lastMessageIdString = request.getParameter(LAST_MESSAGE_ID_PARAMETER);
+      if (lastTimestampString == null || lastMessageIdString == null) {
+        writeMessages(response, datastore.getMessagesFromEvent(eventId, MESSAGE_LIMIT));
+        return;
+      }
+      lastTimestamp = Long.parseLong(lastTimestampString);
+      lastMessageId = Long.parseLong(lastMessageIdString);
+    } catch (NumberFormatException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+
+    new PendingRequest(request.startAsync(), eventId, lastTimestamp, lastMessageId).park();
+  }
+
+  /**
+   * Writes the list of messages as the JSON response.
+   *
+   * @param response The response to which the messages will be written.
+   * @param messages The messages that will be written.
+   */
+  private static void writeMessages(ServletResponse response, List<Message> messages)
+      throws IOException {
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    Gson gson = new Gson();
+    response.getWriter().println(gson.toJson(messages));
+  }
+
+  /**
+   * Checks if some of the messages come after the given cursor (the others are the overlap sent
+   * again, see DatastoreAccess.getMessagesFromEventAfter).
+   */
+  private static boolean hasMessagesAfter(
+      List<Message> messages, long lastTimestamp, long lastMessageId) {
+    return !messages.isEmpty()
+        && messages.get(messages.size() - 1).isAfter(lastTimestamp, lastMessageId);
+  }
+
+  /** A request that waits for a message newer than the last message seen by the chat room. */
+  private static final class PendingRequest
+      implements MessageSubscribers.Subscriber, AsyncListener {
+
+    private final AsyncContext asyncContext;
+    private final long eventId;
+    private final long lastTimestamp;
+    private final long lastMessageId;
+    private final AtomicBoolean isCompleted = new AtomicBoolean(false);
+
+    private PendingRequest(
+        AsyncContext asyncContext, long eventId, long lastTimestamp, long lastMessageId) {
+      this.asyncContext = asyncContext;
+      this.eventId = eventId;
+      this.lastTimestamp = lastTimestamp;
+      this.lastMessageId = lastMessageId;
+    }
+
+    /**
+     * Subscribes to new messages and then checks the datastore, so a message added in between is
+     * still delivered. If the limit of waiting requests was reached, it responds right away.
+     */
+    private void park() {
+      asyncContext.setTimeout(TIMEOUT_MILLISECONDS);
+      asyncContext.addListener(this);
+      boolean isSubscribed = subscribers.subscribe(eventId, this);
+
+      List<Message> messages =
+          datastore.getMessagesFromEventAfter(eventId, lastTimestamp, lastMessageId, MESSAGE_LIMIT);
+      if (hasMessagesAfter(messages, lastTimestamp, lastMessageId) || !isSubscribed) {
+        complete(messages);
+      }
+    }
+
+    @Override
+    public long getLastTimestamp() {
+      return lastTimestamp;
+    }
+
+    @Override
+    public long getLastMessageId() {
+      return lastMessageId;
+    }
+
+    @Override
+    public void start(Runnable task) {
+      asyncContext.start(task);
+    }
+
+    /** Receives the messages read after a message newer than the cursor was published. */
+    @Override
+    public void receive(List<Message> messages) {
+      if (isCompleted.get()) {
+        return;
+      }
+      List<Message> newMessages =
+          DatastoreAccess.selectMessagesAfter(
+              messages, lastTimestamp, lastMessageId, MESSAGE_LIMIT);
+      // If the message isn't visible to the query yet, the request waits for the next one.
+      if (hasMessagesAfter(newMessages, lastTimestamp, lastMessageId)
+          || !subscribers.subscribe(eventId, this)) {
+        complete(newMessages);
+      }
+    }
+
+    /**
+     * Writes the messages and completes the request (only the first call has an effect).
+     *
+     * @param messages The messages that will be written.
+     */
+    private void complete(List<Message> messages) {
+      if (!isCompleted.compareAndSet(false, true)) {
+        return;
+      }
+
+      subscribers.unsubscribe(eventId, this);
+      try {
+        writeMessages(asyncContext.getResponse(), messages);
+      } catch (IOException e) {
+        // The client went away, there is nobody left to respond to.
+      } finally {
+        asyncContext.complete();
+      }
+    }
+
+    /** Reads the messages once more, since the ones posted on other instances didn't wake it. */
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      if (isCompleted.get()) {
+        return;
+      }
+      List<Message> messages = Collections.emptyList();
+      try {
+        messages =
+            datastore.getMessagesFromEventAfter(
+                eventId, lastTimestamp, lastMessageId, MESSAGE_LIMIT);
+      } finally {
+        complete(messages);
+      }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      subscribers.unsubscribe(eventId, this);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      subscribers.unsubscribe(eventId, this);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.Message;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the chat room requests that are waiting for a new message, grouped by the id of the
+ * event they belong to. The registry only knows about the requests parked on this instance and
+ * limits how many of them can wait at the same time.
+ *
+ * <p>A message published for an event wakes all the requests whose cursor comes before it, and
+ * the messages after their cursors are read once for all of them, from the oldest cursor.
+ */
+final class MessageSubscribers {
+
+  private static final int MAX_SUBSCRIBERS = 500;
+  private static final int MESSAGE_LIMIT = 20;
+  private static final MessageSubscribers messageSubscribers =
+      new MessageSubscribers(MAX_SUBSCRIBERS, MESSAGE_LIMIT, DatastoreAccess.getDatastoreAccess());
+
+  private final int maxSubscribers;
+  private final int messageLimit;
+  private final DatastoreAccess datastore;
+  private final AtomicInteger subscribersCount = new AtomicInteger();
+  private final ConcurrentMap<Long, Set<Subscriber>> subscribersByEvent =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates an empty registry.
+   *
+   * @param maxSubscribers The maximum number of subscribers waiting at the same time.
+   * @param messageLimit The maximum number of messages after the oldest cursor read for the
+   *     subscribers woken by a message.
+   * @param datastore The datastore access used to read the messages.
+   */
+  MessageSubscribers(int maxSubscribers, int messageLimit, DatastoreAccess datastore) {
+    this.maxSubscribers = maxSubscribers;
+    this.messageLimit = messageLimit;
+    this.datastore = datastore;
+  }
+
+  /** Gets the registry shared by all the servlets of this instance. */
+  static MessageSubscribers getMessageSubscribers() {
+    return messageSubscribers;
+  }
+
+  /**
+   * Registers a subscriber that will receive the messages after its cursor once a newer message is
+   * published for the given event. The subscriber is removed from the registry once it is woken.
+   *
+   * @param eventId The id of the event.
+   * @param subscriber The subscriber that will receive the messages.
+   * @return True if the subscriber was registered, false if the limit of subscribers was reached.
+   */
+  boolean subscribe(long eventId, Subscriber subscriber) {
+    if (subscribersCount.incrementAndGet() > maxSubscribers) {
+      subscribersCount.decrementAndGet();
+      return false;
+    }
+
+    subscribersByEvent.compute(
+        eventId,
+        (id, subscribers) -> {
+          if (subscribers == null) {
+            subscribers = ConcurrentHashMap.newKeySet();
+          }
+          subscribers.add(subscriber);
+          return subscribers;
+        });
+    return true;
+  }
+
+  /**
+   * Removes a subscriber from the registry (if it wasn't already woken).
+   *
+   * @param eventId The id of the event.
+   * @param subscriber The subscriber that will be removed.
+   */
+  void unsubscribe(long eventId, Subscriber subscriber) {
+    subscribersByEvent.computeIfPresent(
+        eventId,
+        (id, subscribers) -> {
+          if (subscribers.remove(subscriber)) {
+            subscribersCount.decrementAndGet();
+          }
+          return subscribers.isEmpty() ? null : subscribers;
+        });
+  }
+
+  /**
+   * Wakes the subscribers of the event of a new message whose cursor comes before the message. The
+   * messages are read on a thread of the container of the first woken subscriber, so the thread
+   * that posted the message isn't held up.
+   *
+   * @param message The message that was added.
+   */
+  void publish(Message message) {
+    List<Subscriber> wokenSubscribers = new ArrayList<>();
+    subscribersByEvent.computeIfPresent(
+        message.getEvent(),
+        (id, subscribers) -> {
+          for (Subscriber subscriber : subscribers) {
+            if (message.isAfter(subscriber.getLastTimestamp(), subscriber.getLastMessageId())) {
+              subscribers.remove(subscriber);
+              wokenSubscribers.add(subscriber);
+            }
+          }
+          return subscribers.isEmpty() ? null : subscribers;
+        });
+    if (wokenSubscribers.isEmpty()) {
+      return;
+    }
+
+    subscribersCount.addAndGet(-wokenSubscribers.size());
+    wokenSubscribers.get(0).start(() -> deliver(message.getEvent(), wokenSubscribers));
+  }
+
+  /** Gets the number of subscribers waiting for a message. */
+  int getSubscribersCount() {
+    return subscribersCount.get();
+  }
+
+  /**
+   * Reads the messages after the oldest cursor of the woken subscribers, and hands them to all of
+   * them. The message that woke them is only a signal: messages posted on other instances (or
+   * concurrently on this one) can come before it.
+   */
+  private void deliver(long eventId, List<Subscriber> wokenSubscribers) {
+    Subscriber oldestSubscriber =
+        wokenSubscribers.stream()
+            .min(
+                Comparator.comparingLong(Subscriber::getLastTimestamp)
+                    .thenComparingLong(Subscriber::getLastMessageId))
+            .get();
+    List<Message> messages =
+        datastore.getMessagesFromEventAfter(
+            eventId,
+            oldestSubscriber.getLastTimestamp(),
+            oldestSubscriber.getLastMessageId(),
+            messageLimit);
+    for (Subscriber subscriber : wokenSubscribers) {
+      subscriber.receive(messages);
+    }
+  }
+
+  /** A request waiting for the messages that come after its cursor. */
+  interface Subscriber {
+
+    /** Gets the timestamp of the last message seen by the request. */
+    long getLastTimestamp();
+
+    /** Gets the id of the last message seen by the request. */
+    long getLastMessageId();
+
+    /** Runs a task on a thread of the container that holds the request. */
+    void start(Runnable task);
+
+    /**
+     * Receives the messages read for the subscribers woken together (see
+     * DatastoreAccess.selectMessagesAfter), which may not hold any message after the cursor of
+     * the request yet (e.g. if the message that woke it isn't visible to the query yet).
+     *
+     * @param messages The messages read from the oldest cursor of the woken subscribers.
+     */
+    void receive(List<Message> messages);
+  }
+}
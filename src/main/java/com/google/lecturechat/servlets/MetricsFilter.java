@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.MetricsRegistry;
+import com.google.lecturechat.data.RequestTrace;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Filter that records the latency of the requests made to the servlets used by the pages, by
+ * servlet and HTTP method (the long-polling message stream is left out, since its requests wait
+ * for new messages on purpose).
+ *
+ * <p>The datastore calls of each request are traced (see RequestTrace), and the trace is logged if
+ * the request took more than SLOW_REQUEST_MILLIS, or for a sample of TRACE_SAMPLING_RATE of the
+ * other requests. The runtime buffers the log records and sends them after the request, so
+ * reporting a trace only costs formatting it.
+ */
+@WebFilter(
+    urlPatterns = {
+      "/groups",
+      "/group",
+      "/joined-groups",
+      "/group-events",
+      "/joined-events",
+      "/event",
+      "/messages",
+      "/add-user"
+    })
+public class MetricsFilter implements Filter {
+
+  private static final long SLOW_REQUEST_MILLIS = 500;
+  private static final double TRACE_SAMPLING_RATE = 0.001;
+  private static final Logger logger = Logger.getLogger(MetricsFilter.class.getName());
+  private static final MetricsRegistry metrics = MetricsRegistry.getMetricsRegistry();
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    RequestTrace trace =
+        RequestTrace.start(httpRequest.getMethod() + " " + httpRequest.getServletPath());
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      long latencyNanos = trace.finish();
+      metrics.recordRequest(httpRequest.getServletPath(), httpRequest.getMethod(), latencyNanos);
+      if (latencyNanos > TimeUnit.MILLISECONDS.toNanos(SLOW_REQUEST_MILLIS)) {
+        logger.warning("Slow request: " + trace.format(latencyNanos));
+      } else if (ThreadLocalRandom.current().nextDouble() < TRACE_SAMPLING_RATE) {
+        logger.info("Sampled request: " + trace.format(latencyNanos));
+      }
+    }
+  }
+}
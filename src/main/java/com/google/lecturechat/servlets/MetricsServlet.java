@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.lecturechat.data.AccessSecrets;
+import com.google.lecturechat.data.MetricsRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that exposes the metrics of this instance (request latencies, datastore operations and
+ * cache lookups) in the Prometheus text format. The metrics only cover the instance that handles
+ * the request, so they have to be scraped from every instance. The scrapers have to send the token
+ * kept in the Secret Manager as a bearer token, since they can't sign in as an admin.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  private static final String BEARER_PREFIX = "Bearer ";
+  private static byte[] token;
+
+  @Override
+  public void init() throws ServletException {
+    try {
+      token = AccessSecrets.getMetricsToken().trim().getBytes(StandardCharsets.UTF_8);
+    } catch (IOException | ApiException e) {
+      throw new ServletException("The metrics token couldn't be read.", e);
+    }
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!isAuthorized(request.getHeader("Authorization"))) {
+      response.setHeader("WWW-Authenticate", "Bearer");
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    MetricsRegistry.getMetricsRegistry().writeTo(response.getWriter());
+  }
+
+  /**
+   * Checks the bearer token of a request, in constant time so that the token can't be guessed one
+   * character at a time.
+   *
+   * @param authorization The Authorization header of the request, or null if it has none.
+   * @return True if the header holds the metrics token.
+   */
+  private static boolean isAuthorized(String authorization) {
+    if (authorization == null || !authorization.startsWith(BEARER_PREFIX)) {
+      return false;
+    }
+    byte[] requestToken =
+        authorization.substring(BEARER_PREFIX.length()).trim().getBytes(StandardCharsets.UTF_8);
+    return MessageDigest.isEqual(token, requestToken);
+  }
+}
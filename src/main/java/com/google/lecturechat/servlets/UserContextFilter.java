@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import com.google.lecturechat.data.AuthStatus;
+import com.google.lecturechat.data.UserContext;
+import java.io.IOException;
+import java.util.Optional;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Filter that authenticates the user once per request and attaches a UserContext to the request
+ * (if the user is signed in), so the datastore calls made while handling the request can share the
+ * entities they read.
+ */
+@WebFilter(
+    urlPatterns = {
+      "/groups", "/group", "/joined-groups", "/group-events", "/joined-events", "/event"
+    })
+public class UserContextFilter implements Filter {
+
+  private static final String USER_CONTEXT_ATTRIBUTE = UserContext.class.getName();
+
+  /**
+   * Gets the context of the signed in user that made the request.
+   *
+   * @param request The request that went through this filter.
+   * @return An Optional object that contains the context if the user is signed in.
+   */
+  static Optional<UserContext> getUserContext(HttpServletRequest request) {
+    return Optional.ofNullable((UserContext) request.getAttribute(USER_CONTEXT_ATTRIBUTE));
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    Optional<String> userId = AuthStatus.getUserId((HttpServletRequest) request);
+    if (userId.isPresent()) {
+      request.setAttribute(USER_CONTEXT_ATTRIBUTE, new UserContext(userId.get()));
+    }
+    chain.doFilter(request, response);
+  }
+}
@@ -16,9 +16,17 @@
 
 
 let eventId;
-// Repeatedly load messages to synchronise chat between users.
+// The last message displayed, used to only request the newer messages.
+let lastMessage;
+// The ids of the messages displayed. The server also sends the messages of a
+// short window before the last message again (a message can become visible
+// after newer ones), and the ones already displayed are skipped.
+const displayedMessageIds = new Set();
+// Prevents overlapping requests from appending the same messages twice.
+let isLoadingMessages = false;
+// Delay before asking again when the server returned no new messages right
+// away (e.g. the server was too busy to hold the request open).
 const pollingIntervall = 1000;
-setInterval(showMessages, pollingIntervall);
 
 /**
  * Loads event id and title for this chat room.
@@ -27,8 +35,29 @@ window.loadEventData = function loadEventData() {
   const urlParams = new URLSearchParams(window.location.search);
   eventId = urlParams.get('id');
   document.getElementById('title').innerHTML = urlParams.get('title');
+  waitForMessages();
 };
 
+/**
+ * Repeatedly asks the server for new messages to synchronise chat between
+ * users. The server holds each request open for a few seconds, until a new
+ * message is posted.
+ */
+async function waitForMessages() {
+  for (;;) {
+    const startTime = Date.now();
+    let messagesCount = 0;
+    try {
+      messagesCount = await showMessages('/messages/stream');
+    } catch (error) {
+      messagesCount = 0;
+    }
+    if (messagesCount === 0 && Date.now() - startTime < pollingIntervall) {
+      await new Promise((resolve) => setTimeout(resolve, pollingIntervall));
+    }
+  }
+}
+
 /**
  * Sends message entered in form to server.
  */
@@ -40,27 +69,83 @@ window.sendMessage = async function sendMessage() {
     params.append(pair[0], pair[1]);
   }
   params.append('id', eventId);
-  await fetch('/messages', {
+  const response = await fetch('/messages', {
     method: 'POST',
     body: params,
   });
   form.reset();
-  showMessages();
+  const body = await response.text();
+  if (response.ok && body) {
+    // The poll in flight may be held by the server, so the message is
+    // displayed right away (the poll skips it once it returns).
+    displayMessages([JSON.parse(body)]);
+  }
 };
 
 /**
- * Retrieves all messages associated with the event from the server.
+ * Retrieves the messages associated with the event that weren't displayed yet
+ * from the server and appends them to the chat.
+ * @param {String} servlet The servlet from which the messages will be fetched.
+ * @return {int} The number of messages appended.
+ */
+async function showMessages(servlet = '/messages') {
+  if (isLoadingMessages) {
+    return 0;
+  }
+  isLoadingMessages = true;
+
+  let url = servlet + '?id=' + eventId;
+  if (lastMessage !== undefined) {
+    url += '&last-timestamp=' + lastMessage.timestamp +
+        '&last-id=' + lastMessage.id;
+  }
+
+  try {
+    const response = await fetch(url);
+    const displayedCount = displayMessages(await response.json());
+    if (lastMessage === undefined) {
+      // The chat is empty, so any message will be newer than this cursor.
+      lastMessage = {timestamp: 0, id: 0};
+    }
+    return displayedCount;
+  } finally {
+    isLoadingMessages = false;
+  }
+}
+
+/**
+ * Appends the messages that weren't displayed yet to the chat.
+ * @param {Array} messages The messages, in the order of the event.
+ * @return {int} The number of messages appended.
+ */
+function displayMessages(messages) {
+  const chat = document.getElementById('chat-container');
+  let displayedCount = 0;
+  for (const message of messages) {
+    if (displayedMessageIds.has(message.id)) {
+      continue;
+    }
+    displayedMessageIds.add(message.id);
+    chat.appendChild(createMessageElement(message));
+    displayedCount++;
+    if (lastMessage === undefined || isAfter(message, lastMessage)) {
+      lastMessage = message;
+    }
+  }
+  return displayedCount;
+}
+
+/**
+ * Checks if a message comes after another one, in the order of the messages of
+ * the event (by timestamp, then by id).
+ * @param {Object} message The message.
+ * @param {Object} otherMessage The other message.
+ * @return {boolean} True if the message comes after the other one.
  */
-async function showMessages() {
-  fetch('/messages?id=' + eventId)
-      .then((response) => response.json()).then(async (messages) => {
-        const chat = document.getElementById('chat-container');
-        chat.innerHTML = '';
-        let i = 0;
-        for (i = 0; i < messages.length; i++) {
-          chat.appendChild(createMessageElement(messages[i]));
-        }
-      });
+function isAfter(message, otherMessage) {
+  return message.timestamp > otherMessage.timestamp ||
+      (message.timestamp === otherMessage.timestamp &&
+          message.id > otherMessage.id);
 }
 
 /**
@@ -451,10 +451,11 @@ async function loadEvents(date) {
   url.search = params;
 
   const response = await fetch(url);
-  const events = await response.json();
+  // All the events of the month are in a single page.
+  const page = await response.json();
   const eventsDictionary = {};
 
-  events.forEach((event) => {
+  page.events.forEach((event) => {
     const eventStartDate = new Date(event.startTime);
     const eventEndDate = new Date(event.endTime);
     const eventStartDay = new Date(eventStartDate.getFullYear(),
@@ -90,11 +90,14 @@ function addNewEvent(groupId) {
   const title = document.getElementById('new-event-title').value;
   const start = Date.parse(document.getElementById('new-event-start').value);
   const end = Date.parse(document.getElementById('new-event-end').value);
+  const retentionHours =
+      document.getElementById('new-event-retention').value;
 
   params.append('group-id', groupId);
   params.append('title', title);
   params.append('start', start);
   params.append('end', end);
+  params.append('retention-hours', retentionHours);
 
   fetch('/group-events', {method: 'POST', body: params});
 }
@@ -225,7 +228,8 @@ function joinGroup(groupId) {
  * Fetches events (from the group specified by the groupId) from the servlet
  * and displays them in the given container. The hasJoined parameter can be
  * used to fetch all the events that the user has joined or all the events that
- * the user has not joined.
+ * the user has not joined. Only the events that start today or later are
+ * fetched, one page at a time.
  * @param {String} servlet The servlet from which the events will be fetched.
  * @param {String} containerID The ID of the container that will display all
  * the events.
@@ -234,24 +238,59 @@ function joinGroup(groupId) {
  * the events.
  */
 async function loadGroupEvents(servlet, containerID, groupId, hasJoined) {
+  document.getElementById(containerID).innerHTML = '';
+  await loadGroupEventsPage(servlet, containerID, groupId, hasJoined, null);
+}
+
+/**
+ * Fetches a page of the events from the group specified by the groupId and
+ * appends them to the given container. If there are more events, a button
+ * that loads the next page is added after them.
+ * @param {String} servlet The servlet from which the events will be fetched.
+ * @param {String} containerID The ID of the container that will display all
+ * the events.
+ * @param {long} groupId The ID of the group associated with the events.
+ * @param {Boolean} hasJoined Indicates whether or not the user has joined
+ * the events.
+ * @param {String} cursor The cursor returned with the previous page, or null
+ * for the first page.
+ */
+async function loadGroupEventsPage(servlet, containerID, groupId, hasJoined,
+    cursor) {
   const eventsContainer = document.getElementById(containerID);
-  eventsContainer.innerHTML = '';
+  const today = new Date();
 
   const url = new URL(servlet, window.location.origin);
   const params = new URLSearchParams();
   params.append('group-id', groupId);
+  params.append('from', new Date(today.getFullYear(), today.getMonth(),
+      today.getDate()).getTime());
+  if (cursor !== null) {
+    params.append('cursor', cursor);
+  }
   url.search = params;
 
   const response = await fetch(url);
-  const events = await response.json();
+  const page = await response.json();
 
-  events.forEach((event) => {
+  page.events.forEach((event) => {
     const eventStartTime = new Date(event.startTime);
     const eventEndDate = new Date(event.endTime);
     const eventObject = new Event(event.id, event.title, eventStartTime,
         eventEndDate);
     eventsContainer.appendChild(createEventElement(eventObject, hasJoined));
   });
+
+  if (page.cursor !== undefined) {
+    const showMoreButton = createElement('button', 'rounded-button',
+        'Show more events');
+    showMoreButton.addEventListener('click', () => {
+      showMoreButton.remove();
+      loadGroupEventsPage(servlet, containerID, groupId, hasJoined,
+          page.cursor);
+    });
+    eventsContainer.appendChild(showMoreButton);
+  }
 }
 
 /**
@@ -308,10 +347,48 @@ function loadJoinedGroups() {
 
 /**
  * Fetches the groups not joined by the user and adds them to the associated
- * container.
+ * container. The groups are fetched one page at a time.
  */
 function loadNotJoinedGroups() {
-  loadGroups('/groups', 'not-joined-groups-container', false);
+  document.getElementById('not-joined-groups-container').innerHTML = '';
+  loadNotJoinedGroupsPage(null);
+}
+
+/**
+ * Fetches a page of the groups not joined by the user and appends them to the
+ * associated container. If there are more groups, a button that loads the next
+ * page is added after them.
+ * @param {String} cursor The cursor returned with the previous page, or null
+ * for the first page.
+ */
+async function loadNotJoinedGroupsPage(cursor) {
+  const groupsList = document.getElementById('not-joined-groups-container');
+
+  const url = new URL('/groups', window.location.origin);
+  if (cursor !== null) {
+    const params = new URLSearchParams();
+    params.append('cursor', cursor);
+    url.search = params;
+  }
+
+  const response = await fetch(url);
+  const page = await response.json();
+
+  page.groups.forEach((group) => {
+    const groupObject = new Group(group.id, group.university,
+        group.degree, group.year);
+    groupsList.appendChild(createGroupElement(groupObject, false));
+  });
+
+  if (page.cursor !== undefined) {
+    const showMoreButton = createElement('button', 'rounded-button',
+        'Show more groups');
+    showMoreButton.addEventListener('click', () => {
+      showMoreButton.remove();
+      loadNotJoinedGroupsPage(page.cursor);
+    });
+    groupsList.appendChild(showMoreButton);
+  }
 }
 
 /**
@@ -0,0 +1,138 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class BatchedWriterTest {
+
+  // The entities written by the tests are only handed to the writer functions, but their keys need
+  // the environment of the local datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private final String messageEntityLabel = "Message";
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void rejectsWritesWhileTheQueueIsFull() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch finishWriting = new CountDownLatch(1);
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    BatchedWriter writer =
+        new BatchedWriter(
+            10,
+            0,
+            2,
+            entities -> {
+              batchSizes.add(entities.size());
+              writing.countDown();
+              try {
+                finishWriting.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      entities.add(new Entity(messageEntityLabel));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    // The first write blocks the writer, so the next two stay queued.
+    Future<?> first = executor.submit(() -> writer.write(entities.get(0)));
+    writing.await();
+    Future<?> second = executor.submit(() -> writer.write(entities.get(1)));
+    Future<?> third = executor.submit(() -> writer.write(entities.get(2)));
+    while (writer.getQueuedCount() < 2) {
+      Thread.sleep(1);
+    }
+    boolean isRejected = false;
+    try {
+      writer.write(entities.get(3));
+    } catch (RejectedExecutionException e) {
+      isRejected = true;
+    }
+    finishWriting.countDown();
+    first.get();
+    second.get();
+    third.get();
+    executor.shutdown();
+
+    assertTrue(isRejected);
+    assertEquals(Arrays.asList(1, 2), batchSizes);
+  }
+
+  @Test
+  public void acknowledgesWritesWhoseFollowUpFails() {
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    BatchedWriter writer =
+        new BatchedWriter(
+            10,
+            0,
+            10,
+            entities -> batchSizes.add(entities.size()),
+            entities -> {
+              throw new IllegalStateException("The counter couldn't be incremented.");
+            });
+
+    writer.write(new Entity(messageEntityLabel));
+    writer.write(new Entity(messageEntityLabel));
+
+    assertEquals(Arrays.asList(1, 1), batchSizes);
+  }
+
+  @Test
+  public void doesntLingerWithoutOtherWriters() {
+    List<Integer> batchSizes = new ArrayList<>();
+    BatchedWriter writer =
+        new BatchedWriter(10, 60 * 1000, 10, entities -> batchSizes.add(entities.size()));
+
+    long start = System.currentTimeMillis();
+    writer.write(new Entity(messageEntityLabel));
+
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+    assertEquals(Arrays.asList(1), batchSizes);
+  }
+}
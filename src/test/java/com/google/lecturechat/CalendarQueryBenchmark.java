@@ -0,0 +1,149 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the month view of the calendar before and after attendances were stored: scanning every
+ * event of the month and keeping the ones the user joined, or scanning only the user's attendances.
+ * Besides the time, the entities (and keys) read and the calls made during each iteration are
+ * reported as the scannedEntities and calls counters, so scannedEntities / calls is the number of
+ * entities read per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalendarQueryBenchmark {
+
+  private static final long MONTH_START = 0;
+  private static final long MONTH_END = 30L * 24 * 60 * 60 * 1000;
+  private static final int EVENTS_PER_USER = 10;
+  private static final String USER_ID = "User 0";
+
+  // The number of users, each of them joining different events of the month.
+  @Param({"10", "100"})
+  private int usersCount;
+
+  private LocalServiceTestHelper helper;
+  private DatastoreService service;
+  private DatastoreAccess datastore;
+
+  /** The number of entities read and calls made during the current iteration. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class ScannedEntities {
+    public long scannedEntities;
+    public long calls;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    helper =
+        new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    service = DatastoreServiceFactory.getDatastoreService();
+    datastore = DatastoreAccess.getDatastoreAccess();
+
+    long groupId = datastore.addGroup("University", "Degree", 1);
+    long interval = (MONTH_END - MONTH_START) / (usersCount * EVENTS_PER_USER);
+    for (int user = 0; user < usersCount; user++) {
+      String userId = "User " + user;
+      datastore.addUser(userId, userId);
+      for (int event = 0; event < EVENTS_PER_USER; event++) {
+        long start = MONTH_START + (user * EVENTS_PER_USER + event) * interval;
+        datastore.joinEvent(
+            userId, datastore.addEventToGroup(groupId, "Event", start, start + 1, "Creator"));
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** The calendar query used before attendances were stored. */
+  @Benchmark
+  public List<Event> scanAllEventsOfTheMonth(ScannedEntities counter) {
+    LongIdSet joinedEventsIds =
+        LongIdSet.of(
+            datastore.getJoinedEvents(new UserContext(USER_ID)).stream()
+                .map(Event::getId)
+                .collect(Collectors.toList()));
+    Query query = new Query("Event");
+    query.setFilter(
+        new CompositeFilter(
+            CompositeFilterOperator.AND,
+            Arrays.asList(
+                new FilterPredicate("start", FilterOperator.GREATER_THAN_OR_EQUAL, MONTH_START),
+                new FilterPredicate("start", FilterOperator.LESS_THAN, MONTH_END))));
+    List<Event> events = new ArrayList<>();
+    counter.calls++;
+    for (Entity entity : service.prepare(query).asIterable()) {
+      counter.scannedEntities++;
+      if (joinedEventsIds.contains(entity.getKey().getId())) {
+        events.add(Event.createEventFromEntity(entity));
+      }
+    }
+    return events;
+  }
+
+  /**
+   * The calendar query that uses the attendances, which reads one attendance key and one event per
+   * event returned.
+   */
+  @Benchmark
+  public List<Event> scanAttendancesOfTheUser(ScannedEntities counter) {
+    List<Event> events =
+        datastore.getJoinedEventsThatStartBetweenDates(MONTH_START, MONTH_END, USER_ID);
+    counter.calls++;
+    counter.scannedEntities += 2 * events.size();
+    return events;
+  }
+}
@@ -0,0 +1,473 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.gson.Gson;
+import com.google.lecturechat.servlets.JoinedEventsServlet;
+import com.google.lecturechat.servlets.MessageServlet;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator that simulates lectures in-process against the local datastore and memcache
+ * stubs, to measure how many concurrent rooms one instance can sustain: each of the rooms is an
+ * event whose students poll the chat (MessageServlet) once per second, refresh their calendar
+ * (JoinedEventsServlet) every CALENDAR_INTERVAL_MILLIS, and post in bursts, as they do when the
+ * lecturer asks a question. Every datastore call is delayed by the given latency, to approximate
+ * the round trips of the production datastore.
+ *
+ * <p>The latency of a request is measured from the time it was scheduled at, so requests delayed by
+ * a saturated instance count as slow rather than as not sent. The report gives the throughput and
+ * the p50/p99/p999 latencies of each endpoint and the datastore calls made per second.
+ *
+ * <p>Run with mvn -P load-test test, optionally with -Drooms, -Dstudents (per room), -Dseconds
+ * (measured, after a warm-up of WARMUP_SECONDS) and -DrpcLatencyMillis.
+ */
+public final class ChatLoadGenerator {
+
+  private static final int POLL_INTERVAL_MILLIS = 1000;
+  private static final int CALENDAR_INTERVAL_MILLIS = 30000;
+  // On average, each room has a burst of posts every BURST_INTERVAL_MILLIS, in which a fraction
+  // BURST_POSTERS of its students post within BURST_SPREAD_MILLIS.
+  private static final int BURST_INTERVAL_MILLIS = 10000;
+  private static final double BURST_POSTERS = 0.2;
+  private static final int BURST_SPREAD_MILLIS = 1000;
+  private static final int WARMUP_SECONDS = 5;
+  private static final int CLIENT_THREADS = 100;
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private final int roomsCount;
+  private final int studentsCount;
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private final ScheduledExecutorService clients = new ScheduledThreadPoolExecutor(CLIENT_THREADS);
+  private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+  private final MessageServlet messageServlet = new MessageServlet();
+  private final JoinedEventsServlet joinedEventsServlet = new JoinedEventsServlet();
+  private Environment environment;
+  private volatile boolean recording;
+
+  private ChatLoadGenerator(int roomsCount, int studentsCount) {
+    this.roomsCount = roomsCount;
+    this.studentsCount = studentsCount;
+    recorders.put("GET /messages", new LatencyRecorder());
+    recorders.put("POST /messages", new LatencyRecorder());
+    recorders.put("GET /joined-events", new LatencyRecorder());
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rooms = Integer.getInteger("rooms", 10);
+    int students = Integer.getInteger("students", 50);
+    int seconds = Integer.getInteger("seconds", 30);
+    int rpcLatencyMillis = Integer.getInteger("rpcLatencyMillis", 5);
+
+    ChatLoadGenerator loadGenerator = new ChatLoadGenerator(rooms, students);
+    try {
+      loadGenerator.run(seconds, rpcLatencyMillis);
+    } finally {
+      loadGenerator.clients.shutdownNow();
+      loadGenerator.helper.tearDown();
+    }
+    System.exit(0);
+  }
+
+  private void run(int seconds, int rpcLatencyMillis) throws Exception {
+    helper.setUp();
+    environment = ApiProxy.getCurrentEnvironment();
+    List<Long> eventIds = addRooms();
+    messageServlet.init();
+    joinedEventsServlet.init();
+
+    ApiProxy.setDelegate(new DelayedDelegate(ApiProxy.getDelegate(), rpcLatencyMillis));
+    for (int room = 0; room < roomsCount; room++) {
+      startRoom(room, eventIds.get(room));
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    recording = true;
+    long start = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    recording = false;
+    double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+    counter.uninstall();
+    clients.shutdownNow();
+    clients.awaitTermination(1, TimeUnit.MINUTES);
+
+    System.out.printf(
+        "%d rooms x %d students, datastore calls delayed by %d ms, measured for %.1f s%n%n",
+        roomsCount, studentsCount, rpcLatencyMillis, elapsedSeconds);
+    System.out.printf(
+        "%-20s %10s %8s %10s %10s %10s %10s%n",
+        "Endpoint", "Requests", "Failed", "Req/s", "p50 ms", "p99 ms", "p999 ms");
+    for (Map.Entry<String, LatencyRecorder> recorder : recorders.entrySet()) {
+      recorder.getValue().print(recorder.getKey(), elapsedSeconds);
+    }
+    System.out.printf(
+        "%nDatastore calls per second: %.1f (Get %.1f, Put %.1f, RunQuery %.1f, Next %.1f)%n",
+        counter.getTotalCount() / elapsedSeconds,
+        counter.getCount("Get") / elapsedSeconds,
+        counter.getCount("Put") / elapsedSeconds,
+        counter.getCount("RunQuery") / elapsedSeconds,
+        counter.getCount("Next") / elapsedSeconds);
+  }
+
+  /**
+   * Adds a group whose events are the rooms, which start now. Each student joins the group and the
+   * event of their room.
+   *
+   * @return The ids of the events of the rooms.
+   */
+  private List<Long> addRooms() {
+    DatastoreAccess datastore = DatastoreAccess.getDatastoreAccess();
+    long now = System.currentTimeMillis();
+    long groupId = datastore.addGroup("University", "Degree", 1);
+    List<Long> eventIds = new ArrayList<>();
+    for (int room = 0; room < roomsCount; room++) {
+      long eventId =
+          datastore.addEventToGroup(groupId, "Lecture " + room, now, now + DAY_MILLIS, "Lecturer");
+      eventIds.add(eventId);
+      for (int student = 0; student < studentsCount; student++) {
+        String userId = getStudentId(room, student);
+        datastore.addUser(userId, userId);
+        datastore.joinGroup(userId, groupId);
+        datastore.joinEvent(userId, eventId);
+      }
+    }
+    return eventIds;
+  }
+
+  /** Schedules the requests of the students of a room, starting at random times. */
+  private void startRoom(int room, long eventId) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<String> studentIds = new ArrayList<>();
+    for (int student = 0; student < studentsCount; student++) {
+      String userId = getStudentId(room, student);
+      studentIds.add(userId);
+      ChatPoller poller = new ChatPoller(userId, eventId);
+      schedulePeriodically(
+          "GET /messages",
+          poller::poll,
+          random.nextInt(POLL_INTERVAL_MILLIS),
+          POLL_INTERVAL_MILLIS);
+      schedulePeriodically(
+          "GET /joined-events",
+          () -> getCalendar(userId),
+          random.nextInt(CALENDAR_INTERVAL_MILLIS),
+          CALENDAR_INTERVAL_MILLIS);
+    }
+    scheduleBurst(studentIds, eventId, random.nextInt(BURST_INTERVAL_MILLIS));
+  }
+
+  /**
+   * Schedules a burst of posts from a random fraction of the students, after which the next burst
+   * is scheduled at a random time, BURST_INTERVAL_MILLIS later on average.
+   */
+  private void scheduleBurst(List<String> studentIds, long eventId, long delayMillis) {
+    clients.schedule(
+        () -> {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (String userId : studentIds) {
+            if (random.nextDouble() < BURST_POSTERS) {
+              long postDelay = random.nextInt(BURST_SPREAD_MILLIS);
+              long scheduledTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(postDelay);
+              clients.schedule(
+                  () -> send("POST /messages", scheduledTime, () -> postMessage(userId, eventId)),
+                  postDelay,
+                  TimeUnit.MILLISECONDS);
+            }
+          }
+          scheduleBurst(studentIds, eventId, random.nextInt(2 * BURST_INTERVAL_MILLIS));
+        },
+        delayMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends a request periodically. A request that is late (because the previous one took too long,
+   * or because all the client threads were busy) is sent right away, and its latency counts from
+   * the time it should have been sent at.
+   */
+  private void schedulePeriodically(
+      String endpoint, ServletCall call, long initialDelayMillis, long periodMillis) {
+    long firstTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+    AtomicInteger sentRequests = new AtomicInteger();
+    clients.scheduleAtFixedRate(
+        () -> {
+          long scheduledTime =
+              firstTime
+                  + sentRequests.getAndIncrement() * TimeUnit.MILLISECONDS.toNanos(periodMillis);
+          send(endpoint, scheduledTime, call);
+        },
+        initialDelayMillis,
+        periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void send(String endpoint, long scheduledTime, ServletCall call) {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    boolean succeeded;
+    try {
+      call.run();
+      succeeded = true;
+    } catch (Exception e) {
+      // E.g. the posts rejected because too many messages are waiting to be written.
+      succeeded = false;
+    }
+    if (recording) {
+      recorders.get(endpoint).record(System.nanoTime() - scheduledTime, succeeded);
+    }
+  }
+
+  private void postMessage(String userId, long eventId) throws Exception {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("id", Long.toString(eventId));
+    parameters.put("message", "Question from " + userId);
+    messageServlet.doPost(
+        ServletRequests.createRequest(userId, parameters),
+        ServletRequests.createResponse(new StringWriter()));
+  }
+
+  private void getCalendar(String userId) throws Exception {
+    long now = System.currentTimeMillis();
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("beginning-date", Long.toString(now - DAY_MILLIS));
+    parameters.put("ending-date", Long.toString(now + DAY_MILLIS));
+    joinedEventsServlet.doGet(
+        ServletRequests.createRequest(userId, parameters),
+        ServletRequests.createResponse(new StringWriter()));
+  }
+
+  private static String getStudentId(int room, int student) {
+    return "Student " + room + "-" + student;
+  }
+
+  /** A request sent to a servlet. */
+  private interface ServletCall {
+    void run() throws Exception;
+  }
+
+  /** A student polling the chat, who only asks for the messages newer than the last one seen. */
+  private final class ChatPoller {
+
+    private final String userId;
+    private final long eventId;
+    private Message lastMessage;
+
+    private ChatPoller(String userId, long eventId) {
+      this.userId = userId;
+      this.eventId = eventId;
+    }
+
+    // The polls of a student never overlap, since scheduleAtFixedRate waits for the previous one.
+    private void poll() throws Exception {
+      Map<String, String> parameters = new HashMap<>();
+      parameters.put("id", Long.toString(eventId));
+      if (lastMessage != null) {
+        parameters.put("last-timestamp", Long.toString(lastMessage.getTimestamp()));
+        parameters.put("last-id", Long.toString(lastMessage.getId()));
+      }
+      StringWriter output = new StringWriter();
+      messageServlet.doGet(
+          ServletRequests.createRequest(userId, parameters),
+          ServletRequests.createResponse(output));
+
+      for (Message message : new Gson().fromJson(output.toString(), Message[].class)) {
+        if (lastMessage == null
+            || message.getTimestamp() > lastMessage.getTimestamp()
+            || (message.getTimestamp() == lastMessage.getTimestamp()
+                && message.getId() > lastMessage.getId())) {
+          lastMessage = message;
+        }
+      }
+    }
+  }
+
+  /** Records the latencies of the requests sent to an endpoint. */
+  private static final class LatencyRecorder {
+
+    private final List<Long> latencies = new ArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private void record(long latencyNanos, boolean succeeded) {
+      synchronized (latencies) {
+        latencies.add(latencyNanos);
+      }
+      if (!succeeded) {
+        failures.incrementAndGet();
+      }
+    }
+
+    private void print(String endpoint, double elapsedSeconds) {
+      List<Long> sortedLatencies;
+      synchronized (latencies) {
+        sortedLatencies = new ArrayList<>(latencies);
+      }
+      Collections.sort(sortedLatencies);
+      System.out.printf(
+          "%-20s %10d %8d %10.1f %10.2f %10.2f %10.2f%n",
+          endpoint,
+          sortedLatencies.size(),
+          failures.get(),
+          sortedLatencies.size() / elapsedSeconds,
+          getPercentileMillis(sortedLatencies, 0.5),
+          getPercentileMillis(sortedLatencies, 0.99),
+          getPercentileMillis(sortedLatencies, 0.999));
+    }
+
+    private static double getPercentileMillis(List<Long> sortedLatencies, double percentile) {
+      if (sortedLatencies.isEmpty()) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile * sortedLatencies.size()) - 1;
+      return sortedLatencies.get(Math.max(index, 0)) / 1e6;
+    }
+  }
+
+  /**
+   * Delays the datastore calls by a fixed latency. The async calls return at once, and their
+   * response is only available once the latency has elapsed, so that concurrent calls overlap like
+   * they do in production.
+   */
+  private static final class DelayedDelegate implements Delegate<Environment> {
+
+    private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+    private final Delegate<Environment> delegate;
+    private final long latencyNanos;
+
+    @SuppressWarnings("unchecked")
+    private DelayedDelegate(Delegate<?> delegate, int latencyMillis) {
+      this.delegate = (Delegate<Environment>) delegate;
+      latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+    }
+
+    @Override
+    public byte[] makeSyncCall(
+        Environment environment, String packageName, String method, byte[] request) {
+      long readyTime = System.nanoTime() + getLatencyNanos(packageName);
+      byte[] response = delegate.makeSyncCall(environment, packageName, method, request);
+      waitUntil(readyTime);
+      return response;
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment environment,
+        String packageName,
+        String method,
+        byte[] request,
+        ApiConfig apiConfig) {
+      long readyTime = System.nanoTime() + getLatencyNanos(packageName);
+      Future<byte[]> response =
+          delegate.makeAsyncCall(environment, packageName, method, request, apiConfig);
+      return new DelayedFuture(response, readyTime);
+    }
+
+    @Override
+    public void log(Environment environment, LogRecord record) {
+      delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(Environment environment) {
+      delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+      return delegate.getRequestThreads(environment);
+    }
+
+    private long getLatencyNanos(String packageName) {
+      return packageName.equals(DATASTORE_PACKAGE) ? latencyNanos : 0;
+    }
+
+    private static void waitUntil(long readyTime) {
+      long remainingNanos = readyTime - System.nanoTime();
+      if (remainingNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(remainingNanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /** The response of an async call, which isn't available before its ready time. */
+  private static final class DelayedFuture implements Future<byte[]> {
+
+    private final Future<byte[]> response;
+    private final long readyTime;
+
+    private DelayedFuture(Future<byte[]> response, long readyTime) {
+      this.response = response;
+      this.readyTime = readyTime;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+      byte[] bytes = response.get();
+      DelayedDelegate.waitUntil(readyTime);
+      return bytes;
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      byte[] bytes = response.get(timeout, unit);
+      DelayedDelegate.waitUntil(readyTime);
+      return bytes;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return response.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return response.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return response.isDone() && System.nanoTime() >= readyTime;
+    }
+  }
+}
@@ -15,13 +15,35 @@
 package com.google.lecturechat.data;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.lecturechat.data.constants.EventEntity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,7 +54,10 @@ import org.junit.runners.JUnit4;
 public final class DatastoreAccessTest {
 
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalTaskQueueTestConfig());
   private DatastoreAccess datastore;
   private DatastoreService service;
 
@@ -50,6 +75,7 @@ public final class DatastoreAccessTest {
   private final long END_TIME = 0;
   private final String USER_ID = "User Id A";
   private final String USER_NAME = "User Name A";
+  private final String OTHER_USER_ID = "User Id B";
   private final String MESSAGE_CONTENT = "Message A";
   private final long EVENT_ID = 123L;
 
@@ -58,10 +84,12 @@ public final class DatastoreAccessTest {
   private final String eventEntityLabel = "Event";
   private final String userEntityLabel = "User";
   private final String messageEntityLabel = "Message";
+  private final String attendanceEntityLabel = "Attendance";
 
   @Before
   public void setUp() {
     helper.setUp();
+    DatastoreAccess.clearCaches();
     service = DatastoreServiceFactory.getDatastoreService();
     datastore = DatastoreAccess.getDatastoreAccess();
   }
@@ -88,20 +116,156 @@ public final class DatastoreAccessTest {
   }
 
   @Test
-  public void getAllGroupsReturnsEmptyListIfNoGroupsInDatastore() {
-    List<Group> groups = datastore.getAllGroups();
+  public void addGroupIgnoresCaseAndWhitespace() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+
+    long sameGroupId = datastore.addGroup("  uni   A ", "DEGREE a", YEAR);
+    long otherGroupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR + 1);
+
+    assertEquals(groupId, sameGroupId);
+    assertTrue(groupId != otherGroupId);
+    assertEquals(2, service.prepare(new Query(groupEntityLabel)).countEntities());
+  }
+
+  @Test
+  public void addNamesOfOldGroupsKeepsTheOldGroups() {
+    Entity groupEntityA = new Entity(groupEntityLabel);
+    groupEntityA.setProperty("university", UNIVERSITY_A);
+    groupEntityA.setProperty("degree", DEGREE);
+    groupEntityA.setProperty("year", YEAR);
+    Entity groupEntityB = new Entity(groupEntityLabel);
+    groupEntityB.setPropertiesFrom(groupEntityA);
+    groupEntityB.setProperty("university", UNIVERSITY_B);
+    long oldGroupId = service.put(groupEntityA).getId();
+    long otherGroupId = service.put(groupEntityB).getId();
+
+    // Found by the query, before its name was stored.
+    long groupIdBeforeBackfill = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    int storedNames = datastore.addNamesOfOldGroups();
+    long groupIdAfterBackfill = datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+
+    assertEquals(oldGroupId, groupIdBeforeBackfill);
+    assertEquals(1, storedNames);
+    assertEquals(otherGroupId, groupIdAfterBackfill);
+    assertEquals(0, datastore.addNamesOfOldGroups());
+    assertEquals(2, service.prepare(new Query(groupEntityLabel)).countEntities());
+  }
+
+  @Test
+  public void addGroupFindsTheOldGroupsThatOnlyDifferInCaseOrWhitespace() {
+    Entity oldGroupEntity = new Entity(groupEntityLabel);
+    oldGroupEntity.setProperty("university", UNIVERSITY_A);
+    oldGroupEntity.setProperty("degree", DEGREE);
+    oldGroupEntity.setProperty("year", YEAR);
+    long oldGroupId = service.put(oldGroupEntity).getId();
+
+    long groupIdBeforeBackfill = datastore.addGroup("  uni   A ", "DEGREE a", YEAR);
+    datastore.addNamesOfOldGroups();
+    long groupIdAfterBackfill = datastore.addGroup("UNI A", DEGREE, YEAR);
+
+    assertEquals(oldGroupId, groupIdBeforeBackfill);
+    assertEquals(oldGroupId, groupIdAfterBackfill);
+    assertEquals(1, service.prepare(new Query(groupEntityLabel)).countEntities());
+  }
+
+  @Test
+  public void addGroupOnlyQueriesTheOldGroupsUntilTheirNamesAreStored() {
+    datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    int queriesBeforeBackfill = counter.getCount("RunQuery");
+    datastore.addNamesOfOldGroups();
+    counter.uninstall();
+
+    counter = DatastoreRpcCounter.install();
+    datastore.addGroup(UNIVERSITY_C, DEGREE, YEAR);
+    counter.uninstall();
+
+    assertEquals(1, queriesBeforeBackfill);
+    assertEquals(0, counter.getCount("RunQuery"));
+    assertTrue(datastore.isBackfillDone(Backfill.GROUP_NAMES));
+  }
+
+  @Test
+  public void getGroupsPageReturnsEmptyPageIfNoGroupsInDatastore() {
+    GroupsPage page = datastore.getGroupsPage(null, null, null, null, 20);
+
+    assertEquals(0, page.getGroups().size());
+    assertFalse(page.getCursor().isPresent());
+  }
+
+  @Test
+  public void getGroupsPageReturnsCorrectNumberOfGroups() {
+    datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+
+    GroupsPage page = datastore.getGroupsPage(null, null, null, null, 20);
+
+    assertEquals(2, page.getGroups().size());
+  }
+
+  @Test
+  public void getGroupsPageReturnsAllGroupsOnePageAtATime() {
+    datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_C, DEGREE, YEAR);
+
+    GroupsPage firstPage = datastore.getGroupsPage(null, null, null, null, 2);
+    GroupsPage secondPage =
+        datastore.getGroupsPage(null, null, null, firstPage.getCursor().get(), 2);
 
-    assertEquals(0, groups.size());
+    assertEquals(2, firstPage.getGroups().size());
+    assertEquals(1, secondPage.getGroups().size());
+    assertFalse(secondPage.getCursor().isPresent());
   }
 
   @Test
-  public void getAllGroupsReturnsCorrectNumberOfGroups() {
+  public void getGroupsPageFiltersByUniversity() {
     datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
     datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR + 1);
 
-    List<Group> groups = datastore.getAllGroups();
+    GroupsPage page = datastore.getGroupsPage(UNIVERSITY_B, DEGREE, null, null, 20);
 
-    assertEquals(2, groups.size());
+    assertEquals(2, page.getGroups().size());
+  }
+
+  @Test
+  public void getNotJoinedGroupsPageLeavesOutJoinedGroups() {
+    long groupA = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupA);
+
+    GroupsPage page =
+        datastore.getNotJoinedGroupsPage(new UserContext(USER_ID), null, null, null, null, 20);
+
+    assertEquals(1, page.getGroups().size());
+    assertEquals(UNIVERSITY_B, page.getGroups().get(0).getUniversity());
+  }
+
+  @Test
+  public void getNotJoinedGroupsPageIsFilledWithTheGroupsAfterTheJoinedOnes() {
+    datastore.addUser(USER_ID, USER_NAME);
+    for (int year = YEAR; year < YEAR + 3; year++) {
+      datastore.joinGroup(USER_ID, datastore.addGroup(UNIVERSITY_A, DEGREE, year));
+    }
+    datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    datastore.addGroup(UNIVERSITY_C, DEGREE, YEAR);
+    UserContext user = new UserContext(USER_ID);
+
+    GroupsPage firstPage = datastore.getNotJoinedGroupsPage(user, null, null, null, null, 2);
+    GroupsPage secondPage =
+        datastore.getNotJoinedGroupsPage(
+            user, null, null, null, firstPage.getCursor().get(), 2);
+
+    assertEquals(
+        new HashSet<>(Arrays.asList(UNIVERSITY_B, UNIVERSITY_C)),
+        firstPage.getGroups().stream()
+            .map(GroupSummary::getUniversity)
+            .collect(Collectors.toSet()));
+    assertTrue(secondPage.getGroups().isEmpty());
+    assertFalse(secondPage.getCursor().isPresent());
   }
 
   @Test
@@ -147,8 +311,11 @@ public final class DatastoreAccessTest {
     datastore.joinGroup(USER_ID, groupA);
     datastore.joinGroup(USER_ID, groupB);
 
-    List<Group> joined = datastore.getJoinedGroups(USER_ID);
-    List<Group> notJoined = datastore.getNotJoinedGroups(USER_ID);
+    UserContext user = new UserContext(USER_ID);
+
+    List<Group> joined = datastore.getJoinedGroups(user);
+    List<GroupSummary> notJoined =
+        datastore.getNotJoinedGroupsPage(user, null, null, null, null, 20).getGroups();
 
     assertEquals(2, joined.size());
     assertEquals(1, notJoined.size());
@@ -168,13 +335,496 @@ public final class DatastoreAccessTest {
     datastore.joinEvent(USER_ID, eventA);
     datastore.joinEvent(USER_ID, eventB);
 
-    List<Event> joined = datastore.getAllJoinedEventsFromGroup(groupId, USER_ID);
-    List<Event> notJoined = datastore.getAllNotJoinedEventsFromGroup(groupId, USER_ID);
+    UserContext user = new UserContext(USER_ID);
+
+    List<Event> joined = datastore.getAllJoinedEventsFromGroup(groupId, user);
+    List<Event> notJoined = datastore.getAllNotJoinedEventsFromGroup(groupId, user);
 
     assertEquals(2, joined.size());
     assertEquals(1, notJoined.size());
   }
 
+  @Test
+  public void getJoinedEventsUsesOneBatchGetForAllEvents() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addUser(USER_ID, USER_NAME);
+    for (int i = 0; i < 5; i++) {
+      datastore.joinEvent(
+          USER_ID,
+          datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR));
+    }
+    DatastoreAccess.clearCaches();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    List<Event> events = datastore.getJoinedEvents(new UserContext(USER_ID));
+    counter.uninstall();
+
+    assertEquals(5, events.size());
+    // One get for the user and one batch get for the events.
+    assertEquals(2, counter.getCount("Get"));
+  }
+
+  @Test
+  public void getJoinedGroupsUsesOneBatchGetForAllGroups() {
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR));
+    datastore.joinGroup(USER_ID, datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR));
+    datastore.joinGroup(USER_ID, datastore.addGroup(UNIVERSITY_C, DEGREE, YEAR));
+    DatastoreAccess.clearCaches();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    List<Group> groups = datastore.getJoinedGroups(new UserContext(USER_ID));
+    counter.uninstall();
+
+    assertEquals(3, groups.size());
+    assertEquals(2, counter.getCount("Get"));
+  }
+
+  @Test
+  public void getAllEventsFromGroupUsesOneBatchGetForAllEvents() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_C, START_TIME, END_TIME, EVENT_CREATOR);
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    List<Event> events = datastore.getAllEventsFromGroup(groupId);
+    counter.uninstall();
+
+    assertEquals(3, events.size());
+    assertEquals(2, counter.getCount("Get"));
+  }
+
+  @Test
+  public void getJoinedEventsLeavesOutMissingEventsAndKeepsOrder() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventA =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    long eventB =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME, END_TIME, EVENT_CREATOR);
+    long eventC =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_C, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventC);
+    datastore.joinEvent(USER_ID, eventA);
+    datastore.joinEvent(USER_ID, eventB);
+    service.delete(KeyFactory.createKey(eventEntityLabel, eventA));
+    DatastoreAccess.clearCaches();
+
+    List<Event> events = datastore.getJoinedEvents(new UserContext(USER_ID));
+
+    assertEquals(2, events.size());
+    assertEquals(eventC, events.get(0).getId());
+    assertEquals(eventB, events.get(1).getId());
+  }
+
+  @Test
+  public void userContextReadsEachEntityOnceDuringRequest() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventA =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+    datastore.joinEvent(USER_ID, eventA);
+    DatastoreAccess.clearCaches();
+    UserContext user = new UserContext(USER_ID);
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    boolean isMember = datastore.isMemberOfGroup(user, groupId);
+    List<Event> notJoined = datastore.getAllNotJoinedEventsFromGroup(groupId, user);
+    List<Event> joined = datastore.getAllJoinedEventsFromGroup(groupId, user);
+    counter.uninstall();
+
+    assertTrue(isMember);
+    assertEquals(1, notJoined.size());
+    assertEquals(1, joined.size());
+    // The group, the user and one batch get for the events of the group.
+    assertEquals(3, counter.getCount("Get"));
+  }
+
+  @Test
+  public void prefetchedGroupDetailsAreNotReadAgain() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.addUser(OTHER_USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+    datastore.joinGroup(OTHER_USER_ID, groupId);
+    DatastoreAccess.clearCaches();
+    UserContext user = new UserContext(USER_ID);
+
+    datastore.prefetchGroupDetails(user, groupId);
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    boolean isMember = datastore.isMemberOfGroup(user, groupId);
+    Group group = datastore.getGroup(user, groupId);
+    counter.uninstall();
+
+    assertTrue(isMember);
+    assertEquals(
+        new HashSet<>(Arrays.asList(USER_ID, OTHER_USER_ID)), new HashSet<>(group.getStudents()));
+    // The user and the group were already read by the prefetch.
+    assertEquals(0, counter.getCount("Get"));
+  }
+
+  @Test(expected = DatastoreTimeoutException.class)
+  public void prefetchFailsOnceTheDeadlineOfTheRequestHasPassed() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.prefetchGroupDetails(
+        new UserContext(USER_ID, System.currentTimeMillis() - 1), groupId);
+  }
+
+  @Test
+  public void summariesHoldCountsAndJoinedFlags() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventA =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+    datastore.joinEvent(USER_ID, eventA);
+    UserContext user = new UserContext(USER_ID);
+
+    List<GroupSummary> groups = datastore.getJoinedGroupSummaries(user);
+    List<EventSummary> joined =
+        datastore
+            .getEventsPageFromGroup(user, groupId, Long.MIN_VALUE, Long.MAX_VALUE, true, null, 20)
+            .getEvents();
+    List<EventSummary> notJoined =
+        datastore
+            .getEventsPageFromGroup(user, groupId, Long.MIN_VALUE, Long.MAX_VALUE, false, null, 20)
+            .getEvents();
+
+    assertEquals(1, groups.size());
+    assertEquals(1, groups.get(0).getStudentsCount());
+    assertEquals(2, groups.get(0).getEventsCount());
+    assertTrue(groups.get(0).isJoined());
+    assertEquals(eventA, joined.get(0).getId());
+    assertEquals(1, joined.get(0).getAttendeesCount());
+    assertTrue(joined.get(0).isJoined());
+    assertEquals(1, notJoined.size());
+    assertEquals(0, notJoined.get(0).getAttendeesCount());
+    assertFalse(notJoined.get(0).isJoined());
+  }
+
+  @Test
+  public void joinEventStoresMembershipsAndCountsEachAttendeeOnce() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.addUser(OTHER_USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+    datastore.joinEvent(USER_ID, eventId);
+    datastore.joinEvent(USER_ID, eventId);
+    datastore.joinEvent(OTHER_USER_ID, eventId);
+    // An attendee that joined before memberships were stored.
+    Entity eventEntity = service.get(KeyFactory.createKey(eventEntityLabel, eventId));
+    eventEntity.setProperty("attendees", Arrays.asList("Earlier User"));
+    service.put(eventEntity);
+    DatastoreAccess.clearCaches();
+    UserContext user = new UserContext(USER_ID);
+
+    Event event = datastore.getEvent(user, eventId);
+    List<EventSummary> summaries =
+        datastore.getJoinedEventSummariesThatStartBetweenDates(START_TIME, START_TIME + 10, user);
+
+    assertEquals(
+        new HashSet<>(Arrays.asList("Earlier User", USER_ID, OTHER_USER_ID)),
+        new HashSet<>(event.getAttendees()));
+    assertEquals(3, summaries.get(0).getAttendeesCount());
+    assertTrue(datastore.isAttendeeOfEvent(user, eventId));
+    assertFalse(datastore.isAttendeeOfEvent(new UserContext("Not A User"), eventId));
+    // The group membership and one event membership per attendee.
+    assertEquals(3, service.prepare(new Query("Membership")).countEntities());
+  }
+
+  @Test
+  public void eventSummariesCountMessagesAndCacheTheCounters() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventId);
+    datastore.addMessage(eventId, MESSAGE_CONTENT, USER_ID);
+    datastore.addMessage(eventId, MESSAGE_CONTENT, USER_ID);
+    runCountMessagesTasks();
+    DatastoreAccess.clearCaches();
+    UserContext user = new UserContext(USER_ID);
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    EventSummary summary =
+        datastore
+            .getJoinedEventSummariesThatStartBetweenDates(START_TIME, START_TIME + 10, user)
+            .get(0);
+    int getsWithoutCachedCounters = counter.getCount("Get");
+    datastore.addMessage(eventId, MESSAGE_CONTENT, USER_ID);
+    EventSummary cachedSummary =
+        datastore
+            .getJoinedEventSummariesThatStartBetweenDates(START_TIME, START_TIME + 10, user)
+            .get(0);
+    counter.uninstall();
+
+    assertEquals(1, summary.getAttendeesCount());
+    assertEquals(2, summary.getMessagesCount());
+    // The message added on this instance is counted without reading the counter again, and its
+    // counter is only incremented by a task.
+    assertEquals(3, cachedSummary.getMessagesCount());
+    assertEquals(
+        getsWithoutCachedCounters - 2, counter.getCount("Get") - getsWithoutCachedCounters);
+  }
+
+  @Test
+  public void countersOnlyReadTheShardsInUse() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventId);
+    UserContext user = new UserContext(USER_ID);
+    DatastoreAccess.clearCaches();
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    datastore.getJoinedEventSummariesThatStartBetweenDates(START_TIME, START_TIME + 10, user);
+    int getsOfSingleShards = counter.getCount("Get");
+    counter.uninstall();
+    // The messages counter widened to 3 shards, one of which was never written.
+    String messagesCounter = "Event:" + eventId + ":messages:";
+    Entity firstShard = new Entity("CounterShard", messagesCounter + 0);
+    firstShard.setProperty("count", 2L);
+    firstShard.setProperty("shards", 3L);
+    Entity secondShard = new Entity("CounterShard", messagesCounter + 1);
+    secondShard.setProperty("count", 5L);
+    service.put(Arrays.asList(firstShard, secondShard));
+    DatastoreAccess.clearCaches();
+
+    counter = DatastoreRpcCounter.install();
+    EventSummary summary =
+        datastore
+            .getJoinedEventSummariesThatStartBetweenDates(
+                START_TIME, START_TIME + 10, new UserContext(USER_ID))
+            .get(0);
+    counter.uninstall();
+
+    assertEquals(1, summary.getAttendeesCount());
+    assertEquals(7, summary.getMessagesCount());
+    // Only the other shards of the widened counter are read with a second batch get.
+    assertEquals(getsOfSingleShards + 1, counter.getCount("Get"));
+  }
+
+  @Test
+  public void moveOldMembersToMembershipsKeepsTheCounts() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventId);
+    Entity eventEntity = service.get(KeyFactory.createKey(eventEntityLabel, eventId));
+    eventEntity.setProperty("attendees", Arrays.asList(OTHER_USER_ID, "Earlier User"));
+    service.put(eventEntity);
+
+    int movedMembers = datastore.moveOldMembersToMemberships();
+    int movedAgain = datastore.moveOldMembersToMemberships();
+    DatastoreAccess.clearCaches();
+    UserContext user = new UserContext(USER_ID);
+    List<EventSummary> summaries =
+        datastore.getJoinedEventSummariesThatStartBetweenDates(START_TIME, START_TIME + 10, user);
+
+    assertEquals(2, movedMembers);
+    assertEquals(0, movedAgain);
+    assertFalse(
+        service.get(KeyFactory.createKey(eventEntityLabel, eventId)).hasProperty("attendees"));
+    assertEquals(3, summaries.get(0).getAttendeesCount());
+    assertEquals(
+        new HashSet<>(Arrays.asList(USER_ID, OTHER_USER_ID, "Earlier User")),
+        new HashSet<>(datastore.getEvent(user, eventId).getAttendees()));
+  }
+
+  @Test
+  public void addUserOnlyReadsTheDatastoreForUsersNotSeenYet() {
+    datastore.addUser(USER_ID, USER_NAME);
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    datastore.addUser(USER_ID, USER_NAME);
+    boolean registered = datastore.isUserRegistered(USER_ID);
+    int getsOfKnownUser = counter.getCount("Get");
+    datastore.addUser(OTHER_USER_ID, USER_NAME);
+    counter.uninstall();
+
+    assertTrue(registered);
+    assertEquals(0, getsOfKnownUser);
+    assertEquals(1, counter.getCount("Get"));
+    assertEquals(1, counter.getCount("Put"));
+    assertTrue(datastore.isUserRegistered(OTHER_USER_ID));
+    assertFalse(datastore.isUserRegistered("Not A User"));
+  }
+
+  @Test
+  public void groupsAreReadFromTheEntityCacheUntilTheyAreWritten() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    EntityCache cache = DatastoreAccess.getEntityCache();
+    long localHitsBefore = cache.getLocalHits();
+    long missesBefore = cache.getMisses();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    datastore.getGroup(new UserContext(USER_ID), groupId);
+    datastore.getGroup(new UserContext(OTHER_USER_ID), groupId);
+    int getsOfCachedGroup = counter.getCount("Get");
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    Group group = datastore.getGroup(new UserContext(USER_ID), groupId);
+    counter.uninstall();
+
+    assertEquals(1, getsOfCachedGroup);
+    // The group read when adding the event is cached, but the write makes it stale.
+    assertEquals(Arrays.asList(eventId), group.getEvents());
+    assertEquals(2, cache.getLocalHits() - localHitsBefore);
+    assertEquals(2, cache.getMisses() - missesBefore);
+  }
+
+  @Test
+  public void getEventsPageFromGroupOnlyReturnsEventsInTheInterval() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long otherGroupId = datastore.addGroup(UNIVERSITY_B, DEGREE, YEAR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME + 1, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_C, START_TIME + 2, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME + 10, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(otherGroupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    UserContext user = new UserContext(USER_ID);
+
+    EventsPage firstPage =
+        datastore.getEventsPageFromGroup(
+            user, groupId, START_TIME, START_TIME + 10, false, null, 2);
+    EventsPage secondPage =
+        datastore.getEventsPageFromGroup(
+            user, groupId, START_TIME, START_TIME + 10, false, firstPage.getCursor().get(), 2);
+
+    assertEquals(2, firstPage.getEvents().size());
+    assertEquals(EVENT_TITLE_A, firstPage.getEvents().get(0).getTitle());
+    assertEquals(EVENT_TITLE_B, firstPage.getEvents().get(1).getTitle());
+    assertEquals(1, secondPage.getEvents().size());
+    assertEquals(EVENT_TITLE_C, secondPage.getEvents().get(0).getTitle());
+    assertFalse(secondPage.getCursor().isPresent());
+  }
+
+  @Test
+  public void getEventsPageFromGroupIsFilledWithTheEventsAfterTheLeftOutOnes() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventA =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    long eventB =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME + 1, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME + 2, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_C, START_TIME + 3, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+    datastore.joinEvent(USER_ID, eventA);
+    datastore.joinEvent(USER_ID, eventB);
+    UserContext user = new UserContext(USER_ID);
+
+    EventsPage page =
+        datastore.getEventsPageFromGroup(
+            user, groupId, Long.MIN_VALUE, Long.MAX_VALUE, false, null, 2);
+
+    assertEquals(2, page.getEvents().size());
+    assertEquals(EVENT_TITLE_B, page.getEvents().get(0).getTitle());
+    assertEquals(EVENT_TITLE_C, page.getEvents().get(1).getTitle());
+  }
+
+  @Test
+  public void addGroupToOldEventsMakesThemVisibleInTheGroupPages() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    Entity eventEntity = service.get(KeyFactory.createKey(eventEntityLabel, eventId));
+    eventEntity.removeProperty(EventEntity.GROUP_PROPERTY.getLabel());
+    service.put(eventEntity);
+    datastore.addUser(USER_ID, USER_NAME);
+    UserContext user = new UserContext(USER_ID);
+
+    EventsPage pageBefore =
+        datastore.getEventsPageFromGroup(
+            user, groupId, Long.MIN_VALUE, Long.MAX_VALUE, false, null, 20);
+    int updatedEvents = datastore.addGroupToOldEvents();
+    EventsPage pageAfter =
+        datastore.getEventsPageFromGroup(
+            user, groupId, Long.MIN_VALUE, Long.MAX_VALUE, false, null, 20);
+
+    assertEquals(0, pageBefore.getEvents().size());
+    assertEquals(1, updatedEvents);
+    assertEquals(1, pageAfter.getEvents().size());
+    assertEquals(0, datastore.addGroupToOldEvents());
+  }
+
+  @Test
+  public void calendarSummariesOnlyReadTheJoinedEvents() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventA =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_B, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addEventToGroup(groupId, EVENT_TITLE_C, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventA);
+
+    List<EventSummary> events =
+        datastore.getJoinedEventSummariesThatStartBetweenDates(
+            START_TIME, START_TIME + 1, new UserContext(USER_ID));
+
+    assertEquals(1, events.size());
+    assertEquals(eventA, events.get(0).getId());
+    assertEquals(EVENT_TITLE_A, events.get(0).getTitle());
+  }
+
+  @Test
+  public void calendarQueryOnlyScansTheAttendancesOfTheUser() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.addUser(OTHER_USER_ID, USER_NAME);
+    for (int i = 0; i < 10; i++) {
+      long eventId =
+          datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+      datastore.joinEvent((i < 2) ? USER_ID : OTHER_USER_ID, eventId);
+    }
+    Query attendancesOfUser =
+        new Query(attendanceEntityLabel)
+            .setAncestor(KeyFactory.createKey(userEntityLabel, USER_ID))
+            .setKeysOnly();
+    DatastoreAccess.clearCaches();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    List<Event> events =
+        datastore.getJoinedEventsThatStartBetweenDates(START_TIME, START_TIME + 1, USER_ID);
+    counter.uninstall();
+
+    assertEquals(2, events.size());
+    assertEquals(2, service.prepare(attendancesOfUser).countEntities());
+    // One query of the attendance keys and one batch get of the events they point to.
+    assertEquals(2, counter.getTotalCount());
+    assertEquals(4, counter.getEntitiesRead());
+  }
+
+  @Test
+  public void addAttendancesOfOldJoinsAddsTheOldEventsToTheCalendar() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long eventId =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinEvent(USER_ID, eventId);
+    service.delete(
+        KeyFactory.createKey(
+            KeyFactory.createKey(userEntityLabel, USER_ID), attendanceEntityLabel, eventId));
+
+    List<Event> eventsBefore =
+        datastore.getJoinedEventsThatStartBetweenDates(START_TIME, START_TIME + 1, USER_ID);
+    int storedAttendances = datastore.addAttendancesOfOldJoins();
+    List<Event> eventsAfter =
+        datastore.getJoinedEventsThatStartBetweenDates(START_TIME, START_TIME + 1, USER_ID);
+
+    assertEquals(0, eventsBefore.size());
+    assertEquals(1, storedAttendances);
+    assertEquals(1, eventsAfter.size());
+  }
+
   @Test
   public void addAndRetrieveCorrectNumberOfMessages() {
     datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
@@ -197,15 +847,102 @@ public final class DatastoreAccessTest {
     assertEquals(1, messages.size());
   }
 
+  @Test
+  public void getMessagesAfterCursorReturnsNewerMessagesAfterTheRecentOnes() {
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    List<Message> messages = datastore.getMessagesFromEvent(EVENT_ID, 20);
+    Message lastSeen = messages.get(0);
+
+    List<Message> newer =
+        datastore.getMessagesFromEventAfter(
+            EVENT_ID, lastSeen.getTimestamp(), lastSeen.getId(), 20);
+
+    // The message of the cursor is sent again, since it is in the overlap.
+    assertEquals(messages, newer);
+  }
+
+  @Test
+  public void getMessagesAfterLastMessageReturnsNoNewerMessage() {
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    List<Message> messages = datastore.getMessagesFromEvent(EVENT_ID, 20);
+    Message lastSeen = messages.get(1);
+
+    List<Message> newer =
+        datastore.getMessagesFromEventAfter(
+            EVENT_ID, lastSeen.getTimestamp(), lastSeen.getId(), 20);
+
+    assertEquals(messages, newer);
+    assertFalse(
+        newer.get(newer.size() - 1).isAfter(lastSeen.getTimestamp(), lastSeen.getId()));
+  }
+
+  @Test
+  public void getMessagesAfterCursorReturnsMessagesThatBecameVisibleAfterNewerOnes() {
+    Message lastSeen = datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    // Stored after the cursor was read, although its timestamp comes before it.
+    Entity lateMessage = new Entity(messageEntityLabel);
+    lateMessage.setProperty("content", MESSAGE_CONTENT);
+    lateMessage.setProperty("timestamp", lastSeen.getTimestamp() - 1000);
+    lateMessage.setProperty("author", USER_NAME);
+    lateMessage.setProperty("event", EVENT_ID);
+    long lateMessageId = service.put(lateMessage).getId();
+    Entity oldMessage = new Entity(messageEntityLabel);
+    oldMessage.setPropertiesFrom(lateMessage);
+    oldMessage.setProperty("timestamp", lastSeen.getTimestamp() - 60 * 1000);
+    service.put(oldMessage);
+    DatastoreAccess.clearCaches();
+
+    List<Message> newer =
+        datastore.getMessagesFromEventAfter(
+            EVENT_ID, lastSeen.getTimestamp(), lastSeen.getId(), 20);
+
+    assertEquals(2, newer.size());
+    assertEquals(lateMessageId, newer.get(0).getId());
+    assertEquals(lastSeen.getId(), newer.get(1).getId());
+  }
+
+  @Test
+  public void getMessagesAfterCursorRespectsLimit() {
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+
+    List<Message> newer = datastore.getMessagesFromEventAfter(EVENT_ID, 0, 0, 2);
+
+    assertEquals(2, newer.size());
+  }
+
+  @Test
+  public void getMessagesIncludesMessagesAddedAfterTheyWereCached() {
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    List<Message> messages = datastore.getMessagesFromEvent(EVENT_ID, 20);
+    Message lastSeen = messages.get(0);
+
+    datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    List<Message> newer =
+        datastore.getMessagesFromEventAfter(
+            EVENT_ID, lastSeen.getTimestamp(), lastSeen.getId(), 20);
+
+    assertEquals(2, datastore.getMessagesFromEvent(EVENT_ID, 20).size());
+    assertEquals(2, newer.size());
+    assertTrue(newer.get(1).isAfter(lastSeen.getTimestamp(), lastSeen.getId()));
+  }
+
   @Test
   public void deleteOldMessagesDeletesAllMessagesWhenTimeframeHoursAreZero() {
     datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
     datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
     datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+    // Loads the cached messages of the event.
+    datastore.getMessagesFromEvent(EVENT_ID, 20);
 
     datastore.deleteMessagesOlderThan(0);
 
     assertEquals(0, service.prepare(new Query(messageEntityLabel)).countEntities());
+    assertTrue(datastore.getMessagesFromEvent(EVENT_ID, 20).isEmpty());
   }
 
   @Test
@@ -217,5 +954,147 @@ public final class DatastoreAccessTest {
     datastore.deleteMessagesOlderThan(24);
 
     assertEquals(3, service.prepare(new Query(messageEntityLabel)).countEntities());
+    assertEquals(3, datastore.getMessagesFromEvent(EVENT_ID, 20).size());
+  }
+
+  @Test
+  public void messageExpirySlotsBackfillMakesTheOldMessagesExpire() {
+    Entity oldMessage = new Entity(messageEntityLabel);
+    oldMessage.setProperty("timestamp", 0L);
+    oldMessage.setProperty("event", EVENT_ID);
+    service.put(oldMessage);
+    Entity retainedMessage = new Entity(messageEntityLabel);
+    retainedMessage.setProperty("timestamp", 0L);
+    retainedMessage.setProperty("event", EVENT_ID);
+    retainedMessage.setProperty("expirySlot", Long.MAX_VALUE);
+    service.put(retainedMessage);
+
+    int updatedMessages = datastore.addExpirySlotsToOldMessages();
+    int deletedMessages = datastore.deleteExpiredMessages(1000);
+
+    assertEquals(1, updatedMessages);
+    assertTrue(datastore.isBackfillDone(Backfill.MESSAGE_EXPIRY_SLOTS));
+    assertEquals(1, deletedMessages);
+    assertEquals(
+        retainedMessage.getKey(),
+        service.prepare(new Query(messageEntityLabel)).asSingleEntity().getKey());
+  }
+
+  @Test
+  public void messageExpirySlotsBackfillUsesTheRetentionOfTheEvent() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long end = System.currentTimeMillis() + 60 * 60 * 1000;
+    long eventId = datastore.addEventToGroup(groupId, EVENT_TITLE_A, 0, end, EVENT_CREATOR, 2);
+    Entity oldMessage = new Entity(messageEntityLabel);
+    oldMessage.setProperty("timestamp", 0L);
+    oldMessage.setProperty("event", eventId);
+    service.put(oldMessage);
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+
+    datastore.addExpirySlotsToOldMessages();
+
+    assertEquals(
+        service
+            .get(KeyFactory.createKey(messageEntityLabel, message.getId()))
+            .getProperty("expirySlot"),
+        service.get(oldMessage.getKey()).getProperty("expirySlot"));
+  }
+
+  @Test
+  public void messagesExpireWithTheRetentionOfTheirEvent() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    long endedEvent =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_A, now - 3 * hour, now - 2 * hour, "", 1);
+    long currentEvent =
+        datastore.addEventToGroup(groupId, EVENT_TITLE_B, now - hour, now + hour, "", 1);
+    Message endedEventMessage = datastore.addMessage(endedEvent, MESSAGE_CONTENT, USER_NAME);
+    Message currentEventMessage = datastore.addMessage(currentEvent, MESSAGE_CONTENT, USER_NAME);
+    // Pretend the first message was sent during the event, so it already expired.
+    Entity expiredMessage =
+        service.get(KeyFactory.createKey(messageEntityLabel, endedEventMessage.getId()));
+    expiredMessage.setProperty("expirySlot", 0L);
+    service.put(expiredMessage);
+
+    int deletedMessages = datastore.deleteExpiredMessages(1000);
+
+    assertEquals(1, deletedMessages);
+    assertEquals(1, service.prepare(new Query(messageEntityLabel)).countEntities());
+    assertEquals(
+        currentEventMessage.getId(),
+        service.prepare(new Query(messageEntityLabel)).asSingleEntity().getKey().getId());
+  }
+
+  @Test
+  public void messageExpirySlotStartsAfterTheEndOfTheRetention() throws Exception {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    long end = System.currentTimeMillis() + 60 * 60 * 1000;
+    long eventId = datastore.addEventToGroup(groupId, EVENT_TITLE_A, 0, end, EVENT_CREATOR, 2);
+    long slotMillis = 15 * 60 * 1000;
+
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    long expirySlot =
+        (long)
+            service
+                .get(KeyFactory.createKey(messageEntityLabel, message.getId()))
+                .getProperty("expirySlot");
+
+    long expiryTime = end + 2 * 60 * 60 * 1000;
+    assertTrue(expirySlot * slotMillis >= expiryTime);
+    assertTrue((expirySlot - 1) * slotMillis < expiryTime);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addEventWithRetentionOutOfRangeThrowsException() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+
+    datastore.addEventToGroup(groupId, EVENT_TITLE_A, START_TIME, END_TIME, EVENT_CREATOR, 0);
+  }
+
+  @Test
+  public void concurrentMessagesAreWrittenInBatches() throws Exception {
+    int messagesCount = 200;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(50);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Message>> messages = new ArrayList<>();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    for (int i = 0; i < messagesCount; i++) {
+      messages.add(
+          executor.submit(
+              () -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                start.await();
+                return datastore.addMessage(EVENT_ID, MESSAGE_CONTENT, USER_NAME);
+              }));
+    }
+    start.countDown();
+    Set<Long> ids = new HashSet<>();
+    for (Future<Message> message : messages) {
+      ids.add(message.get().getId());
+    }
+    executor.shutdown();
+    counter.uninstall();
+
+    assertEquals(messagesCount, ids.size());
+    assertEquals(messagesCount, service.prepare(new Query(messageEntityLabel)).countEntities());
+    assertTrue(counter.getCount("Put") < messagesCount / 2);
+  }
+
+  /** Runs the queued tasks that increment the messages counters, like the task queue would. */
+  private void runCountMessagesTasks() {
+    LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+    for (TaskStateInfo task : taskQueue.getQueueStateInfo().get("default").getTaskInfo()) {
+      Map<String, String> parameters = new HashMap<>();
+      for (String parameter : task.getBody().split("&")) {
+        String[] nameAndValue = parameter.split("=");
+        parameters.put(nameAndValue[0], nameAndValue[1]);
+      }
+      datastore.incrementMessagesCounter(
+          Long.parseLong(parameters.get("event")), Long.parseLong(parameters.get("count")));
+    }
+    taskQueue.flushQueue("default");
   }
 }
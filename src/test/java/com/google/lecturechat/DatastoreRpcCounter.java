@@ -0,0 +1,206 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.datastore.DatastoreV3Pb;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Counts the datastore RPCs made while it is installed, by wrapping the API proxy delegate set up
+ * by the LocalServiceTestHelper. It has to be installed after the helper was set up.
+ *
+ * <p>Besides the calls to each method, it counts the entities read (the keys of the gets and the
+ * results of the queries, keys-only or not) and the entities written by the puts, so that tests can
+ * assert the cost of a DatastoreAccess call or of a servlet request, e.g. that it stays the same
+ * whatever the number of entities stored.
+ */
+public final class DatastoreRpcCounter implements Delegate<Environment> {
+
+  private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+  private final Delegate<Environment> delegate;
+  private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+  private final AtomicInteger entitiesRead = new AtomicInteger();
+  private final AtomicInteger entitiesWritten = new AtomicInteger();
+
+  private DatastoreRpcCounter(Delegate<Environment> delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Starts counting the datastore RPCs. */
+  @SuppressWarnings("unchecked")
+  public static DatastoreRpcCounter install() {
+    DatastoreRpcCounter counter = new DatastoreRpcCounter(ApiProxy.getDelegate());
+    ApiProxy.setDelegate(counter);
+    return counter;
+  }
+
+  /** Stops counting and restores the original delegate. */
+  public void uninstall() {
+    ApiProxy.setDelegate(delegate);
+  }
+
+  /**
+   * Gets the number of calls made to a datastore method.
+   *
+   * @param method The name of the RPC method (e.g. Get, Put, RunQuery).
+   * @return The number of calls made since the counter was installed.
+   */
+  public int getCount(String method) {
+    AtomicInteger count = counts.get(method);
+    return (count == null) ? 0 : count.get();
+  }
+
+  /** Gets the number of datastore calls made since the counter was installed, of all methods. */
+  public int getTotalCount() {
+    return counts.values().stream().mapToInt(AtomicInteger::get).sum();
+  }
+
+  /**
+   * Gets the number of entities read since the counter was installed: the keys looked up by the
+   * gets (found or not) and the results returned by the queries.
+   */
+  public int getEntitiesRead() {
+    return entitiesRead.get();
+  }
+
+  /** Gets the number of entities written by the puts since the counter was installed. */
+  public int getEntitiesWritten() {
+    return entitiesWritten.get();
+  }
+
+  private void record(String packageName, String method, byte[] request) {
+    if (!packageName.equals(DATASTORE_PACKAGE)) {
+      return;
+    }
+    counts.computeIfAbsent(method, name -> new AtomicInteger()).incrementAndGet();
+    if (method.equals("Get")) {
+      DatastoreV3Pb.GetRequest getRequest = new DatastoreV3Pb.GetRequest();
+      getRequest.parseFrom(request);
+      entitiesRead.addAndGet(getRequest.keySize());
+    } else if (method.equals("Put")) {
+      DatastoreV3Pb.PutRequest putRequest = new DatastoreV3Pb.PutRequest();
+      putRequest.parseFrom(request);
+      entitiesWritten.addAndGet(putRequest.entitySize());
+    }
+  }
+
+  /** Counts the results of a query, which are only known from the response. */
+  private void recordResponse(String packageName, String method, byte[] response) {
+    if (packageName.equals(DATASTORE_PACKAGE)
+        && (method.equals("RunQuery") || method.equals("Next"))) {
+      DatastoreV3Pb.QueryResult result = new DatastoreV3Pb.QueryResult();
+      result.parseFrom(response);
+      entitiesRead.addAndGet(result.resultSize());
+    }
+  }
+
+  @Override
+  public byte[] makeSyncCall(
+      Environment environment, String packageName, String method, byte[] request) {
+    record(packageName, method, request);
+    byte[] response = delegate.makeSyncCall(environment, packageName, method, request);
+    recordResponse(packageName, method, response);
+    return response;
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(
+      Environment environment,
+      String packageName,
+      String method,
+      byte[] request,
+      ApiConfig apiConfig) {
+    record(packageName, method, request);
+    Future<byte[]> response =
+        delegate.makeAsyncCall(environment, packageName, method, request, apiConfig);
+    return new RecordingFuture(response, bytes -> recordResponse(packageName, method, bytes));
+  }
+
+  @Override
+  public void log(Environment environment, LogRecord record) {
+    delegate.log(environment, record);
+  }
+
+  @Override
+  public void flushLogs(Environment environment) {
+    delegate.flushLogs(environment);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment environment) {
+    return delegate.getRequestThreads(environment);
+  }
+
+  /** Wraps the response of an async call, to record it once it is received. */
+  private static final class RecordingFuture implements Future<byte[]> {
+
+    private final Future<byte[]> response;
+    private final Consumer<byte[]> recorder;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    private RecordingFuture(Future<byte[]> response, Consumer<byte[]> recorder) {
+      this.response = response;
+      this.recorder = recorder;
+    }
+
+    private byte[] record(byte[] bytes) {
+      if (recorded.compareAndSet(false, true)) {
+        recorder.accept(bytes);
+      }
+      return bytes;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+      return record(response.get());
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return record(response.get(timeout, unit));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return response.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return response.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return response.isDone();
+    }
+  }
+}
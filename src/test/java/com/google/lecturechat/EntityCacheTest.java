@@ -0,0 +1,105 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class EntityCacheTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private DatastoreService service;
+
+  private final String UNIVERSITY_A = "Uni A";
+  private final String UNIVERSITY_B = "Uni B";
+  private final String groupEntityLabel = "Group";
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    service = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void instancesShareEntitiesAndVersions() {
+    EntityCache instanceA = new EntityCache(MemcacheServiceFactory.getMemcacheService(), 10, 60, 0);
+    EntityCache instanceB = new EntityCache(MemcacheServiceFactory.getMemcacheService(), 10, 60, 0);
+    Entity groupEntity = new Entity(groupEntityLabel);
+    groupEntity.setProperty("university", UNIVERSITY_A);
+    Key key = service.put(groupEntity);
+    List<Key> keys = Arrays.asList(key);
+
+    instanceA.getAll(keys, service::get);
+    Entity sharedEntity = instanceB.getAll(keys, service::get).get(key);
+    groupEntity.setProperty("university", UNIVERSITY_B);
+    service.put(groupEntity);
+    instanceA.invalidate(key);
+    Entity updatedEntity = instanceB.getAll(keys, service::get).get(key);
+
+    assertEquals(UNIVERSITY_A, sharedEntity.getProperty("university"));
+    assertEquals(UNIVERSITY_B, updatedEntity.getProperty("university"));
+    assertEquals(1, instanceB.getSharedHits());
+    assertEquals(0, instanceB.getLocalHits());
+    assertEquals(1, instanceB.getMisses());
+  }
+
+  @Test
+  public void onlyReadsTheVersionsOfTheEntitiesOutsideTheValidityWindow() {
+    EntityCache cache = new EntityCache(MemcacheServiceFactory.getMemcacheService(), 10, 60, 60000);
+    EntityCache otherInstanceCache =
+        new EntityCache(MemcacheServiceFactory.getMemcacheService(), 10, 60, 0);
+    Entity groupEntity = new Entity(groupEntityLabel);
+    groupEntity.setProperty("university", UNIVERSITY_A);
+    Key key = service.put(groupEntity);
+    List<Key> keys = Arrays.asList(key);
+    cache.getAll(keys, service::get);
+
+    groupEntity.setProperty("university", UNIVERSITY_B);
+    service.put(groupEntity);
+    otherInstanceCache.invalidate(key);
+    Entity entityWithinWindow = cache.getAll(keys, service::get).get(key);
+    cache.invalidate(key);
+    Entity entityAfterLocalWrite = cache.getAll(keys, service::get).get(key);
+
+    // The version written by the other instance isn't read within the window.
+    assertEquals(UNIVERSITY_A, entityWithinWindow.getProperty("university"));
+    assertEquals(UNIVERSITY_B, entityAfterLocalWrite.getProperty("university"));
+    assertEquals(1, cache.getLocalHits());
+    assertEquals(2, cache.getMisses());
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.lecturechat.data.constants.EventEntity;
+import com.google.lecturechat.data.constants.GroupEntity;
+import com.google.lecturechat.data.constants.MessageEntity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion of datastore entities to the objects returned by the servlets, for a
+ * fixed set of groups, events and messages like the ones of a listing or a chat room.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityConversionBenchmark {
+
+  // The number of entities of each kind converted by each call.
+  @Param({"20", "200"})
+  private int entitiesCount;
+
+  private LocalServiceTestHelper helper;
+  private List<Entity> groupEntities;
+  private List<Entity> eventEntities;
+  private List<Entity> messageEntities;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // Keys can only be created once an API environment is registered.
+    helper = new LocalServiceTestHelper();
+    helper.setUp();
+    groupEntities = new ArrayList<>();
+    eventEntities = new ArrayList<>();
+    messageEntities = new ArrayList<>();
+    for (int i = 1; i <= entitiesCount; i++) {
+      Entity groupEntity = new Entity(GroupEntity.KIND.getLabel(), i);
+      groupEntity.setProperty(GroupEntity.UNIVERSITY_PROPERTY.getLabel(), "University " + i);
+      groupEntity.setProperty(GroupEntity.DEGREE_PROPERTY.getLabel(), "Degree " + i);
+      groupEntity.setProperty(GroupEntity.YEAR_PROPERTY.getLabel(), 1L + i % 4);
+      groupEntity.setProperty(GroupEntity.EVENTS_PROPERTY.getLabel(), Arrays.asList(1L, 2L, 3L));
+      groupEntities.add(groupEntity);
+
+      Entity eventEntity = new Entity(EventEntity.KIND.getLabel(), i);
+      eventEntity.setProperty(EventEntity.TITLE_PROPERTY.getLabel(), "Lecture " + i);
+      eventEntity.setProperty(EventEntity.START_PROPERTY.getLabel(), 1000L * i);
+      eventEntity.setProperty(EventEntity.END_PROPERTY.getLabel(), 1000L * i + 3600000);
+      eventEntity.setProperty(EventEntity.CREATOR_PROPERTY.getLabel(), "Creator " + i);
+      eventEntity.setProperty(EventEntity.GROUP_PROPERTY.getLabel(), 1L);
+      eventEntities.add(eventEntity);
+
+      Entity messageEntity = new Entity(MessageEntity.KIND.getLabel(), i);
+      messageEntity.setProperty(MessageEntity.CONTENT_PROPERTY.getLabel(), "Message " + i);
+      messageEntity.setProperty(MessageEntity.TIMESTAMP_PROPERTY.getLabel(), 1000L * i);
+      messageEntity.setProperty(MessageEntity.AUTHOR_PROPERTY.getLabel(), "Author " + i);
+      messageEntity.setProperty(MessageEntity.EVENT_PROPERTY.getLabel(), 1L);
+      messageEntities.add(messageEntity);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public List<Group> createGroups() {
+    return groupEntities.stream().map(Group::createGroupFromEntity).collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<GroupSummary> createGroupSummaries() {
+    return groupEntities.stream()
+        .map(entity -> GroupSummary.createGroupSummaryFromEntity(entity, 10, false))
+        .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<Event> createEvents() {
+    return eventEntities.stream().map(Event::createEventFromEntity).collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<EventSummary> createEventSummaries() {
+    return eventEntities.stream()
+        .map(entity -> EventSummary.createEventSummaryFromEntity(entity, 10, 100, true))
+        .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<Message> createMessages() {
+    return messageEntities.stream()
+        .map(Message::createMessageFromEntity)
+        .collect(Collectors.toList());
+  }
+}
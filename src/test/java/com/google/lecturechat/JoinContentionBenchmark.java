@@ -0,0 +1,186 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives a whole lecture hall of students joining the same event at once against the local
+ * datastore, comparing the joins that appended the user to the attendees list of the event with
+ * the joins that store a membership and increment a counter shard. Every invocation joins a new
+ * event, and the joins that still collided after MAX_ATTEMPTS are reported as failedJoins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class JoinContentionBenchmark {
+
+  private static final int STUDENTS_COUNT = 500;
+  private static final int CONCURRENT_REQUESTS = 50;
+  // The same number of attempts as DatastoreAccess.MAX_JOIN_ATTEMPTS.
+  private static final int MAX_ATTEMPTS = 5;
+
+  private LocalServiceTestHelper helper;
+  private DatastoreService service;
+  private DatastoreAccess datastore;
+  private ApiProxy.Environment environment;
+  private ExecutorService executor;
+  private long groupId;
+  private long eventId;
+
+  /** The number of joins that failed during the current iteration. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class FailedJoins {
+    public long failedJoins;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    helper =
+        new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    service = DatastoreServiceFactory.getDatastoreService();
+    datastore = DatastoreAccess.getDatastoreAccess();
+    environment = ApiProxy.getCurrentEnvironment();
+    executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+
+    groupId = datastore.addGroup("University", "Degree", 1);
+    for (int student = 0; student < STUDENTS_COUNT; student++) {
+      datastore.addUser("User " + student, "User " + student);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void addEvent() {
+    eventId = datastore.addEventToGroup(groupId, "Lecture", 0, 1, "Creator");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+    helper.tearDown();
+  }
+
+  /** The join used before memberships were stored, which writes the event in every join. */
+  @Benchmark
+  public void appendToAttendeesList(FailedJoins counter) throws Exception {
+    counter.failedJoins += joinConcurrently(this::appendToAttendeesList);
+  }
+
+  /** The join that only writes the user's entity group and one shard of the attendees counter. */
+  @Benchmark
+  public void storeMembership(FailedJoins counter) throws Exception {
+    counter.failedJoins +=
+        joinConcurrently(
+            (userId, eventId) -> {
+              try {
+                datastore.joinEvent(userId, eventId);
+                return true;
+              } catch (ConcurrentModificationException e) {
+                return false;
+              }
+            });
+  }
+
+  /**
+   * Makes every student join the current event, CONCURRENT_REQUESTS at a time.
+   *
+   * @param join The join, which returns false if it failed.
+   * @return The number of joins that failed.
+   */
+  private int joinConcurrently(BiPredicate<String, Long> join) throws Exception {
+    long event = eventId;
+    List<Future<Boolean>> joins = new ArrayList<>();
+    for (int student = 0; student < STUDENTS_COUNT; student++) {
+      String userId = "User " + student;
+      joins.add(
+          executor.submit(
+              () -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                return join.test(userId, event);
+              }));
+    }
+
+    int failedJoins = 0;
+    for (Future<Boolean> result : joins) {
+      if (!result.get()) {
+        failedJoins++;
+      }
+    }
+    return failedJoins;
+  }
+
+  private boolean appendToAttendeesList(String userId, long eventId) {
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      Transaction transaction = service.beginTransaction();
+      try {
+        Entity eventEntity = service.get(transaction, KeyFactory.createKey("Event", eventId));
+        List<String> attendees = (ArrayList) (eventEntity.getProperty("attendees"));
+        if (attendees == null) {
+          attendees = new ArrayList<>();
+        }
+        attendees.add(userId);
+        eventEntity.setProperty("attendees", attendees);
+        service.put(transaction, eventEntity);
+        transaction.commit();
+        return true;
+      } catch (ConcurrentModificationException e) {
+        // Tries again.
+      } catch (EntityNotFoundException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    return false;
+  }
+}
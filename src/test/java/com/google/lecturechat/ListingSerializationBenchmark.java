@@ -0,0 +1,101 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the Gson serialization of the payloads sent by the listing servlets, using pages of the
+ * default size (20) and a chat room poll that returns the whole recent messages window (200). Like
+ * the servlets, a new Gson is created for every payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingSerializationBenchmark {
+
+  private static final int PAGE_SIZE = 20;
+  private static final int MESSAGES_COUNT = 200;
+
+  private GroupsPage groupsPage;
+  private EventsPage eventsPage;
+  private List<Message> messages;
+
+  @Setup
+  public void setUp() {
+    List<GroupSummary> groups = new ArrayList<>();
+    List<EventSummary> events = new ArrayList<>();
+    for (int i = 0; i < PAGE_SIZE; i++) {
+      groups.add(
+          new GroupSummary(
+              5629499534213120L + i, "University " + i, "Degree " + i, 1 + i % 4, 120, 30, false));
+      events.add(
+          new EventSummary(
+              5066549580791808L + i,
+              "Lecture " + i,
+              1600000000000L + i * 3600000L,
+              1600000000000L + (i + 1) * 3600000L,
+              40,
+              250,
+              true));
+    }
+    // Web-safe datastore cursors are about this long.
+    String cursor =
+        "CjkSM2oRZGV2fmxlY3R1cmVjaGF0cg4LEgVHcm91cBiAgICAgICACgwLEgVHcm91cBiAgICAgIDACgwYACAA";
+    groupsPage = new GroupsPage(groups, cursor);
+    eventsPage = new EventsPage(events, cursor);
+
+    messages = new ArrayList<>();
+    for (int i = 0; i < MESSAGES_COUNT; i++) {
+      messages.add(
+          new Message(
+              4785074604081152L + i,
+              "Did anyone understand the proof on slide " + i + "?",
+              1600000000000L + i * 1000L,
+              "Student " + (i % 25),
+              5066549580791808L));
+    }
+  }
+
+  @Benchmark
+  public String serializeGroupsPage() {
+    return new Gson().toJson(groupsPage);
+  }
+
+  @Benchmark
+  public String serializeEventsPage() {
+    return new Gson().toJson(eventsPage);
+  }
+
+  @Benchmark
+  public String serializeMessages() {
+    return new Gson().toJson(messages);
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways of leaving out the events a user already joined from the events of a large
+ * group: the List.removeAll used before, a set of boxed ids and a LongIdSet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongIdSetBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  private int eventsCount;
+
+  private List<Event> groupEvents;
+  private List<Event> joinedEvents;
+  private List<Long> joinedEventsIds;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    groupEvents = new ArrayList<>();
+    joinedEvents = new ArrayList<>();
+    joinedEventsIds = new ArrayList<>();
+    for (int i = 0; i < eventsCount; i++) {
+      // Datastore ids are large and sparse, like the ones generated here.
+      Event event = new Event(random.nextLong() >>> 12, "Event", 0, 0, "Creator", null);
+      groupEvents.add(event);
+      if (i % 10 == 0) {
+        joinedEvents.add(event);
+        joinedEventsIds.add(event.getId());
+      }
+    }
+  }
+
+  @Benchmark
+  public List<Event> listRemoveAll() {
+    List<Event> events = new ArrayList<>(groupEvents);
+    events.removeAll(joinedEvents);
+    return events;
+  }
+
+  @Benchmark
+  public List<Event> boxedHashSet() {
+    Set<Long> joinedIds = new HashSet<>(joinedEventsIds);
+    List<Event> events = new ArrayList<>(groupEvents);
+    events.removeIf(event -> joinedIds.contains(event.getId()));
+    return events;
+  }
+
+  @Benchmark
+  public List<Event> longIdSet() {
+    LongIdSet joinedIds = LongIdSet.of(joinedEventsIds);
+    List<Event> events = new ArrayList<>(groupEvents);
+    events.removeIf(event -> joinedIds.contains(event.getId()));
+    return events;
+  }
+}
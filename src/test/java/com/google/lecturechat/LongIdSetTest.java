@@ -0,0 +1,41 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class LongIdSetTest {
+
+  @Test
+  public void containsExactlyTheAddedIds() {
+    LongIdSet ids = new LongIdSet(1);
+    for (long id = -50; id <= 50; id += 2) {
+      ids.add(id * 1_000_003L);
+    }
+
+    assertEquals(51, ids.size());
+    assertTrue(ids.contains(0));
+    assertTrue(ids.contains(-50 * 1_000_003L));
+    assertFalse(ids.contains(1_000_003L));
+    assertFalse(ids.add(2 * 1_000_003L));
+  }
+}
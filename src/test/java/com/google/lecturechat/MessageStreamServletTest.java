@@ -0,0 +1,268 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.gson.Gson;
+import com.google.lecturechat.data.AuthStatus;
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.Message;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MessageStreamServletTest {
+
+  // The request attribute AuthStatus memoizes the verified id_token in.
+  private static final String ID_TOKEN_ATTRIBUTE = AuthStatus.class.getName() + ".idToken";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalTaskQueueTestConfig());
+  private DatastoreAccess datastore;
+  private MessageSubscribers subscribers;
+  private MessageStreamServlet servlet;
+  // The messages cached by the instance outlive the local datastore of a test, so each test uses
+  // a new event.
+  private long eventId;
+
+  private final String USER_ID = "User Id A";
+  private final String USER_NAME = "User Name A";
+  private final String MESSAGE_CONTENT = "Hello";
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreAccess.getDatastoreAccess();
+    subscribers = MessageSubscribers.getMessageSubscribers();
+    servlet = new MessageStreamServlet();
+    servlet.init();
+    eventId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void requestWithNewMessagesIsAnsweredRightAway() throws Exception {
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    int subscribersCount = subscribers.getSubscribersCount();
+
+    StreamRequest request = new StreamRequest(0, 0);
+
+    assertTrue(request.isCompleted);
+    assertEquals(Arrays.asList(message.getId()), request.getMessageIds());
+    assertEquals(subscribersCount, subscribers.getSubscribersCount());
+  }
+
+  @Test
+  public void requestWithoutNewMessagesIsAnsweredOnceAMessageIsPublished() throws Exception {
+    Message lastMessage = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    int subscribersCount = subscribers.getSubscribersCount();
+
+    StreamRequest request = new StreamRequest(lastMessage.getTimestamp(), lastMessage.getId());
+    assertFalse(request.isCompleted);
+    assertEquals(subscribersCount + 1, subscribers.getSubscribersCount());
+
+    Message newMessage = addMessageAfter(lastMessage);
+    subscribers.publish(newMessage);
+
+    assertTrue(request.isCompleted);
+    // The messages of the overlap before the cursor are sent again.
+    assertEquals(
+        Arrays.asList(lastMessage.getId(), newMessage.getId()), request.getMessageIds());
+    assertEquals(subscribersCount, subscribers.getSubscribersCount());
+  }
+
+  @Test
+  public void wokenRequestReadsTheMessagesAgainUntilTheNewOneIsVisible() throws Exception {
+    Message lastMessage = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    int subscribersCount = subscribers.getSubscribersCount();
+    StreamRequest request = new StreamRequest(lastMessage.getTimestamp(), lastMessage.getId());
+
+    // E.g. a message whose write wasn't acknowledged yet when the messages were read.
+    Message notVisibleMessage =
+        new Message(
+            lastMessage.getId() + 1,
+            MESSAGE_CONTENT,
+            lastMessage.getTimestamp() + 1,
+            USER_NAME,
+            eventId);
+    subscribers.publish(notVisibleMessage);
+
+    assertFalse(request.isCompleted);
+    assertEquals(subscribersCount + 1, subscribers.getSubscribersCount());
+
+    Message newMessage = addMessageAfter(lastMessage);
+    subscribers.publish(newMessage);
+
+    assertTrue(request.isCompleted);
+    assertTrue(request.getMessageIds().contains(newMessage.getId()));
+    assertEquals(subscribersCount, subscribers.getSubscribersCount());
+  }
+
+  @Test
+  public void timedOutRequestReadsTheMessagesOnceMore() throws Exception {
+    Message lastMessage = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    int subscribersCount = subscribers.getSubscribersCount();
+    StreamRequest request = new StreamRequest(lastMessage.getTimestamp(), lastMessage.getId());
+
+    // A message posted on another instance isn't published on this one.
+    Message newMessage = addMessageAfter(lastMessage);
+    for (AsyncListener listener : request.listeners) {
+      listener.onTimeout(null);
+    }
+
+    assertTrue(request.isCompleted);
+    assertTrue(request.getMessageIds().contains(newMessage.getId()));
+    assertEquals(subscribersCount, subscribers.getSubscribersCount());
+  }
+
+  /**
+   * Adds a message that comes after the given one (the ids of the messages added in the same
+   * millisecond don't follow the order they were added).
+   */
+  private Message addMessageAfter(Message message) {
+    Message newMessage;
+    do {
+      newMessage = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    } while (!newMessage.isAfter(message.getTimestamp(), message.getId()));
+    return newMessage;
+  }
+
+  /**
+   * A long-polling request made by a signed in user to the servlet, whose asynchronous tasks run
+   * right away on the calling thread.
+   */
+  private final class StreamRequest {
+
+    private final StringWriter output = new StringWriter();
+    private final List<AsyncListener> listeners = new ArrayList<>();
+    private boolean isCompleted = false;
+
+    private StreamRequest(long lastTimestamp, long lastMessageId) throws Exception {
+      Map<String, String> parameters = new HashMap<>();
+      parameters.put("id", Long.toString(eventId));
+      parameters.put("last-timestamp", Long.toString(lastTimestamp));
+      parameters.put("last-id", Long.toString(lastMessageId));
+      servlet.doGet(createRequest(parameters), createResponse());
+    }
+
+    private List<Long> getMessageIds() {
+      Message[] messages = new Gson().fromJson(output.toString(), Message[].class);
+      return Arrays.stream(messages).map(Message::getId).collect(Collectors.toList());
+    }
+
+    private HttpServletRequest createRequest(Map<String, String> parameters) {
+      GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+      payload.setSubject(USER_ID);
+      GoogleIdToken idToken =
+          new GoogleIdToken(new JsonWebSignature.Header(), payload, new byte[0], new byte[0]);
+      AsyncContext asyncContext = createAsyncContext(createResponse());
+      return (HttpServletRequest)
+          Proxy.newProxyInstance(
+              HttpServletRequest.class.getClassLoader(),
+              new Class<?>[] {HttpServletRequest.class},
+              (proxy, method, arguments) -> {
+                switch (method.getName()) {
+                  case "getParameter":
+                    return parameters.get(arguments[0]);
+                  case "getAttribute":
+                    return ID_TOKEN_ATTRIBUTE.equals(arguments[0]) ? Optional.of(idToken) : null;
+                  case "startAsync":
+                    return asyncContext;
+                  default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+              });
+    }
+
+    private AsyncContext createAsyncContext(HttpServletResponse response) {
+      return (AsyncContext)
+          Proxy.newProxyInstance(
+              AsyncContext.class.getClassLoader(),
+              new Class<?>[] {AsyncContext.class},
+              (proxy, method, arguments) -> {
+                switch (method.getName()) {
+                  case "setTimeout":
+                    return null;
+                  case "addListener":
+                    listeners.add((AsyncListener) arguments[0]);
+                    return null;
+                  case "start":
+                    ((Runnable) arguments[0]).run();
+                    return null;
+                  case "getResponse":
+                    return response;
+                  case "complete":
+                    isCompleted = true;
+                    return null;
+                  default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+              });
+    }
+
+    private HttpServletResponse createResponse() {
+      PrintWriter writer = new PrintWriter(output, true);
+      return (HttpServletResponse)
+          Proxy.newProxyInstance(
+              HttpServletResponse.class.getClassLoader(),
+              new Class<?>[] {HttpServletResponse.class},
+              (proxy, method, arguments) -> {
+                switch (method.getName()) {
+                  case "getWriter":
+                    return writer;
+                  case "setContentType":
+                  case "setCharacterEncoding":
+                    return null;
+                  default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+              });
+    }
+  }
+}
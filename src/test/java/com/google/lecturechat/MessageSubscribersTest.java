@@ -0,0 +1,194 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.lecturechat.data.DatastoreAccess;
+import com.google.lecturechat.data.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MessageSubscribersTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalTaskQueueTestConfig());
+  private DatastoreAccess datastore;
+  private MessageSubscribers subscribers;
+  // The messages cached by the instance outlive the local datastore of a test, so each test uses
+  // new events.
+  private long eventId;
+  private long otherEventId;
+
+  private final String USER_NAME = "User Name A";
+  private final String MESSAGE_CONTENT = "Hello";
+  private final int MAX_SUBSCRIBERS = 3;
+  private final int MESSAGE_LIMIT = 20;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreAccess.getDatastoreAccess();
+    subscribers = new MessageSubscribers(MAX_SUBSCRIBERS, MESSAGE_LIMIT, datastore);
+    eventId = ThreadLocalRandom.current().nextLong(2, Long.MAX_VALUE);
+    otherEventId = eventId - 1;
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void subscribersOverTheLimitAreNotRegistered() {
+    RecordingSubscriber subscriber = new RecordingSubscriber(0, 0);
+    RecordingSubscriber otherSubscriber = new RecordingSubscriber(0, 0);
+    RecordingSubscriber otherEventSubscriber = new RecordingSubscriber(0, 0);
+    RecordingSubscriber extraSubscriber = new RecordingSubscriber(0, 0);
+
+    assertTrue(subscribers.subscribe(eventId, subscriber));
+    assertTrue(subscribers.subscribe(eventId, otherSubscriber));
+    assertTrue(subscribers.subscribe(otherEventId, otherEventSubscriber));
+    assertFalse(subscribers.subscribe(eventId, extraSubscriber));
+    assertEquals(3, subscribers.getSubscribersCount());
+
+    subscribers.unsubscribe(eventId, subscriber);
+    subscribers.unsubscribe(eventId, extraSubscriber);
+    assertEquals(2, subscribers.getSubscribersCount());
+    assertTrue(subscribers.subscribe(eventId, extraSubscriber));
+  }
+
+  @Test
+  public void publishedMessageOnlyWakesTheSubscribersOfItsEventWhoseCursorComesBeforeIt() {
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    RecordingSubscriber waitingSubscriber = new RecordingSubscriber(0, 0);
+    RecordingSubscriber upToDateSubscriber =
+        new RecordingSubscriber(message.getTimestamp(), message.getId());
+    RecordingSubscriber otherEventSubscriber = new RecordingSubscriber(0, 0);
+    subscribers.subscribe(eventId, waitingSubscriber);
+    subscribers.subscribe(eventId, upToDateSubscriber);
+    subscribers.subscribe(otherEventId, otherEventSubscriber);
+
+    subscribers.publish(message);
+
+    assertEquals(Arrays.asList(Arrays.asList(message)), waitingSubscriber.received);
+    assertTrue(upToDateSubscriber.received.isEmpty());
+    assertTrue(otherEventSubscriber.received.isEmpty());
+    // The woken subscriber was removed, the others are still waiting.
+    assertEquals(2, subscribers.getSubscribersCount());
+  }
+
+  @Test
+  public void subscribersWokenTogetherShareASingleRead() {
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    Message otherMessage = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    // The ids of the messages added in the same millisecond don't follow the order they were added.
+    boolean isOtherMessageAfter = otherMessage.isAfter(message.getTimestamp(), message.getId());
+    Message firstMessage = isOtherMessageAfter ? message : otherMessage;
+    Message secondMessage = isOtherMessageAfter ? otherMessage : message;
+    RecordingSubscriber oldSubscriber = new RecordingSubscriber(0, 0);
+    RecordingSubscriber recentSubscriber =
+        new RecordingSubscriber(firstMessage.getTimestamp(), firstMessage.getId());
+    subscribers.subscribe(eventId, oldSubscriber);
+    subscribers.subscribe(eventId, recentSubscriber);
+
+    subscribers.publish(secondMessage);
+
+    assertEquals(1, oldSubscriber.received.size());
+    assertSame(oldSubscriber.received.get(0), recentSubscriber.received.get(0));
+    assertEquals(
+        Arrays.asList(firstMessage, secondMessage),
+        DatastoreAccess.selectMessagesAfter(
+            recentSubscriber.received.get(0),
+            firstMessage.getTimestamp(),
+            firstMessage.getId(),
+            MESSAGE_LIMIT));
+    assertEquals(0, subscribers.getSubscribersCount());
+  }
+
+  @Test
+  public void wokenSubscribersReceiveTheMessagesReadEvenIfTheNewOneIsNotVisibleYet() {
+    Message message = datastore.addMessage(eventId, MESSAGE_CONTENT, USER_NAME);
+    RecordingSubscriber subscriber =
+        new RecordingSubscriber(message.getTimestamp(), message.getId());
+    subscribers.subscribe(eventId, subscriber);
+
+    // E.g. a message whose write wasn't acknowledged yet when the read was made.
+    Message notVisibleMessage =
+        new Message(
+            message.getId() + 1,
+            MESSAGE_CONTENT,
+            message.getTimestamp() + 1,
+            USER_NAME,
+            eventId);
+    subscribers.publish(notVisibleMessage);
+
+    // Deciding to wait for the next message is left to the subscriber.
+    assertEquals(1, subscriber.received.size());
+    assertEquals(Arrays.asList(message), subscriber.received.get(0));
+    assertEquals(0, subscribers.getSubscribersCount());
+  }
+
+  /** A subscriber that runs its tasks right away and records the messages it receives. */
+  private static final class RecordingSubscriber implements MessageSubscribers.Subscriber {
+
+    private final long lastTimestamp;
+    private final long lastMessageId;
+    private final List<List<Message>> received = new ArrayList<>();
+
+    private RecordingSubscriber(long lastTimestamp, long lastMessageId) {
+      this.lastTimestamp = lastTimestamp;
+      this.lastMessageId = lastMessageId;
+    }
+
+    @Override
+    public long getLastTimestamp() {
+      return lastTimestamp;
+    }
+
+    @Override
+    public long getLastMessageId() {
+      return lastMessageId;
+    }
+
+    @Override
+    public void start(Runnable task) {
+      task.run();
+    }
+
+    @Override
+    public void receive(List<Message> messages) {
+      received.add(messages);
+    }
+  }
+}
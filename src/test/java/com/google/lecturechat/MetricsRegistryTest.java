@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MetricsRegistryTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private MetricsRegistry metrics;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    metrics = new MetricsRegistry();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void latenciesAreCountedInTheSmallestBucketWhoseBoundIsNotBelowThem() {
+    assertEquals(0, LatencyHistogram.getBucket(0));
+    assertEquals(0, LatencyHistogram.getBucket(1));
+    assertEquals(1, LatencyHistogram.getBucket(2));
+    assertEquals(2, LatencyHistogram.getBucket(3));
+    assertEquals(2, LatencyHistogram.getBucket(4));
+    assertEquals(10, LatencyHistogram.getBucket(1000));
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void requestLatenciesAreWrittenAsCumulativeBuckets() {
+    metrics.recordRequest("/messages", "GET", TimeUnit.MICROSECONDS.toNanos(3));
+    metrics.recordRequest("/messages", "GET", TimeUnit.MICROSECONDS.toNanos(1000));
+
+    String output = write(metrics);
+
+    String labels = "endpoint=\"/messages\",method=\"GET\"";
+    assertTrue(output.contains("_bucket{" + labels + ",le=\"4.0E-6\"} 1\n"));
+    assertTrue(output.contains("_bucket{" + labels + ",le=\"0.001024\"} 2\n"));
+    assertTrue(output.contains("_bucket{" + labels + ",le=\"+Inf\"} 2\n"));
+    assertTrue(output.contains("_sum{" + labels + "} 0.001003\n"));
+    assertTrue(output.contains("_count{" + labels + "} 2\n"));
+  }
+
+  @Test
+  public void cacheLookupsAreWrittenWithTheirHitRatio() {
+    metrics.countCacheLookups("counters", 3, 1);
+    metrics.countCacheLookups("counters", 0, 0);
+
+    String output = write(metrics);
+
+    assertTrue(output.contains("lecturechat_cache_hits_total{cache=\"counters\"} 3\n"));
+    assertTrue(output.contains("lecturechat_cache_misses_total{cache=\"counters\"} 1\n"));
+    assertTrue(output.contains("lecturechat_cache_hit_ratio{cache=\"counters\"} 0.75\n"));
+  }
+
+  @Test
+  public void datastoreOperationsAreCountedAndKeepTheirExceptions() throws Exception {
+    DatastoreService service =
+        InstrumentedDatastore.instrument(
+            DatastoreService.class, DatastoreServiceFactory.getDatastoreService(), metrics);
+    service.put(new Entity("Group", 1));
+    service.get(KeyFactory.createKey("Group", 1));
+    boolean notFound = false;
+    try {
+      service.get(KeyFactory.createKey("Group", 2));
+    } catch (EntityNotFoundException e) {
+      notFound = true;
+    }
+
+    String output = write(metrics);
+
+    assertTrue(notFound);
+    assertTrue(output.contains("lecturechat_datastore_operations_total{operation=\"get\"} 2\n"));
+    assertTrue(output.contains("lecturechat_datastore_operations_total{operation=\"put\"} 1\n"));
+  }
+
+  private static String write(MetricsRegistry metrics) {
+    StringWriter output = new StringWriter();
+    PrintWriter writer = new PrintWriter(output);
+    metrics.writeTo(writer);
+    writer.flush();
+    return output.toString();
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the listings that leave out what the user already joined (or keep only that), end to
+ * end through DatastoreAccess on the local datastore: the events of a group and the groups
+ * directory, the user having joined one event (and one group) out of ten. Each call uses a new
+ * UserContext, like a new request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotJoinedFilterBenchmark {
+
+  private static final String USER_ID = "User";
+  private static final int PAGE_SIZE = 20;
+  private static final int GROUPS_COUNT = 100;
+
+  // The number of events of the group.
+  @Param({"100", "1000"})
+  private int eventsCount;
+
+  private LocalServiceTestHelper helper;
+  private DatastoreAccess datastore;
+  private long groupId;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    helper =
+        new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    DatastoreAccess.clearCaches();
+    datastore = DatastoreAccess.getDatastoreAccess();
+    datastore.addUser(USER_ID, USER_ID);
+
+    for (int group = 0; group < GROUPS_COUNT; group++) {
+      long id = datastore.addGroup("University", "Degree " + group, 1);
+      if (group % 10 == 0) {
+        datastore.joinGroup(USER_ID, id);
+      }
+    }
+    groupId = datastore.addGroup("University", "Lectures", 1);
+    for (int event = 0; event < eventsCount; event++) {
+      long id = datastore.addEventToGroup(groupId, "Event " + event, event, event + 1, "Creator");
+      if (event % 10 == 0) {
+        datastore.joinEvent(USER_ID, id);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public List<Event> allNotJoinedEventsFromGroup() {
+    return datastore.getAllNotJoinedEventsFromGroup(groupId, new UserContext(USER_ID));
+  }
+
+  @Benchmark
+  public List<Event> allJoinedEventsFromGroup() {
+    return datastore.getAllJoinedEventsFromGroup(groupId, new UserContext(USER_ID));
+  }
+
+  @Benchmark
+  public EventsPage notJoinedEventsPage() {
+    return datastore.getEventsPageFromGroup(
+        new UserContext(USER_ID), groupId, Long.MIN_VALUE, Long.MAX_VALUE, false, null, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public GroupsPage notJoinedGroupsPage() {
+    return datastore.getNotJoinedGroupsPage(
+        new UserContext(USER_ID), null, null, null, null, PAGE_SIZE);
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class RecentMessagesCacheTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  private final String USER_NAME = "User Name A";
+  private final String MESSAGE_CONTENT = "Message A";
+  private final long EVENT_ID = 123L;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void onlyServesCursorsItCovers() {
+    RecentMessagesCache cache =
+        new RecentMessagesCache(MemcacheServiceFactory.getMemcacheService(), 2, Long.MAX_VALUE, 0);
+    cache.load(
+        EVENT_ID,
+        cache.getVersion(EVENT_ID),
+        Arrays.asList(
+            new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID),
+            new Message(3, MESSAGE_CONTENT, 30, USER_NAME, EVENT_ID)),
+        false);
+
+    cache.add(EVENT_ID, Arrays.asList(new Message(4, MESSAGE_CONTENT, 40, USER_NAME, EVENT_ID)));
+    Long version = cache.getVersion(EVENT_ID);
+
+    assertFalse(cache.getFirstMessages(EVENT_ID, version, 20).isPresent());
+    assertFalse(cache.getMessagesAfter(EVENT_ID, version, 20, 2, 20).isPresent());
+    assertEquals(1, cache.getMessagesAfter(EVENT_ID, version, 30, 3, 20).get().size());
+  }
+
+  @Test
+  public void isStaleOnceAnotherInstanceAddsMessages() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    RecentMessagesCache cache = new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 0);
+    RecentMessagesCache otherInstanceCache =
+        new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 0);
+    cache.load(
+        EVENT_ID,
+        cache.getVersion(EVENT_ID),
+        Arrays.asList(new Message(1, MESSAGE_CONTENT, 10, USER_NAME, EVENT_ID)),
+        true);
+
+    otherInstanceCache.add(
+        EVENT_ID, Arrays.asList(new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID)));
+
+    Long version = cache.getVersion(EVENT_ID);
+    assertFalse(cache.isLoaded(EVENT_ID, version));
+    assertFalse(cache.getMessagesAfter(EVENT_ID, version, 10, 1, 20).isPresent());
+  }
+
+  @Test
+  public void onlyChecksTheVersionOnceTheIntervalHasPassed() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    RecentMessagesCache cache = new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 60000);
+    RecentMessagesCache otherInstanceCache =
+        new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 0);
+    Long loadedVersion = cache.getVersion(EVENT_ID);
+    cache.load(
+        EVENT_ID,
+        loadedVersion,
+        Arrays.asList(new Message(1, MESSAGE_CONTENT, 10, USER_NAME, EVENT_ID)),
+        true);
+
+    otherInstanceCache.add(
+        EVENT_ID, Arrays.asList(new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID)));
+
+    // The buffer is still trusted, since it matched the version less than a minute ago.
+    assertEquals(loadedVersion, cache.getVersion(EVENT_ID));
+    assertTrue(cache.isLoaded(EVENT_ID, cache.getVersion(EVENT_ID)));
+  }
+
+  @Test
+  public void catchesUpStaleBuffers() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    RecentMessagesCache cache = new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 0);
+    RecentMessagesCache otherInstanceCache =
+        new RecentMessagesCache(memcache, 10, Long.MAX_VALUE, 0);
+    Message cachedMessage = new Message(1, MESSAGE_CONTENT, 10, USER_NAME, EVENT_ID);
+    Message newMessage = new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID);
+    cache.load(EVENT_ID, cache.getVersion(EVENT_ID), Arrays.asList(cachedMessage), true);
+    otherInstanceCache.add(EVENT_ID, Arrays.asList(newMessage));
+
+    Long version = cache.getVersion(EVENT_ID);
+    assertFalse(cache.isLoaded(EVENT_ID, version));
+    assertEquals(cachedMessage, cache.getNewestMessage(EVENT_ID).get());
+    cache.catchUp(EVENT_ID, version, cachedMessage, Arrays.asList(cachedMessage, newMessage));
+
+    assertTrue(cache.isLoaded(EVENT_ID, version));
+    assertEquals(
+        Arrays.asList(cachedMessage, newMessage),
+        cache.getFirstMessages(EVENT_ID, version, 20).get());
+  }
+
+  @Test
+  public void dropsBuffersLoadedBeforeAMessageWasAdded() {
+    RecentMessagesCache cache =
+        new RecentMessagesCache(MemcacheServiceFactory.getMemcacheService(), 10, Long.MAX_VALUE, 0);
+    long versionBeforeLoad = cache.getVersion(EVENT_ID);
+
+    // The message is written while the buffer is being loaded, and isn't part of it.
+    cache.add(EVENT_ID, Arrays.asList(new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID)));
+    cache.load(
+        EVENT_ID,
+        versionBeforeLoad,
+        Arrays.asList(new Message(1, MESSAGE_CONTENT, 10, USER_NAME, EVENT_ID)),
+        true);
+
+    assertFalse(cache.isLoaded(EVENT_ID, cache.getVersion(EVENT_ID)));
+  }
+
+  @Test
+  public void evictsEventsOverMemoryLimit() {
+    RecentMessagesCache cache =
+        new RecentMessagesCache(MemcacheServiceFactory.getMemcacheService(), 10, 100, 0);
+    long version = cache.getVersion(EVENT_ID);
+    long otherVersion = cache.getVersion(EVENT_ID + 1);
+    cache.load(EVENT_ID, version, Arrays.asList(new Message(1, "", 10, "", EVENT_ID)), true);
+    cache.load(
+        EVENT_ID + 1, otherVersion, Arrays.asList(new Message(2, "", 10, "", EVENT_ID + 1)), true);
+
+    assertFalse(cache.isLoaded(EVENT_ID, version));
+    assertTrue(cache.isLoaded(EVENT_ID + 1, otherVersion));
+  }
+
+  @Test
+  public void removesTheDeletedMessagesWithoutDroppingTheBuffer() {
+    RecentMessagesCache cache =
+        new RecentMessagesCache(MemcacheServiceFactory.getMemcacheService(), 10, Long.MAX_VALUE, 0);
+    long version = cache.getVersion(EVENT_ID);
+    Message newMessage = new Message(3, MESSAGE_CONTENT, 30, USER_NAME, EVENT_ID);
+    cache.load(
+        EVENT_ID,
+        version,
+        Arrays.asList(
+            new Message(1, MESSAGE_CONTENT, 10, USER_NAME, EVENT_ID),
+            new Message(2, MESSAGE_CONTENT, 20, USER_NAME, EVENT_ID),
+            newMessage),
+        true);
+
+    cache.removeOldestMessages(message -> message.getTimestamp() < 25);
+
+    assertTrue(cache.isLoaded(EVENT_ID, version));
+    assertEquals(Arrays.asList(newMessage), cache.getFirstMessages(EVENT_ID, version, 20).get());
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class RequestTraceTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private DatastoreAccess datastore;
+
+  private final String UNIVERSITY_A = "Uni A";
+  private final String DEGREE = "Degree A";
+  private final int YEAR = 1;
+  private final String USER_ID = "User Id A";
+  private final String USER_NAME = "User Name A";
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    DatastoreAccess.clearCaches();
+    datastore = DatastoreAccess.getDatastoreAccess();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void nestsTheDatastoreOperationsInTheMethodsThatMadeThem() {
+    long groupId = datastore.addGroup(UNIVERSITY_A, DEGREE, YEAR);
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.joinGroup(USER_ID, groupId);
+
+    RequestTrace trace = RequestTrace.start("GET /group-events");
+    boolean isMember = datastore.isMemberOfGroup(new UserContext(USER_ID), groupId);
+    String output = trace.format(trace.finish());
+
+    assertTrue(isMember);
+    String[] lines = output.split("\\R");
+    assertTrue(lines[0].startsWith("GET /group-events took "));
+    assertTrue(lines[1].endsWith("  isMemberOfGroup"));
+    assertTrue(lines[2].contains("    datastore.get kind=User keys=1 results=1"));
+  }
+
+  @Test
+  public void isOnlyRecordedUntilItIsFinished() {
+    datastore.addUser(USER_ID, USER_NAME);
+
+    RequestTrace trace = RequestTrace.start("GET /joined-events");
+    long durationNanos = trace.finish();
+    datastore.isMemberOfGroup(new UserContext(USER_ID), 1L);
+
+    assertTrue(trace.format(durationNanos).endsWith(", 0 spans"));
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Creates requests and responses for calling the servlets in-process, as if the requests went
+ * through the UserContextFilter and their id_token was already verified. Only the methods used by
+ * the servlets are supported.
+ */
+final class ServletRequests {
+
+  // The request attributes set by the UserContextFilter and by AuthStatus.
+  private static final String USER_CONTEXT_ATTRIBUTE = UserContext.class.getName();
+  private static final String ID_TOKEN_ATTRIBUTE = AuthStatus.class.getName() + ".idToken";
+
+  private ServletRequests() {}
+
+  /**
+   * Creates a request made by a signed in user.
+   *
+   * @param userId The id of the user, which is also used as their name.
+   * @param parameters The parameters of the request.
+   * @return The request.
+   */
+  static HttpServletRequest createRequest(String userId, Map<String, String> parameters) {
+    GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+    payload.setSubject(userId);
+    payload.set("name", userId);
+    GoogleIdToken idToken =
+        new GoogleIdToken(new JsonWebSignature.Header(), payload, new byte[0], new byte[0]);
+
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put(USER_CONTEXT_ATTRIBUTE, new UserContext(userId));
+    attributes.put(ID_TOKEN_ATTRIBUTE, Optional.of(idToken));
+    return (HttpServletRequest)
+        Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class},
+            (proxy, method, arguments) -> {
+              switch (method.getName()) {
+                case "getParameter":
+                  return parameters.get(arguments[0]);
+                case "getAttribute":
+                  return attributes.get(arguments[0]);
+                case "setAttribute":
+                  attributes.put((String) arguments[0], arguments[1]);
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  /**
+   * Creates a response whose body is written to the given output.
+   *
+   * @param output The output of the body.
+   * @return The response.
+   */
+  static HttpServletResponse createResponse(StringWriter output) {
+    return createResponse(output, new ArrayList<>());
+  }
+
+  /**
+   * Creates a response whose body is written to the given output, and whose errors are recorded.
+   *
+   * @param output The output of the body.
+   * @param errors The list the status codes of the errors sent are added to.
+   * @return The response.
+   */
+  static HttpServletResponse createResponse(StringWriter output, List<Integer> errors) {
+    PrintWriter writer = new PrintWriter(output, true);
+    return (HttpServletResponse)
+        Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(),
+            new Class<?>[] {HttpServletResponse.class},
+            (proxy, method, arguments) -> {
+              switch (method.getName()) {
+                case "getWriter":
+                  return writer;
+                case "setContentType":
+                case "setCharacterEncoding":
+                  return null;
+                case "sendError":
+                  errors.add((Integer) arguments[0]);
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.lecturechat.servlets.GroupEventsServlet;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Checks the datastore calls made by whole servlet requests, which mustn't grow with the number of
+ * entities stored.
+ */
+@RunWith(JUnit4.class)
+public final class ServletRpcBudgetTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private DatastoreAccess datastore;
+
+  private final String USER_ID = "User Id A";
+  private final String USER_NAME = "User Name A";
+  private final String OTHER_USER_ID = "User Id B";
+  private final String EVENT_CREATOR = "Creator A";
+  private final int PAGE_SIZE = 20;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreAccess.getDatastoreAccess();
+    DatastoreAccess.clearCaches();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void groupEventsRequestMakesThreeCallsWhateverTheGroupSize() throws Exception {
+    datastore.addUser(USER_ID, USER_NAME);
+    long smallGroupId = addGroupWithEvents("Small", 5);
+    long largeGroupId = addGroupWithEvents("Large", 3 * PAGE_SIZE);
+    GroupEventsServlet servlet = new GroupEventsServlet();
+    servlet.init();
+
+    for (long groupId : new long[] {smallGroupId, largeGroupId}) {
+      DatastoreAccess.clearCaches();
+      Map<String, String> parameters = new HashMap<>();
+      parameters.put("group-id", Long.toString(groupId));
+      StringWriter output = new StringWriter();
+
+      DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+      servlet.doGet(
+          ServletRequests.createRequest(USER_ID, parameters),
+          ServletRequests.createResponse(output));
+      counter.uninstall();
+
+      JsonObject page = new Gson().fromJson(output.toString(), JsonObject.class);
+      assertTrue(page.getAsJsonArray("events").size() > 0);
+      // The get of the user, the query of the page and the batch get of its first counter shards.
+      assertTrue(counter.getTotalCount() <= 3);
+      assertEquals(1, counter.getCount("RunQuery"));
+      assertEquals(0, counter.getCount("Next"));
+      assertEquals(0, counter.getEntitiesWritten());
+    }
+  }
+
+  @Test
+  public void groupEventsRequestOfANonMemberIsForbiddenWithoutQueryingTheEvents()
+      throws Exception {
+    datastore.addUser(USER_ID, USER_NAME);
+    datastore.addUser(OTHER_USER_ID, USER_NAME);
+    long groupId = addGroupWithEvents("Degree", PAGE_SIZE);
+    GroupEventsServlet servlet = new GroupEventsServlet();
+    servlet.init();
+    DatastoreAccess.clearCaches();
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("group-id", Long.toString(groupId));
+    StringWriter output = new StringWriter();
+    List<Integer> errors = new ArrayList<>();
+
+    DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+    servlet.doGet(
+        ServletRequests.createRequest(OTHER_USER_ID, parameters),
+        ServletRequests.createResponse(output, errors));
+    counter.uninstall();
+
+    assertEquals(Arrays.asList(HttpServletResponse.SC_FORBIDDEN), errors);
+    assertEquals("", output.toString());
+    assertEquals(0, counter.getCount("RunQuery"));
+  }
+
+  private long addGroupWithEvents(String degree, int eventsCount) {
+    long groupId = datastore.addGroup("University", degree, 1);
+    datastore.joinGroup(USER_ID, groupId);
+    for (int event = 0; event < eventsCount; event++) {
+      datastore.addEventToGroup(groupId, "Event " + event, event, event + 1, EVENT_CREATOR);
+    }
+    return groupId;
+  }
+}
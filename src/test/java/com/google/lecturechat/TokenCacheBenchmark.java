@@ -0,0 +1,106 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.lecturechat.data;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the handling of the id_token cookie that AuthStatus does for every signed in request
+ * once the token was verified: decoding the cookie and finding the token in a full cache (or not
+ * finding it, before the signature is checked). AuthStatus itself can't be loaded here, since it
+ * reads the client id from the secret manager, and the signature check calls Google's servers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenCacheBenchmark {
+
+  // The same limit as AuthStatus.
+  private static final int MAX_CACHED_TOKENS = 10000;
+  // Google id_tokens are about this long.
+  private static final int TOKEN_BYTES = 640;
+
+  private VerifiedTokenCache cache;
+  private String cachedCookieValue;
+  private String unknownCookieValue;
+
+  @Setup
+  public void setUp() throws UnsupportedEncodingException {
+    Random random = new Random(42);
+    cache = new VerifiedTokenCache(MAX_CACHED_TOKENS);
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i <= MAX_CACHED_TOKENS; i++) {
+      tokens.add(createTokenString(random));
+    }
+    for (String token : tokens.subList(0, MAX_CACHED_TOKENS)) {
+      cache.put(token, createIdToken(token));
+    }
+    cachedCookieValue =
+        URLEncoder.encode(tokens.get(MAX_CACHED_TOKENS / 2), StandardCharsets.UTF_8.name());
+    unknownCookieValue =
+        URLEncoder.encode(tokens.get(MAX_CACHED_TOKENS), StandardCharsets.UTF_8.name());
+  }
+
+  @Benchmark
+  public Optional<GoogleIdToken> cachedToken() throws UnsupportedEncodingException {
+    return cache.get(URLDecoder.decode(cachedCookieValue, StandardCharsets.UTF_8.name()));
+  }
+
+  @Benchmark
+  public Optional<GoogleIdToken> unknownToken() throws UnsupportedEncodingException {
+    return cache.get(URLDecoder.decode(unknownCookieValue, StandardCharsets.UTF_8.name()));
+  }
+
+  private static String createTokenString(Random random) {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    random.nextBytes(bytes);
+    String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    // Three base64 parts separated by dots, like a signed JWT.
+    return String.join(
+        ".", encoded.substring(0, 48), encoded.substring(48, 600), encoded.substring(600));
+  }
+
+  private static GoogleIdToken createIdToken(String token) {
+    GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+    payload.setSubject(token.substring(0, 21));
+    // Far enough in the future for the cached tokens to never expire during a run.
+    payload.setExpirationTimeSeconds(System.currentTimeMillis() / 1000 + 24 * 60 * 60);
+    byte[] signedContent = token.getBytes(StandardCharsets.UTF_8);
+    return new GoogleIdToken(new JsonWebSignature.Header(), payload, new byte[0], signedContent);
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.lecturechat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class VerifiedTokenCacheTest {
+
+  // The request attribute AuthStatus memoizes the verified id_token in.
+  private static final String ID_TOKEN_ATTRIBUTE = AuthStatus.class.getName() + ".idToken";
+
+  private final String TOKEN_A = "header.payload-a.signature";
+  private final String TOKEN_B = "header.payload-b.signature";
+  private final String TOKEN_C = "header.payload-c.signature";
+  private final String USER_ID = "User Id A";
+
+  @Test
+  public void leastRecentlyUsedTokenIsEvicted() {
+    VerifiedTokenCache cache = new VerifiedTokenCache(2);
+    GoogleIdToken idTokenA = createIdToken(TimeUnit.HOURS.toSeconds(1));
+    GoogleIdToken idTokenB = createIdToken(TimeUnit.HOURS.toSeconds(1));
+    GoogleIdToken idTokenC = createIdToken(TimeUnit.HOURS.toSeconds(1));
+
+    cache.put(TOKEN_A, idTokenA);
+    cache.put(TOKEN_B, idTokenB);
+    // Reading the first token makes the second one the least recently used.
+    assertSame(idTokenA, cache.get(TOKEN_A).get());
+    cache.put(TOKEN_C, idTokenC);
+
+    assertSame(idTokenA, cache.get(TOKEN_A).get());
+    assertFalse(cache.get(TOKEN_B).isPresent());
+    assertSame(idTokenC, cache.get(TOKEN_C).get());
+  }
+
+  @Test
+  public void expiredTokensAreNotReturned() {
+    VerifiedTokenCache cache = new VerifiedTokenCache(10);
+    GoogleIdToken expiredIdToken = createIdToken(-1);
+    GoogleIdToken idToken = createIdToken(TimeUnit.HOURS.toSeconds(1));
+
+    cache.put(TOKEN_A, expiredIdToken);
+    cache.put(TOKEN_B, idToken);
+    assertFalse(cache.get(TOKEN_A).isPresent());
+    assertSame(idToken, cache.get(TOKEN_B).get());
+
+    // The token expires while it is cached.
+    idToken.getPayload().setExpirationTimeSeconds(System.currentTimeMillis() / 1000 - 1);
+    assertFalse(cache.get(TOKEN_B).isPresent());
+  }
+
+  @Test
+  public void tokensWithoutExpirationTimeAreNotCached() {
+    VerifiedTokenCache cache = new VerifiedTokenCache(10);
+    GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+    GoogleIdToken idToken =
+        new GoogleIdToken(new JsonWebSignature.Header(), payload, new byte[0], new byte[0]);
+
+    cache.put(TOKEN_A, idToken);
+
+    assertFalse(cache.get(TOKEN_A).isPresent());
+  }
+
+  @Test
+  public void tokensAreFoundByTheirContentOnly() {
+    VerifiedTokenCache cache = new VerifiedTokenCache(10);
+    GoogleIdToken idToken = createIdToken(TimeUnit.HOURS.toSeconds(1));
+
+    cache.put(TOKEN_A, idToken);
+
+    // The raw token of the next request is a different string with the same content.
+    assertSame(idToken, cache.get(new String(TOKEN_A.toCharArray())).get());
+    assertFalse(cache.get(TOKEN_A + "x").isPresent());
+    assertFalse(cache.get(TOKEN_A.substring(1)).isPresent());
+  }
+
+  @Test
+  public void requestWithoutTokenIsOnlyInspectedOnce() throws Exception {
+    RecordingRequest request = new RecordingRequest(Optional.empty());
+
+    assertFalse(AuthStatus.isSignedIn(request.proxy));
+    assertFalse(AuthStatus.getUserId(request.proxy).isPresent());
+
+    assertEquals(1, request.getCookiesCalls.get());
+    assertEquals(Optional.empty(), request.attributes.get(ID_TOKEN_ATTRIBUTE));
+  }
+
+  @Test
+  public void memoizedTokenIsUsedWithoutInspectingTheCookies() throws Exception {
+    GoogleIdToken idToken = createIdToken(TimeUnit.HOURS.toSeconds(1));
+    RecordingRequest request = new RecordingRequest(Optional.of(idToken));
+
+    assertEquals(Optional.of(USER_ID), AuthStatus.getUserId(request.proxy));
+    assertSame(idToken.getPayload(), AuthStatus.getUserPayload(request.proxy).get());
+
+    assertEquals(0, request.getCookiesCalls.get());
+  }
+
+  /** Creates a token of the user that expires the given number of seconds from now. */
+  private GoogleIdToken createIdToken(long secondsUntilExpiration) {
+    GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+    payload.setSubject(USER_ID);
+    payload.setExpirationTimeSeconds(
+        System.currentTimeMillis() / 1000 + secondsUntilExpiration);
+    return new GoogleIdToken(new JsonWebSignature.Header(), payload, new byte[0], new byte[0]);
+  }
+
+  /** A request without cookies that records its attributes and the reads of its cookies. */
+  private static final class RecordingRequest {
+
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final AtomicInteger getCookiesCalls = new AtomicInteger();
+    private final HttpServletRequest proxy;
+
+    private RecordingRequest(Optional<GoogleIdToken> memoizedIdToken) {
+      memoizedIdToken.ifPresent(idToken -> attributes.put(ID_TOKEN_ATTRIBUTE, memoizedIdToken));
+      proxy =
+          (HttpServletRequest)
+              Proxy.newProxyInstance(
+                  HttpServletRequest.class.getClassLoader(),
+                  new Class<?>[] {HttpServletRequest.class},
+                  (proxy, method, arguments) -> {
+                    switch (method.getName()) {
+                      case "getCookies":
+                        getCookiesCalls.incrementAndGet();
+                        return null;
+                      case "getAttribute":
+                        return attributes.get(arguments[0]);
+                      case "setAttribute":
+                        attributes.put((String) arguments[0], arguments[1]);
+                        return null;
+                      default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                  });
+    }
+  }
+}